@@ -0,0 +1,106 @@
+package entropydata.gcp;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.google.cloud.bigquery.Acl;
+import com.google.cloud.bigquery.Acl.Group;
+import com.google.cloud.bigquery.Acl.User;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQuery.DatasetOption;
+import com.google.cloud.bigquery.Dataset;
+import com.google.cloud.bigquery.DatasetId;
+import entropydata.sdk.EntropyDataClient;
+import entropydata.sdk.client.ApiClient;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cost of scanning the ACL of a dataset with many entries in {@code authorize} and {@code deauthorize}. The granted
+ * entity is the last entry, so both scan the whole list. The dataset update is a stub-only mock, so the numbers cover
+ * the scan and the copy of the ACL, not the API call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AclScanBenchmark {
+
+  @Param({"100", "5000"})
+  int aclEntries;
+
+  private GcpAccessManagement accessManagement;
+  private final DatasetId datasetId = DatasetId.of("bench-project", "bench_dataset");
+  private final User grantedUser = new User("granted@example.com");
+  private final User newUser = new User("new@example.com");
+
+  @Setup
+  public void setUp() {
+    // every call logs at INFO
+    ((Logger) LoggerFactory.getLogger(GcpAccessManagement.class)).setLevel(Level.WARN);
+
+    var acl = new ArrayList<Acl>(aclEntries);
+    for (int i = 0; i < aclEntries - 1; i++) {
+      acl.add(Acl.of(i % 2 == 0 ? new User("user-" + i + "@example.com") : new Group("group-" + i + "@example.com"),
+          Acl.Role.READER));
+    }
+    acl.add(Acl.of(grantedUser, Acl.Role.READER));
+
+    var dataset = mock(Dataset.class, withSettings().stubOnly());
+    var builder = mock(Dataset.Builder.class, withSettings().stubOnly());
+    when(dataset.getAcl()).thenReturn(acl);
+    when(dataset.toBuilder()).thenReturn(builder);
+    when(builder.setAcl(any())).thenReturn(builder);
+    when(builder.build()).thenReturn(dataset);
+    var bigQuery = mock(BigQuery.class, withSettings().stubOnly());
+    when(bigQuery.getDataset(eq(datasetId), any(DatasetOption[].class))).thenReturn(dataset);
+
+    var client = mock(EntropyDataClient.class, withSettings().stubOnly());
+    when(client.getApiClient()).thenReturn(mock(ApiClient.class, withSettings().stubOnly()));
+    accessManagement = new GcpAccessManagement(client, bigQuery, "READER", "gcpPrincipal", "gcpPrincipal");
+  }
+
+  /**
+   * The entity already holds the role: full scan, no update.
+   */
+  @Benchmark
+  public void authorizeExisting() {
+    accessManagement.authorize(datasetId, grantedUser);
+  }
+
+  /**
+   * The entity is new: full scan, copy and update.
+   */
+  @Benchmark
+  public void authorizeNew() {
+    accessManagement.authorize(datasetId, newUser);
+  }
+
+  /**
+   * The entity is the last entry: full scan, copy without it and update.
+   */
+  @Benchmark
+  public void deauthorize() {
+    accessManagement.deauthorize(datasetId, grantedUser);
+  }
+
+}
@@ -0,0 +1,75 @@
+package entropydata.gcp;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import entropydata.sdk.EntropyDataStateRepositoryInMemory;
+import entropydata.sdk.client.model.Asset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of mapping a BigQuery table to an {@link Asset}. {@code Table} has no public constructor, so the table is a
+ * stub-only mock; its getters are called a constant number of times, while the work per column is real.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AssetMappingBenchmark {
+
+  @Param({"10", "10000"})
+  int columns;
+
+  private GcpAssetsProvider provider;
+  private Table table;
+
+  @Setup
+  public void setUp() {
+    provider = new GcpAssetsProvider(mock(BigQuery.class), List.of("bench-project"),
+        new EntropyDataStateRepositoryInMemory("bench"));
+
+    var fields = new ArrayList<Field>(columns);
+    for (int i = 0; i < columns; i++) {
+      fields.add(Field.newBuilder("column_" + i, i % 2 == 0 ? StandardSQLTypeName.STRING : StandardSQLTypeName.INT64)
+          .setDescription("Description of column " + i)
+          .build());
+    }
+    var tableId = TableId.of("bench-project", "bench_dataset", "bench_table");
+    table = mock(Table.class, withSettings().stubOnly());
+    when(table.getTableId()).thenReturn(tableId);
+    when(table.getGeneratedId()).thenReturn("bench-project:bench_dataset.bench_table");
+    when(table.getFriendlyName()).thenReturn("Bench table");
+    when(table.getDescription()).thenReturn("A table with " + columns + " columns");
+    when(table.getLastModifiedTime()).thenReturn(1_700_000_000_000L);
+    when(table.getDefinition()).thenReturn(StandardTableDefinition.of(Schema.of(fields)));
+  }
+
+  @Benchmark
+  public Asset toAsset() {
+    return provider.toAsset(table);
+  }
+
+}
@@ -0,0 +1,165 @@
+package entropydata.gcp;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.DatasetId;
+import entropydata.sdk.EntropyDataClient;
+import entropydata.sdk.client.ApiClient;
+import entropydata.sdk.client.api.DataContractsApi;
+import entropydata.sdk.client.api.DataProductsApi;
+import entropydata.sdk.client.model.Access;
+import entropydata.sdk.client.model.AccessProvider;
+import entropydata.sdk.client.model.DataContract;
+import entropydata.sdk.client.model.DataContractServersValue;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Cost of resolving the BigQuery dataset of an output port from the data product and data contract fixtures in
+ * {@code src/test/resources/fixtures}. The Entropy Data client is a stub-only mock returning the parsed fixtures.
+ * {@code convertValueRoundTrip} is the conversion of the whole data product and data contract to maps that the
+ * resolution did before it navigated them in place; compare its {@code gc.alloc.rate.norm} with that of
+ * {@code findProviderDatasetId}, e.g. {@code -Djmh.args="OutputPortResolution -p padding=500"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputPortResolutionBenchmark {
+
+  /**
+   * DPS: server on the output port. ODPS_ODCS: server from an ODCS contract. ODPS_NO_CONTRACT: server in the custom
+   * properties of the output port.
+   */
+  @Param({"DPS", "ODPS_ODCS", "ODPS_NO_CONTRACT"})
+  String format;
+
+  /**
+   * Output ports added to the data product and servers added to the data contract, besides the resolved ones.
+   */
+  @Param({"0", "500"})
+  int padding;
+
+  private GcpAccessManagement accessManagement;
+  private EntropyDataClient client;
+  private Access access;
+  private Map<String, Object> outputPort;
+  private ObjectMapper objectMapper;
+  private Map<String, Object> dataProduct;
+  private DataContract dataContract;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    var apiClient = mock(ApiClient.class, withSettings().stubOnly());
+    when(apiClient.getObjectMapper()).thenReturn(objectMapper);
+    var dataProductsApi = mock(DataProductsApi.class, withSettings().stubOnly());
+    var dataContractsApi = mock(DataContractsApi.class, withSettings().stubOnly());
+    client = mock(EntropyDataClient.class, withSettings().stubOnly());
+    when(client.getApiClient()).thenReturn(apiClient);
+    when(client.getDataProductsApi()).thenReturn(dataProductsApi);
+    when(client.getDataContractsApi()).thenReturn(dataContractsApi);
+
+    var dataProductFixture = switch (format) {
+      case "DPS" -> "provider-dp-dps.yaml";
+      case "ODPS_ODCS" -> "provider-dp-odps.yaml";
+      default -> "provider-dp-odps-no-contract.yaml";
+    };
+    dataProduct = loadYaml(dataProductFixture);
+    var dataContractYaml = loadYaml("datacontract.yaml");
+    var outputPorts = (List<Map<String, Object>>) dataProduct.get("outputPorts");
+    var servers = (List<Map<String, Object>>) dataContractYaml.get("servers");
+    for (int i = 0; i < padding; i++) {
+      var server = Map.<String, Object>of("type", "bigquery", "project", "other-project", "dataset", "dataset_" + i);
+      outputPorts.add(Map.of("id", "port-" + i, "name", "port-" + i, "type", "bigquery", "server", server));
+      var contractServer = new LinkedHashMap<>(server);
+      contractServer.put("server", "server-" + i);
+      servers.add(contractServer);
+    }
+    dataContract = toDataContract(dataContractYaml, objectMapper);
+    when(dataProductsApi.getDataProduct("provider-dp")).thenReturn(dataProduct);
+    when(dataContractsApi.getDataContract("my-contract")).thenReturn(dataContract);
+
+    var outputPortId = format.equals("DPS") ? "op-1" : "bq-output";
+    access = new Access();
+    access.setId("access-1");
+    access.setProvider(new AccessProvider().dataProductId("provider-dp").outputPortId(outputPortId));
+    outputPort = outputPorts.get(0);
+
+    accessManagement = new GcpAccessManagement(client, mock(BigQuery.class), "READER", "gcpPrincipal",
+        "gcpPrincipal");
+    if (findProviderDatasetId() == null) {
+      throw new IllegalStateException("Fixture " + dataProductFixture + " does not resolve to a dataset");
+    }
+  }
+
+  @Benchmark
+  public DatasetId findProviderDatasetId() {
+    return accessManagement.findProviderDatasetId(access, client);
+  }
+
+  @Benchmark
+  public Map<String, String> resolveServerFromContract() {
+    return accessManagement.resolveServerFromContract(outputPort);
+  }
+
+  @Benchmark
+  public Object convertValueRoundTrip() {
+    var dataProductMap = objectMapper.convertValue(dataProduct, Map.class);
+    return format.equals("ODPS_ODCS") ? objectMapper.convertValue(dataContract, Map.class) : dataProductMap;
+  }
+
+  private static Map<String, Object> loadYaml(String name) {
+    try (var in = OutputPortResolutionBenchmark.class.getResourceAsStream("/fixtures/" + name)) {
+      return new Yaml().load(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * ODCS lists servers, the SDK model maps them by name, as the API returns them.
+   */
+  @SuppressWarnings("unchecked")
+  private static DataContract toDataContract(Map<String, Object> yaml, ObjectMapper objectMapper) {
+    if (yaml.get("servers") instanceof List<?> servers) {
+      var serversByName = new LinkedHashMap<String, DataContractServersValue>();
+      for (var server : (List<Map<String, Object>>) servers) {
+        var value = new DataContractServersValue();
+        server.forEach((key, serverValue) -> {
+          if (!key.equals("server")) {
+            value.put(key, serverValue);
+          }
+        });
+        serversByName.put((String) server.get("server"), value);
+      }
+      yaml.put("servers", serversByName);
+    }
+    return objectMapper.convertValue(yaml, DataContract.class);
+  }
+
+}
@@ -0,0 +1,326 @@
+package entropydata.gcp;
+
+import com.google.cloud.bigquery.DatasetId;
+import entropydata.sdk.EntropyDataEventHandler;
+import entropydata.sdk.EntropyDataStateRepository;
+import entropydata.sdk.client.model.AccessActivatedEvent;
+import entropydata.sdk.client.model.AccessDeactivatedEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes access events on {@code concurrency} threads instead of on the thread of the listener. Before an event is
+ * processed, the {@link ResolvingEventHandler} resolves its access and the dataset it grants, concurrently for all
+ * received events, and is later handed that resolution with the event, so that the access is not fetched twice. An
+ * event waits for the events received before it that have the same access id or the same dataset, so the activation
+ * and deactivation of an access never overtake each other, and the ACL of a dataset is changed in the order the events
+ * were received, while events of other accesses and datasets proceed in parallel. An event whose access could not be
+ * resolved is only ordered by its access id, and handed {@code null}.
+ * <p>
+ * The listener is blocked while {@code maxInFlight} events are resolved, queued or processed. A failed event is logged
+ * and does not stop the events after it, like a failed event does not stop the listener. The number of events in
+ * flight is reported as gauge {@code gcp.access.dispatcher.inflight}.
+ * <p>
+ * As the listener considers an event done once it was handed over, the state that the listener saves has to be held
+ * back until the events received before are done: {@link #checkpointing} wraps the state repository of the listener
+ * accordingly, so that events that were received but not processed before a restart are received again.
+ */
+public class AccessEventDispatcher implements EntropyDataEventHandler, Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(AccessEventDispatcher.class);
+
+  private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(30);
+
+  /**
+   * A state saved by the listener, which may be written once all events up to {@code sequence} are done.
+   */
+  private record HeldState(long sequence, Map<String, Object> state) {
+  }
+
+  /**
+   * Handles access events with the resolution of their access, of type {@code R}.
+   */
+  public interface ResolvingEventHandler<R> {
+
+    /**
+     * Resolves the access of an event before it is processed. Must not change anything, as the event may still be
+     * dropped by a restart.
+     */
+    R resolve(String accessId);
+
+    /**
+     * @return the dataset the resolved access grants, or {@code null} if it has none
+     */
+    DatasetId datasetOf(R resolved);
+
+    /**
+     * @param resolved the resolution of the access of the event, or {@code null} if it could not be resolved
+     */
+    void onAccessActivatedEvent(AccessActivatedEvent event, R resolved);
+
+    /**
+     * @param resolved the resolution of the access of the event, or {@code null} if it could not be resolved
+     */
+    void onAccessDeactivatedEvent(AccessDeactivatedEvent event, R resolved);
+  }
+
+  private record Resolution(Object resolved, DatasetId datasetId) {
+  }
+
+  private final ResolvingEventHandler<Object> delegate;
+  private final ExecutorService resolvers;
+  private final ExecutorService workers;
+  private final Semaphore inFlight;
+  private final int maxInFlight;
+  // sequence numbers of the events that are resolved, queued or processed
+  private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+  // the last received event per access id and per dataset, replaced only by routing, which runs one event at a time
+  private final Map<Object, CompletableFuture<Void>> lastEvents = new ConcurrentHashMap<>();
+  private final ArrayDeque<HeldState> heldStates = new ArrayDeque<>();
+  private long received;
+  private final Object routingLock = new Object();
+  // completes once the last received event was routed, guarded by routingLock
+  private CompletableFuture<Void> routed = CompletableFuture.completedFuture(null);
+  private volatile boolean closed;
+  private EntropyDataStateRepository stateRepository;
+
+  @SuppressWarnings("unchecked")
+  public <R> AccessEventDispatcher(ResolvingEventHandler<R> delegate, int concurrency, int maxInFlight) {
+    if (concurrency < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException("concurrency and maxInFlight must be at least 1");
+    }
+    // a resolution is only ever handed back to the delegate that returned it
+    this.delegate = (ResolvingEventHandler<Object>) delegate;
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.resolvers = Executors.newFixedThreadPool(concurrency, daemonThreads("gcp-access-resolve-"));
+    this.workers = Executors.newFixedThreadPool(concurrency, daemonThreads("gcp-access-events-"));
+  }
+
+  /**
+   * For a handler that resolves the access of an event itself.
+   *
+   * @param datasetOf the dataset of an access id, or {@code null} if it has none
+   */
+  public AccessEventDispatcher(EntropyDataEventHandler delegate, Function<String, DatasetId> datasetOf,
+      int concurrency, int maxInFlight) {
+    this(new ResolvingEventHandler<DatasetId>() {
+      @Override
+      public DatasetId resolve(String accessId) {
+        return datasetOf.apply(accessId);
+      }
+
+      @Override
+      public DatasetId datasetOf(DatasetId resolved) {
+        return resolved;
+      }
+
+      @Override
+      public void onAccessActivatedEvent(AccessActivatedEvent event, DatasetId resolved) {
+        delegate.onAccessActivatedEvent(event);
+      }
+
+      @Override
+      public void onAccessDeactivatedEvent(AccessDeactivatedEvent event, DatasetId resolved) {
+        delegate.onAccessDeactivatedEvent(event);
+      }
+    }, concurrency, maxInFlight);
+  }
+
+  private static ThreadFactory daemonThreads(String prefix) {
+    var threadCounter = new AtomicInteger();
+    return runnable -> {
+      var thread = new Thread(runnable, prefix + threadCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    Gauge.builder("gcp.access.dispatcher.inflight", this, dispatcher -> dispatcher.pending.size())
+        .register(meterRegistry);
+  }
+
+  /**
+   * @return the state repository for the listener, which writes a saved state once the events received before it are
+   *     done
+   */
+  public EntropyDataStateRepository checkpointing(EntropyDataStateRepository stateRepository) {
+    synchronized (heldStates) {
+      this.stateRepository = stateRepository;
+    }
+    return new EntropyDataStateRepository() {
+      @Override
+      public Map<String, Object> getState() {
+        synchronized (heldStates) {
+          return heldStates.isEmpty() ? stateRepository.getState() : heldStates.getLast().state();
+        }
+      }
+
+      @Override
+      public void saveState(Map<String, Object> state) {
+        synchronized (heldStates) {
+          heldStates.addLast(new HeldState(received, state));
+        }
+        writeCheckpoint();
+      }
+    };
+  }
+
+  @Override
+  public void onAccessActivatedEvent(AccessActivatedEvent event) {
+    dispatch(event.getId(), "AccessActivatedEvent", resolved -> delegate.onAccessActivatedEvent(event, resolved));
+  }
+
+  @Override
+  public void onAccessDeactivatedEvent(AccessDeactivatedEvent event) {
+    dispatch(event.getId(), "AccessDeactivatedEvent",
+        resolved -> delegate.onAccessDeactivatedEvent(event, resolved));
+  }
+
+  private void dispatch(String accessId, String type, Consumer<Object> handler) {
+    if (closed) {
+      throw new IllegalStateException("Cannot dispatch " + type + " " + accessId + " after close");
+    }
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting to dispatch " + type + " " + accessId, e);
+    }
+    long sequence;
+    synchronized (heldStates) {
+      sequence = ++received;
+      pending.add(sequence);
+    }
+    CompletableFuture<Resolution> resolution;
+    try {
+      resolution = CompletableFuture.supplyAsync(() -> resolve(accessId), resolvers);
+    } catch (RejectedExecutionException e) {
+      done(sequence);
+      throw new IllegalStateException("Cannot dispatch " + type + " " + accessId + " after close", e);
+    }
+    synchronized (routingLock) {
+      // events are routed in the order they were received, each once its access is resolved
+      routed = routed.thenCombine(resolution, (ignored, resolved) -> {
+        route(sequence, accessId, resolved, type, handler);
+        return null;
+      });
+    }
+  }
+
+  private Resolution resolve(String accessId) {
+    try {
+      var resolved = delegate.resolve(accessId);
+      return new Resolution(resolved, resolved == null ? null : delegate.datasetOf(resolved));
+    } catch (RuntimeException e) {
+      log.debug("Failed to resolve access {}: {}", accessId, e.getMessage());
+      return new Resolution(null, null);
+    }
+  }
+
+  /**
+   * Queues the event after the last received events of its access id and of its dataset. Must not throw, as that
+   * would stop the routing of all later events.
+   */
+  private void route(long sequence, String accessId, Resolution resolution, String type, Consumer<Object> handler) {
+    var keys = new ArrayList<Object>(2);
+    keys.add(String.valueOf(accessId));
+    if (resolution.datasetId() != null) {
+      keys.add(resolution.datasetId());
+    }
+    var previousEvents = keys.stream()
+        .map(lastEvents::get)
+        .filter(Objects::nonNull)
+        .toArray(CompletableFuture<?>[]::new);
+    // completes normally in any case, so that it never keeps later events from being processed
+    var event = CompletableFuture.allOf(previousEvents)
+        .thenRunAsync(() -> process(accessId, type, () -> handler.accept(resolution.resolved())), workers)
+        .handle((ignored, e) -> {
+          if (e != null) {
+            log.warn("Failed to process {} {}: {}", type, accessId, e.getMessage());
+          }
+          return (Void) null;
+        });
+    keys.forEach(key -> lastEvents.put(key, event));
+    event.thenRun(() -> {
+      keys.forEach(key -> lastEvents.remove(key, event));
+      done(sequence);
+    });
+  }
+
+  private void process(String accessId, String type, Runnable handler) {
+    try {
+      handler.run();
+    } catch (RuntimeException e) {
+      log.warn("Failed to process {} {}: {}", type, accessId, e.getMessage());
+    }
+  }
+
+  private void done(long sequence) {
+    pending.remove(sequence);
+    try {
+      writeCheckpoint();
+    } finally {
+      // released last, so that close returns only once the checkpoint was written
+      inFlight.release();
+    }
+  }
+
+  /**
+   * Writes the latest held state whose events are all done.
+   */
+  private void writeCheckpoint() {
+    synchronized (heldStates) {
+      long firstPending = pending.isEmpty() ? Long.MAX_VALUE : pending.first();
+      HeldState latest = null;
+      while (!heldStates.isEmpty() && heldStates.getFirst().sequence() < firstPending) {
+        latest = heldStates.removeFirst();
+      }
+      if (latest != null) {
+        stateRepository.saveState(latest.state());
+      }
+    }
+  }
+
+  /**
+   * Stops receiving events and waits up to 30 seconds for the received ones. Events that are still unprocessed then
+   * are received again after a restart, as their state was not written.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      if (inFlight.tryAcquire(maxInFlight, CLOSE_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS)) {
+        inFlight.release(maxInFlight);
+      } else {
+        log.warn("Closing with {} of at most {} access events unprocessed", pending.size(), maxInFlight);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    resolvers.shutdownNow();
+    workers.shutdownNow();
+  }
+
+}
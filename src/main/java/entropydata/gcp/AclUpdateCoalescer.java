@@ -0,0 +1,186 @@
+package entropydata.gcp;
+
+import com.google.cloud.bigquery.Acl;
+import com.google.cloud.bigquery.DatasetId;
+import entropydata.gcp.DatasetAclUpdater.Outcome;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects grants and revokes per dataset and applies them with one read-modify-write of the dataset ACL. A batch is
+ * written {@code window} after its first change, or at once when it holds {@code maxChanges} changes. Writes of the
+ * same dataset never overlap: changes arriving during a write form the next batches of at most {@code maxChanges}
+ * changes each, which are written right after it.
+ * <p>
+ * Changes are applied in the order they were submitted. The result of each change completes once its batch was
+ * written, or exceptionally with the error of the read or the write, which fails all changes of the batch. The sizes
+ * of the written batches are recorded as distribution summary {@code gcp.access.acl.batches}. The update is conditional
+ * on the etag of the read (see {@link DatasetAclUpdater}), so a concurrent change of the dataset by someone else
+ * makes the batch apply again to a fresh read instead of overwriting it.
+ */
+class AclUpdateCoalescer implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(AclUpdateCoalescer.class);
+
+  // writes of different datasets run concurrently, each holds a thread for one read and one write
+  private static final int WRITER_THREADS = 4;
+
+  record Settings(Duration window, int maxChanges) {
+  }
+
+  private record Change(Acl acl, boolean grant, CompletableFuture<Outcome> result) {
+  }
+
+  /**
+   * Pending changes of a dataset, guarded by itself.
+   */
+  private static class DatasetBatch {
+    private List<Change> changes = new ArrayList<>();
+    private long generation;
+    private boolean writing;
+  }
+
+  private final DatasetAclUpdater aclUpdater;
+  private final Settings settings;
+  private final ScheduledExecutorService executor;
+  private final Map<DatasetId, DatasetBatch> batches = new HashMap<>();
+  private volatile MeterRegistry meterRegistry;
+
+  AclUpdateCoalescer(DatasetAclUpdater aclUpdater, Settings settings, MeterRegistry meterRegistry) {
+    this.aclUpdater = aclUpdater;
+    this.settings = settings;
+    this.meterRegistry = meterRegistry;
+    var threadCounter = new AtomicInteger();
+    var scheduler = new ScheduledThreadPoolExecutor(WRITER_THREADS, runnable -> {
+      var thread = new Thread(runnable, "gcp-access-acl-" + threadCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.setRemoveOnCancelPolicy(true);
+    this.executor = scheduler;
+  }
+
+  void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  CompletableFuture<Outcome> grant(DatasetId datasetId, Acl acl) {
+    return submit(datasetId, new Change(acl, true, new CompletableFuture<>()));
+  }
+
+  CompletableFuture<Outcome> revoke(DatasetId datasetId, Acl acl) {
+    return submit(datasetId, new Change(acl, false, new CompletableFuture<>()));
+  }
+
+  private CompletableFuture<Outcome> submit(DatasetId datasetId, Change change) {
+    DatasetBatch batch;
+    synchronized (batches) {
+      batch = batches.computeIfAbsent(datasetId, key -> new DatasetBatch());
+      synchronized (batch) {
+        batch.changes.add(change);
+        if (!batch.writing) {
+          if (batch.changes.size() >= settings.maxChanges()) {
+            scheduleWrite(datasetId, batch, 0);
+          } else if (batch.changes.size() == 1) {
+            scheduleWrite(datasetId, batch, settings.window().toNanos());
+          }
+        }
+      }
+    }
+    return change.result();
+  }
+
+  /**
+   * Writes the batch after {@code delayNanos} unless it was written in the meantime. Called with the batch locked.
+   */
+  private void scheduleWrite(DatasetId datasetId, DatasetBatch batch, long delayNanos) {
+    long generation = ++batch.generation;
+    executor.schedule(() -> write(datasetId, batch, generation), delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void write(DatasetId datasetId, DatasetBatch batch, long generation) {
+    List<Change> changes;
+    synchronized (batch) {
+      if (batch.generation != generation || batch.writing || batch.changes.isEmpty()) {
+        return;
+      }
+      var taken = batch.changes.subList(0, Math.min(batch.changes.size(), settings.maxChanges()));
+      changes = new ArrayList<>(taken);
+      taken.clear();
+      batch.writing = true;
+    }
+
+    try {
+      apply(datasetId, changes);
+    } catch (Throwable e) {
+      // changes that were already completed keep their outcome
+      log.warn("Failed to update ACL of dataset {} with {} changes: {}", datasetId, changes.size(), e.getMessage());
+      changes.forEach(change -> change.result().completeExceptionally(e));
+      if (e instanceof Error error) {
+        throw error;
+      }
+    } finally {
+      synchronized (batches) {
+        synchronized (batch) {
+          batch.writing = false;
+          if (!batch.changes.isEmpty()) {
+            // these changes waited for this write, or did not fit into it
+            scheduleWrite(datasetId, batch, 0);
+          } else {
+            batches.remove(datasetId);
+          }
+        }
+      }
+    }
+  }
+
+  private void apply(DatasetId datasetId, List<Change> changes) {
+    var outcomes = new ArrayList<Outcome>(changes.size());
+    var outcome = aclUpdater.update(datasetId, aclList -> {
+      // a retry after a conflict starts over from the fresh ACL
+      outcomes.clear();
+      var acl = new LinkedHashSet<>(aclList);
+      boolean modified = false;
+      for (var change : changes) {
+        boolean applied = change.grant() ? acl.add(change.acl()) : acl.remove(change.acl());
+        outcomes.add(applied ? Outcome.APPLIED : Outcome.UNCHANGED);
+        modified |= applied;
+      }
+      if (modified) {
+        aclList.clear();
+        aclList.addAll(acl);
+      }
+      return modified;
+    });
+    if (outcome == Outcome.DATASET_NOT_FOUND) {
+      changes.forEach(change -> change.result().complete(Outcome.DATASET_NOT_FOUND));
+      return;
+    }
+    if (outcome == Outcome.APPLIED) {
+      DistributionSummary.builder("gcp.access.acl.batches").register(meterRegistry).record(changes.size());
+    }
+    for (int i = 0; i < changes.size(); i++) {
+      changes.get(i).result().complete(outcomes.get(i));
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+}
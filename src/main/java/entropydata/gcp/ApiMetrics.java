@@ -0,0 +1,92 @@
+package entropydata.gcp;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Count and latency of the calls to the BigQuery and Entropy Data APIs, as timers {@code gcp.bigquery.requests} (tagged
+ * with the client method) and {@code entropydata.api.requests} (tagged with the operation). Both are tagged with the
+ * outcome: {@code success}, the HTTP status of a BigQuery error, or {@code error}.
+ */
+final class ApiMetrics {
+
+  static final String BIGQUERY_REQUESTS = "gcp.bigquery.requests";
+  static final String ENTROPYDATA_REQUESTS = "entropydata.api.requests";
+
+  private ApiMetrics() {
+  }
+
+  /**
+   * @return a client that records every call to the given client
+   */
+  static BigQuery metered(BigQuery bigquery, MeterRegistry registry) {
+    return (BigQuery) Proxy.newProxyInstance(BigQuery.class.getClassLoader(), new Class<?>[] {BigQuery.class},
+        (proxy, method, args) -> {
+          if (method.getDeclaringClass() == Object.class || method.getName().equals("getOptions")) {
+            return invoke(bigquery, method, args);
+          }
+          long start = System.nanoTime();
+          String outcome = "success";
+          try {
+            return invoke(bigquery, method, args);
+          } catch (BigQueryException e) {
+            outcome = Integer.toString(e.getCode());
+            throw e;
+          } catch (Throwable e) {
+            outcome = "error";
+            throw e;
+          } finally {
+            record(registry, BIGQUERY_REQUESTS, "method", method.getName(), outcome, start);
+          }
+        });
+  }
+
+  static <T> T entropyData(MeterRegistry registry, String operation, Supplier<T> call) {
+    long start = System.nanoTime();
+    String outcome = "success";
+    try {
+      return call.get();
+    } catch (RuntimeException e) {
+      outcome = "error";
+      throw e;
+    } finally {
+      record(registry, ENTROPYDATA_REQUESTS, "operation", operation, outcome, start);
+    }
+  }
+
+  static void runEntropyData(MeterRegistry registry, String operation, Runnable call) {
+    entropyData(registry, operation, () -> {
+      call.run();
+      return null;
+    });
+  }
+
+  static void recordEntropyData(MeterRegistry registry, String operation, String outcome, long startNanos) {
+    record(registry, ENTROPYDATA_REQUESTS, "operation", operation, outcome, startNanos);
+  }
+
+  private static void record(MeterRegistry registry, String name, String key, String value, String outcome,
+      long startNanos) {
+    Timer.builder(name)
+        .tag(key, value)
+        .tag("outcome", outcome)
+        .register(registry)
+        .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private static Object invoke(BigQuery bigquery, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(bigquery, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+}
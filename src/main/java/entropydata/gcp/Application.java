@@ -2,16 +2,30 @@ package entropydata.gcp;
 
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.resourcemanager.v3.FoldersClient;
+import com.google.cloud.resourcemanager.v3.ProjectsClient;
+import entropydata.gcp.GcpAssetsProvider.Stage;
+import entropydata.gcp.GcpProperties.StateProperties;
+import entropydata.gcp.GcpProperties.StateProperties.StateType;
 import entropydata.sdk.EntropyDataAssetsSynchronizer;
 import entropydata.sdk.EntropyDataClient;
 import entropydata.sdk.EntropyDataEventListener;
+import entropydata.sdk.EntropyDataStateRepository;
 import entropydata.sdk.EntropyDataStateRepositoryInMemory;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
@@ -24,8 +38,17 @@ public class Application {
   }
 
   @Bean
-  public BigQuery bigQuery() {
-    return BigQueryOptions.getDefaultInstance().getService();
+  public BigQuery bigQuery(GcpProperties gcpProperties, MeterRegistry meterRegistry) {
+    // metered inside the rate limiter, so that every attempt is recorded
+    var options = BigQueryOptions.newBuilder().setTransportOptions(IfMatchTransportOptions.create()).build();
+    var bigQuery = ApiMetrics.metered(options.getService(), meterRegistry);
+    var ratelimit = gcpProperties.ratelimit();
+    if (!ratelimit.enabled()) {
+      return bigQuery;
+    }
+    return RateLimitedBigQuery.wrap(bigQuery, new RateLimitedBigQuery.Settings(ratelimit.requestspersecond(),
+        ratelimit.burst(), ratelimit.maxconcurrency(), ratelimit.maxretries(), ratelimit.initialbackoff(),
+        ratelimit.maxbackoff()));
   }
 
   @Bean
@@ -34,16 +57,49 @@ public class Application {
     return new EntropyDataClient(host, apiKey);
   }
 
+  @Bean
+  @ConditionalOnProperty(value = "entropydata.client.gcp.accessmanagement.enabled", havingValue = "true")
+  public GcpAccessManagement gcpAccessManagement(EntropyDataClient client, GcpProperties gcpProperties,
+      BigQuery bigQuery, MeterRegistry meterRegistry) {
+    var accessManagement = new GcpAccessManagement(client, bigQuery, gcpProperties.accessmanagement().role(),
+        gcpProperties.accessmanagement().mapping().team().customfield(),
+        gcpProperties.accessmanagement().mapping().dataproduct().customfield());
+    accessManagement.setMeterRegistry(meterRegistry);
+    var cache = gcpProperties.accessmanagement().cache();
+    accessManagement.setCache(cache.ttl(), cache.maxsize());
+    var aclBatching = gcpProperties.accessmanagement().aclbatching();
+    accessManagement.setAclBatching(aclBatching.window(), aclBatching.maxchanges());
+    return accessManagement;
+  }
+
+  /**
+   * Closed after the listener was stopped, and before the state repository it writes the checkpoints to.
+   */
+  @Bean(destroyMethod = "close")
+  @DependsOn("accessManagementStateRepository")
+  @ConditionalOnExpression("${entropydata.client.gcp.accessmanagement.enabled:false}"
+      + " and ${entropydata.client.gcp.accessmanagement.dispatcher.concurrency:1} > 1")
+  public AccessEventDispatcher accessEventDispatcher(GcpAccessManagement accessManagement,
+      GcpProperties gcpProperties, MeterRegistry meterRegistry) {
+    var dispatcher = gcpProperties.accessmanagement().dispatcher();
+    var eventDispatcher = new AccessEventDispatcher(accessManagement, dispatcher.concurrency(),
+        dispatcher.maxinflight());
+    eventDispatcher.setMeterRegistry(meterRegistry);
+    return eventDispatcher;
+  }
+
   @Bean(destroyMethod = "stop")
   @ConditionalOnProperty(value = "entropydata.client.gcp.accessmanagement.enabled", havingValue = "true")
   public EntropyDataEventListener entropyDataEventListener(EntropyDataClient client, GcpProperties gcpProperties,
-      BigQuery bigQuery, TaskExecutor taskExecutor) {
+      GcpAccessManagement accessManagement, ObjectProvider<AccessEventDispatcher> accessEventDispatcher,
+      TaskExecutor taskExecutor,
+      @Qualifier("accessManagementStateRepository") EntropyDataStateRepository stateRepository) {
     var connectorid = gcpProperties.accessmanagement().connectorid();
-    var stateRepository = new EntropyDataStateRepositoryInMemory(connectorid);
-    var eventHandler = new GcpAccessManagement(client, bigQuery, gcpProperties.accessmanagement().role(),
-        gcpProperties.accessmanagement().mapping().team().customfield(),
-        gcpProperties.accessmanagement().mapping().dataproduct().customfield());
-    var listener = new EntropyDataEventListener(connectorid, "accessmanagement", client, eventHandler, stateRepository);
+    var eventDispatcher = accessEventDispatcher.getIfAvailable();
+    var listener = eventDispatcher == null
+        ? new EntropyDataEventListener(connectorid, "accessmanagement", client, accessManagement, stateRepository)
+        : new EntropyDataEventListener(connectorid, "accessmanagement", client, eventDispatcher,
+            eventDispatcher.checkpointing(stateRepository));
     taskExecutor.execute(listener::start);
     return listener;
   }
@@ -51,15 +107,106 @@ public class Application {
   @Bean(destroyMethod = "stop")
   @ConditionalOnProperty(value = "entropydata.client.gcp.assets.enabled", havingValue = "true")
   public EntropyDataAssetsSynchronizer entropyDataAssetsSynchronizer(EntropyDataClient client, GcpProperties gcpProperties,
-      BigQuery bigQuery, TaskExecutor taskExecutor) {
+      BigQuery bigQuery, TaskExecutor taskExecutor, ObjectProvider<ProjectDiscovery> projectDiscovery,
+      ObjectProvider<ReplicaMembership> replicaMembership, MeterRegistry meterRegistry,
+      @Qualifier("assetsStateRepository") EntropyDataStateRepository stateRepository,
+      @Value("${entropydata.client.host}") String host, @Value("${entropydata.client.apikey}") String apiKey) {
     var connectorid = gcpProperties.assets().connectorid();
-    var stateRepository = new EntropyDataStateRepositoryInMemory(connectorid);
+    var replica = replicaMembership.getIfAvailable();
     var assetsProvider = new GcpAssetsProvider(bigQuery, gcpProperties.assets().projects(), stateRepository);
+    assetsProvider.setMeterRegistry(meterRegistry);
+    assetsProvider.setPollInterval(gcpProperties.assets().pollinterval());
+    var adaptivePolling = gcpProperties.assets().adaptivepolling();
+    if (adaptivePolling.enabled()) {
+      assetsProvider.setPollSchedule(new DatasetPollSchedule(gcpProperties.assets().pollinterval(),
+          adaptivePolling.maxstaleness(), adaptivePolling.jitter()));
+    }
+    var budget = gcpProperties.assets().budget();
+    assetsProvider.setRunBudget(budget.maxduration(), budget.maxcalls());
+    assetsProvider.setParallelism(gcpProperties.assets().parallelism());
+    assetsProvider.setHarvestMode(gcpProperties.assets().harvestmode());
+    assetsProvider.setPrefilter(gcpProperties.assets().prefilter());
+    assetsProvider.setCheckpointInterval(gcpProperties.assets().checkpointinterval());
+    assetsProvider.setSuppressUnchanged(gcpProperties.assets().suppressunchanged());
+    assetsProvider.setDetectDeletions(gcpProperties.assets().detectdeletions());
+    assetsProvider.setCollapseShards(gcpProperties.assets().collapseshards());
+    var datasets = gcpProperties.assets().datasets();
+    var tables = gcpProperties.assets().tables();
+    assetsProvider.setFilter(new AssetFilter(datasets.allowlist(), datasets.denylist(), tables.allowlist(),
+        tables.denylist(), datasets.labels()));
+    var pipeline = gcpProperties.assets().pipeline();
+    assetsProvider.setStageConcurrency(Stage.LIST_DATASETS, pipeline.listdatasets());
+    assetsProvider.setStageConcurrency(Stage.LIST_TABLES, pipeline.listtables());
+    assetsProvider.setStageConcurrency(Stage.FETCH, pipeline.fetch());
+    assetsProvider.setStageConcurrency(Stage.MAP, pipeline.map());
+    assetsProvider.setStageConcurrency(Stage.UPLOAD, pipeline.upload());
+    assetsProvider.setQueueCapacity(pipeline.queuecapacity());
+    projectDiscovery.ifAvailable(assetsProvider::setProjectDiscovery);
+    assetsProvider.setReplicaMembership(replica);
+    var batching = gcpProperties.assets().batching();
+    if (batching.enabled()) {
+      var bulkAssetsClient = new EntropyDataBulkAssetsClient(host, apiKey, batching.path(), batching.timeout(),
+          client.getApiClient().getObjectMapper());
+      bulkAssetsClient.setMeterRegistry(meterRegistry);
+      assetsProvider.setBatching(bulkAssetsClient, new BatchingAssetUploader.Settings(batching.maxassets(),
+          batching.maxbytes(), batching.maxdelay(), batching.maxinflight()));
+    }
     var assetsSynchronizer = new EntropyDataAssetsSynchronizer(connectorid, client, assetsProvider);
     taskExecutor.execute(assetsSynchronizer::start);
     return assetsSynchronizer;
   }
 
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty("entropydata.client.gcp.assets.discovery.parents")
+  public ProjectDiscovery projectDiscovery(GcpProperties gcpProperties) throws IOException {
+    var discovery = gcpProperties.assets().discovery();
+    return new ProjectDiscovery(ProjectsClient.create(), FoldersClient.create(), discovery.parents(),
+        discovery.refreshinterval(), discovery.parallelism());
+  }
+
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty(value = "entropydata.client.gcp.assets.sharding.enabled", havingValue = "true")
+  public ReplicaMembership replicaMembership(GcpProperties gcpProperties) throws IOException {
+    var sharding = gcpProperties.assets().sharding();
+    var replicaId = sharding.replicaid();
+    if (replicaId.isBlank()) {
+      replicaId = System.getenv().getOrDefault("HOSTNAME", InetAddress.getLocalHost().getHostName());
+    }
+    var membership = new ReplicaMembership(Path.of(sharding.directory()), replicaId, sharding.leaseduration(),
+        sharding.virtualnodes());
+    membership.start();
+    return membership;
+  }
+
+  /**
+   * The state repositories are beans, so that a journal is closed, and its last entries forced to disk, after the
+   * listener or synchronizer using it was stopped. Their destroy method is inferred, as only a journal has one.
+   */
+  @Bean
+  @ConditionalOnProperty(value = "entropydata.client.gcp.accessmanagement.enabled", havingValue = "true")
+  public EntropyDataStateRepository accessManagementStateRepository(GcpProperties gcpProperties) {
+    return stateRepository(gcpProperties.state(), gcpProperties.accessmanagement().connectorid());
+  }
+
+  @Bean
+  @ConditionalOnProperty(value = "entropydata.client.gcp.assets.enabled", havingValue = "true")
+  public EntropyDataStateRepository assetsStateRepository(GcpProperties gcpProperties,
+      ObjectProvider<ReplicaMembership> replicaMembership) {
+    var connectorid = gcpProperties.assets().connectorid();
+    var replica = replicaMembership.getIfAvailable();
+    // every replica keeps its own watermarks for the datasets assigned to it
+    return stateRepository(gcpProperties.state(),
+        replica == null ? connectorid : connectorid + "-" + replica.replicaId());
+  }
+
+  private static EntropyDataStateRepository stateRepository(StateProperties stateProperties, String connectorid) {
+    if (stateProperties.type() == StateType.FILE) {
+      return new JournalStateRepository(Path.of(stateProperties.directory()), connectorid,
+          stateProperties.syncinterval(), stateProperties.compactionthreshold());
+    }
+    return new EntropyDataStateRepositoryInMemory(connectorid);
+  }
+
   @Bean
   public TaskExecutor taskExecutor() {
     ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
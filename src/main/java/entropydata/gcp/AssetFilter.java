@@ -0,0 +1,65 @@
+package entropydata.gcp;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Selects the datasets and tables to synchronize. Dataset patterns match the dataset name. Table patterns match the
+ * table name, or {@code dataset.table} if the pattern contains a dot. Excludes take precedence over includes.
+ * <p>
+ * Label filters of the form {@code key} or {@code key:value} are pushed down to the dataset listing, so datasets
+ * without all of the labels are never returned by BigQuery.
+ */
+public class AssetFilter {
+
+  public static final AssetFilter ALL = new AssetFilter(List.of("*"), List.of(), List.of("*"), List.of(), List.of());
+
+  private final GlobMatcher datasetIncludes;
+  private final GlobMatcher datasetExcludes;
+  private final GlobMatcher tableIncludes;
+  private final GlobMatcher qualifiedTableIncludes;
+  private final GlobMatcher tableExcludes;
+  private final GlobMatcher qualifiedTableExcludes;
+  private final String labelFilter;
+
+  public AssetFilter(List<String> datasetIncludes, List<String> datasetExcludes, List<String> tableIncludes,
+      List<String> tableExcludes, List<String> labels) {
+    this.datasetIncludes = GlobMatcher.compile(datasetIncludes);
+    this.datasetExcludes = GlobMatcher.compile(datasetExcludes);
+    this.tableIncludes = GlobMatcher.compile(unqualified(tableIncludes));
+    this.qualifiedTableIncludes = GlobMatcher.compile(qualified(tableIncludes));
+    this.tableExcludes = GlobMatcher.compile(unqualified(tableExcludes));
+    this.qualifiedTableExcludes = GlobMatcher.compile(qualified(tableExcludes));
+    this.labelFilter = labels == null || labels.isEmpty() ? null : labels.stream()
+        .map(label -> "labels." + label)
+        .collect(Collectors.joining(" "));
+  }
+
+  public boolean includesDataset(String datasetName) {
+    return datasetIncludes.matches(datasetName) && !datasetExcludes.matches(datasetName);
+  }
+
+  public boolean includesTable(String datasetName, String tableName) {
+    var qualifiedName = datasetName + "." + tableName;
+    if (tableExcludes.matches(tableName) || qualifiedTableExcludes.matches(qualifiedName)) {
+      return false;
+    }
+    return tableIncludes.matches(tableName) || qualifiedTableIncludes.matches(qualifiedName);
+  }
+
+  /**
+   * @return the filter expression for {@code DatasetListOption.labelFilter}, or {@code null} if there are no labels
+   */
+  public String labelFilter() {
+    return labelFilter;
+  }
+
+  private static List<String> unqualified(List<String> patterns) {
+    return patterns == null ? List.of() : patterns.stream().filter(pattern -> !pattern.contains(".")).toList();
+  }
+
+  private static List<String> qualified(List<String> patterns) {
+    return patterns == null ? List.of() : patterns.stream().filter(pattern -> pattern.contains(".")).toList();
+  }
+
+}
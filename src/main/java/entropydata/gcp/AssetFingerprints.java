@@ -0,0 +1,114 @@
+package entropydata.gcp;
+
+import entropydata.sdk.client.model.Asset;
+import entropydata.sdk.client.model.AssetColumnsInner;
+import entropydata.sdk.client.model.AssetInfo;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Remembers a 64-bit content fingerprint per asset id, so that assets whose content did not change since their last
+ * upload can be suppressed. BigQuery bumps the modification time of a table on every load or streaming insert, so the
+ * watermark alone re-uploads busy tables on every poll.
+ * <p>
+ * The fingerprint covers the asset info, columns and properties, but not the {@code updatedAt} property. Ids are stored as 64-bit
+ * hashes in a {@link LongLongMap}, which costs between 21 and 43 bytes per asset. Fingerprints are kept in memory
+ * only; after a restart, every asset at or after the watermark is uploaded once again.
+ */
+public class AssetFingerprints {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final LongLongMap fingerprints = new LongLongMap(1024);
+
+  /**
+   * Records the fingerprint of the asset.
+   *
+   * @return whether the asset is new or its content differs from the last recorded one
+   */
+  public boolean update(Asset asset) {
+    long idHash = idHash(asset.getId());
+    long fingerprint = fingerprint(asset);
+    synchronized (fingerprints) {
+      if (fingerprints.containsKey(idHash) && fingerprints.get(idHash, 0) == fingerprint) {
+        return false;
+      }
+      fingerprints.put(idHash, fingerprint);
+      return true;
+    }
+  }
+
+  public void remove(String assetId) {
+    synchronized (fingerprints) {
+      fingerprints.remove(idHash(assetId));
+    }
+  }
+
+  public int size() {
+    synchronized (fingerprints) {
+      return fingerprints.size();
+    }
+  }
+
+  static long idHash(String id) {
+    long hash = mix(hash(FNV_OFFSET_BASIS, id));
+    // 0 marks an empty slot in LongLongMap
+    return hash == 0 ? 1 : hash;
+  }
+
+  static long fingerprint(Asset asset) {
+    long hash = FNV_OFFSET_BASIS;
+    AssetInfo info = asset.getInfo();
+    if (info != null) {
+      hash = hash(hash, info.getName());
+      hash = hash(hash, info.getQualifiedName());
+      hash = hash(hash, info.getType());
+      hash = hash(hash, info.getStatus());
+      hash = hash(hash, info.getSource());
+      hash = hash(hash, info.getDescription());
+    }
+    if (asset.getProperties() != null) {
+      for (var property : new TreeMap<>(asset.getProperties()).entrySet()) {
+        if (!property.getKey().equals("updatedAt")) {
+          hash = hash(hash, property.getKey());
+          hash = hash(hash, Objects.toString(property.getValue(), null));
+        }
+      }
+    }
+    if (asset.getColumns() != null) {
+      for (AssetColumnsInner column : asset.getColumns()) {
+        hash = hash(hash, column.getName());
+        hash = hash(hash, column.getType());
+        hash = hash(hash, column.getDescription());
+      }
+    }
+    return mix(hash);
+  }
+
+  /**
+   * FNV-1a over the UTF-16 code units of the value, followed by a terminator that distinguishes {@code null} from the
+   * empty string and separates adjacent values.
+   */
+  private static long hash(long hash, String value) {
+    if (value != null) {
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+        hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+      }
+    }
+    return (hash ^ (value == null ? 0x1ff : 0x100)) * FNV_PRIME;
+  }
+
+  // finalizer of MurmurHash3, spreads FNV's weak high bits
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+}
@@ -0,0 +1,108 @@
+package entropydata.gcp;
+
+import entropydata.sdk.EntropyDataAssetsProvider.AssetCallback;
+import entropydata.sdk.client.model.Asset;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Meters of the {@link GcpAssetsProvider}:
+ * <ul>
+ *   <li>{@code gcp.assets.sync.runs}: duration of complete runs</li>
+ *   <li>{@code gcp.assets.sync.projects}: time from the start of a run until a project is done, tagged with the
+ *   project</li>
+ *   <li>{@code gcp.assets.sync.lag}: time since the last complete run, or since the start if there was none</li>
+ *   <li>{@code gcp.assets.scanned}: datasets and tables found, tagged with the type</li>
+ *   <li>{@code gcp.assets.emitted}: assets uploaded or deleted, tagged with the operation</li>
+ *   <li>{@code gcp.assets.failures}: failed project listings and datasets, tagged with the scope</li>
+ * </ul>
+ */
+class AssetsMetrics {
+
+  private final MeterRegistry registry;
+  private final Timer runs;
+  private final Counter scannedDatasets;
+  private final Counter scannedTables;
+  private final Counter updatedAssets;
+  private final Counter deletedAssets;
+  private final Counter failedProjects;
+  private final Counter failedDatasets;
+  private final AtomicLong lastCompletedRunAt = new AtomicLong(System.currentTimeMillis());
+
+  AssetsMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    this.runs = Timer.builder("gcp.assets.sync.runs").register(registry);
+    this.scannedDatasets = Counter.builder("gcp.assets.scanned").tag("type", "dataset").register(registry);
+    this.scannedTables = Counter.builder("gcp.assets.scanned").tag("type", "table").register(registry);
+    this.updatedAssets = Counter.builder("gcp.assets.emitted").tag("operation", "update").register(registry);
+    this.deletedAssets = Counter.builder("gcp.assets.emitted").tag("operation", "delete").register(registry);
+    this.failedProjects = Counter.builder("gcp.assets.failures").tag("scope", "project").register(registry);
+    this.failedDatasets = Counter.builder("gcp.assets.failures").tag("scope", "dataset").register(registry);
+    TimeGauge.builder("gcp.assets.sync.lag", lastCompletedRunAt,
+            TimeUnit.MILLISECONDS, lastCompletedAt -> System.currentTimeMillis() - lastCompletedAt.get())
+        .register(registry);
+  }
+
+  void onRunCompleted(Duration duration) {
+    runs.record(duration);
+    lastCompletedRunAt.set(System.currentTimeMillis());
+  }
+
+  void onProjectCompleted(String projectId, Duration sinceRunStart) {
+    Timer.builder("gcp.assets.sync.projects").tag("project", projectId).register(registry).record(sinceRunStart);
+  }
+
+  /**
+   * @param assetId id of a dataset ({@code project:dataset}) or table ({@code project:dataset.table})
+   */
+  void onScanned(String assetId) {
+    if (GcpAssetsProvider.datasetKey(assetId).length() == assetId.length()) {
+      scannedDatasets.increment();
+    } else {
+      scannedTables.increment();
+    }
+  }
+
+  void onUploaded() {
+    updatedAssets.increment();
+  }
+
+  void onDeleted() {
+    deletedAssets.increment();
+  }
+
+  void onProjectFailed() {
+    failedProjects.increment();
+  }
+
+  void onDatasetsFailed(int count) {
+    failedDatasets.increment(count);
+  }
+
+  /**
+   * @return a callback that records its calls as Entropy Data API requests
+   */
+  AssetCallback timed(AssetCallback callback) {
+    return new AssetCallback() {
+      @Override
+      public void onAssetUpdated(Asset asset) {
+        ApiMetrics.runEntropyData(registry, "assets.update", () -> callback.onAssetUpdated(asset));
+      }
+
+      @Override
+      public void onAssetDeleted(String assetId) {
+        ApiMetrics.runEntropyData(registry, "assets.delete", () -> callback.onAssetDeleted(assetId));
+      }
+    };
+  }
+
+  MeterRegistry registry() {
+    return registry;
+  }
+
+}
@@ -0,0 +1,218 @@
+package entropydata.gcp;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watermarks and run cursor of the {@link GcpAssetsProvider}, stored in the state repository.
+ * <p>
+ * Every dataset has its own watermark, but the state only stores the exceptions: all datasets that were synchronized
+ * successfully in the last complete run share the floor watermark {@code lastUpdatedAt}, which is the start of that
+ * run. Only projects whose listing failed, datasets whose synchronization failed and datasets deferred by the
+ * {@link DatasetPollSchedule} keep an individual, older watermark. The state therefore grows with the number of
+ * exceptions, not with the number of datasets.
+ * <p>
+ * While a run is in progress, the state also contains its start time and, per project, the name of the last dataset
+ * of the completed prefix (datasets are processed in name order). An interrupted run resumes after that dataset. A
+ * run suspended by its budget additionally stores the next page token of each dataset whose table listing it stopped,
+ * and the run that continues it lists those datasets from that page on.
+ */
+class AssetsSyncState {
+
+  /**
+   * Modification times are set by BigQuery, the run start by the local clock; this margin absorbs clock skew.
+   */
+  static final long CLOCK_SKEW_MARGIN_MILLIS = Duration.ofMinutes(5).toMillis();
+
+  private static final String LAST_UPDATED_AT = "lastUpdatedAt";
+  private static final String PROJECT_WATERMARKS = "projectWatermarks";
+  private static final String DATASET_WATERMARKS = "datasetWatermarks";
+  private static final String RUN = "run";
+  private static final String RUN_STARTED_AT = "startedAt";
+  private static final String RUN_CURSOR = "cursor";
+  private static final String RUN_PAGE_TOKENS = "pageTokens";
+
+  private long lastUpdatedAt;
+  private final Map<String, Long> projectWatermarks;
+  private final Map<String, Long> datasetWatermarks;
+  private final long runStartedAt;
+  private final Map<String, String> cursor;
+  private final Map<String, String> pageTokens;
+  private final boolean resumed;
+
+  private final Set<String> failedProjects = new HashSet<>();
+  private final Set<String> listedDatasets = new HashSet<>();
+
+  private AssetsSyncState(long lastUpdatedAt, Map<String, Long> projectWatermarks, Map<String, Long> datasetWatermarks,
+      long runStartedAt, Map<String, String> cursor, Map<String, String> pageTokens, boolean resumed) {
+    this.lastUpdatedAt = lastUpdatedAt;
+    this.projectWatermarks = projectWatermarks;
+    this.datasetWatermarks = datasetWatermarks;
+    this.runStartedAt = runStartedAt;
+    this.cursor = cursor;
+    this.pageTokens = pageTokens;
+    this.resumed = resumed;
+  }
+
+  /**
+   * Loads the state and resumes the interrupted run, if there is one, or starts a new run at {@code now}.
+   */
+  @SuppressWarnings("unchecked")
+  static AssetsSyncState load(Map<String, Object> state, long now) {
+    long lastUpdatedAt = toLong(state.getOrDefault(LAST_UPDATED_AT, 0L));
+    var projectWatermarks = toLongMap((Map<String, Object>) state.get(PROJECT_WATERMARKS));
+    var datasetWatermarks = toLongMap((Map<String, Object>) state.get(DATASET_WATERMARKS));
+
+    var run = (Map<String, Object>) state.get(RUN);
+    if (run == null) {
+      return new AssetsSyncState(lastUpdatedAt, projectWatermarks, datasetWatermarks, now, new HashMap<>(),
+          new HashMap<>(), false);
+    }
+    var cursor = toStringMap((Map<String, Object>) run.get(RUN_CURSOR));
+    var pageTokens = toStringMap((Map<String, Object>) run.get(RUN_PAGE_TOKENS));
+    return new AssetsSyncState(lastUpdatedAt, projectWatermarks, datasetWatermarks, toLong(run.get(RUN_STARTED_AT)),
+        cursor, pageTokens, true);
+  }
+
+  boolean isResumed() {
+    return resumed;
+  }
+
+  long getRunStartedAt() {
+    return runStartedAt;
+  }
+
+  /**
+   * @return the watermark of the dataset, falling back to the watermark of its project and then to the floor
+   */
+  long getWatermark(String projectId, String datasetName) {
+    var datasetWatermark = datasetWatermarks.get(datasetKey(projectId, datasetName));
+    if (datasetWatermark != null) {
+      return datasetWatermark;
+    }
+    return projectWatermarks.getOrDefault(projectId, lastUpdatedAt);
+  }
+
+  /**
+   * @return the name of the last dataset of the project that was completed in this run, or {@code null}
+   */
+  String getCursor(String projectId) {
+    return cursor.get(projectId);
+  }
+
+  /**
+   * @return the page to continue the table listing of the dataset at, or {@code null} to list it from the start
+   */
+  String getPageToken(String projectId, String datasetName) {
+    return pageTokens.get(datasetKey(projectId, datasetName));
+  }
+
+  void onProjectListingFailed(String projectId) {
+    failedProjects.add(projectId);
+    projectWatermarks.putIfAbsent(projectId, lastUpdatedAt);
+  }
+
+  void onDatasetListed(String projectId, String datasetName) {
+    listedDatasets.add(datasetKey(projectId, datasetName));
+  }
+
+  /**
+   * Records the outcome of a dataset. A failed dataset keeps the watermark it was synchronized against.
+   */
+  void onDatasetCompleted(String projectId, String datasetName, long watermark, boolean failed) {
+    var key = datasetKey(projectId, datasetName);
+    pageTokens.remove(key);
+    if (failed) {
+      datasetWatermarks.put(key, watermark);
+    } else {
+      datasetWatermarks.remove(key);
+    }
+  }
+
+  /**
+   * Records a dataset that was skipped in this run. It keeps its watermark, so the next poll catches up.
+   */
+  void onDatasetDeferred(String projectId, String datasetName, long watermark) {
+    datasetWatermarks.put(datasetKey(projectId, datasetName), watermark);
+  }
+
+  /**
+   * Records a dataset whose table listing was stopped before {@code pageToken}. It keeps its watermark until the run
+   * that continues the listing completes it.
+   */
+  void onDatasetSuspended(String projectId, String datasetName, long watermark, String pageToken) {
+    var key = datasetKey(projectId, datasetName);
+    datasetWatermarks.put(key, watermark);
+    pageTokens.put(key, pageToken);
+  }
+
+  /**
+   * Moves the cursor of the project to {@code datasetName} unless it is already past it, which happens when a
+   * continued run completes a suspended dataset.
+   */
+  void advanceCursor(String projectId, String datasetName) {
+    cursor.merge(projectId, datasetName, (current, next) -> current.compareTo(next) >= 0 ? current : next);
+  }
+
+  /**
+   * Completes the run: the floor moves to the start of the run, and watermarks of projects and datasets that no longer
+   * exist are dropped.
+   */
+  void finishRun() {
+    lastUpdatedAt = Math.max(lastUpdatedAt, runStartedAt - CLOCK_SKEW_MARGIN_MILLIS);
+    projectWatermarks.keySet().retainAll(failedProjects);
+    datasetWatermarks.keySet().removeIf(key -> !mayStillExist(key));
+    cursor.clear();
+    pageTokens.clear();
+  }
+
+  /**
+   * @param datasetKey {@code project:dataset}
+   * @return whether the dataset was listed in this run, or belongs to a project whose listing failed
+   */
+  boolean mayStillExist(String datasetKey) {
+    return listedDatasets.contains(datasetKey)
+        || failedProjects.contains(datasetKey.substring(0, datasetKey.lastIndexOf(':')));
+  }
+
+  Map<String, Object> toMap(boolean runInProgress) {
+    var state = new HashMap<String, Object>();
+    state.put(LAST_UPDATED_AT, lastUpdatedAt);
+    state.put(PROJECT_WATERMARKS, new HashMap<>(projectWatermarks));
+    state.put(DATASET_WATERMARKS, new HashMap<>(datasetWatermarks));
+    if (runInProgress) {
+      state.put(RUN, Map.of(RUN_STARTED_AT, runStartedAt, RUN_CURSOR, new HashMap<>(cursor),
+          RUN_PAGE_TOKENS, new HashMap<>(pageTokens)));
+    }
+    return state;
+  }
+
+  private static String datasetKey(String projectId, String datasetName) {
+    return projectId + ":" + datasetName;
+  }
+
+  private static Map<String, String> toStringMap(Map<String, Object> map) {
+    var result = new HashMap<String, String>();
+    if (map != null) {
+      map.forEach((key, value) -> result.put(key, (String) value));
+    }
+    return result;
+  }
+
+  private static Map<String, Long> toLongMap(Map<String, Object> map) {
+    var result = new HashMap<String, Long>();
+    if (map != null) {
+      map.forEach((key, value) -> result.put(key, toLong(value)));
+    }
+    return result;
+  }
+
+  // state repositories that serialize to JSON may return small numbers as Integer
+  private static long toLong(Object value) {
+    return ((Number) value).longValue();
+  }
+
+}
@@ -0,0 +1,240 @@
+package entropydata.gcp;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import entropydata.gcp.EntropyDataBulkAssetsClient.BulkUploadFailedException;
+import entropydata.sdk.EntropyDataAssetsProvider.AssetCallback;
+import entropydata.sdk.client.model.Asset;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects assets into batches and uploads each batch with one bulk request. A batch is sent once it holds
+ * {@code maxAssets} assets or {@code maxBytes} bytes of JSON, or {@code maxDelay} after its first asset was added.
+ * Up to {@code maxInFlight} batches are sent concurrently; {@link #upload} blocks while all are in flight.
+ * <p>
+ * If the server rejects a batch as a whole (400, 413), that batch is uploaded asset by asset through the
+ * {@code fallback} callback, whose calls are serialized. If the server does not offer the bulk endpoint at all (404,
+ * 405, 501), all later batches are uploaded that way, too. A batch that failed temporarily (429, 5xx) is sent again up
+ * to {@value #MAX_ATTEMPTS} times, after the delay the server asked for with {@code Retry-After} or else after an
+ * exponential backoff. Its assets fail if it still could not be uploaded then, or if it failed with any other status,
+ * such as 401 or 403, as uploading its assets one by one would fail as well.
+ */
+public class BatchingAssetUploader implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(BatchingAssetUploader.class);
+
+  static final int MAX_ATTEMPTS = 4;
+  private static final Duration INITIAL_BACKOFF = Duration.ofSeconds(1);
+  private static final Duration MAX_BACKOFF = Duration.ofMinutes(1);
+
+  public record Settings(int maxAssets, int maxBytes, Duration maxDelay, int maxInFlight) {
+  }
+
+  private record PendingAsset(Asset asset, byte[] json, CompletableFuture<Void> result) {
+  }
+
+  private final EntropyDataBulkAssetsClient bulkClient;
+  private final AssetCallback fallback;
+  private final Settings settings;
+  private final Semaphore inFlight;
+  private final ExecutorService senders;
+  private final ScheduledExecutorService timer;
+  private final Object fallbackLock = new Object();
+  private volatile boolean bulkUnavailable;
+
+  private List<PendingAsset> batch = new ArrayList<>();
+  private int batchBytes;
+  private long batchGeneration;
+
+  public BatchingAssetUploader(EntropyDataBulkAssetsClient bulkClient, AssetCallback fallback, Settings settings) {
+    this.bulkClient = bulkClient;
+    this.fallback = fallback;
+    this.settings = settings;
+    this.inFlight = new Semaphore(settings.maxInFlight());
+    var threadCounter = new AtomicInteger();
+    this.senders = Executors.newFixedThreadPool(settings.maxInFlight(), runnable -> {
+      var thread = new Thread(runnable, "gcp-assets-bulk-" + threadCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "gcp-assets-bulk-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Adds the asset to the current batch.
+   *
+   * @return completes once the batch holding the asset was uploaded, or exceptionally if the upload failed
+   */
+  public synchronized CompletableFuture<Void> upload(Asset asset) throws InterruptedException {
+    byte[] json;
+    try {
+      json = bulkClient.toJson(asset);
+    } catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (!batch.isEmpty() && batchBytes + json.length + 1 > settings.maxBytes()) {
+      flush();
+    }
+    var result = new CompletableFuture<Void>();
+    batch.add(new PendingAsset(asset, json, result));
+    batchBytes += json.length + 1;
+    if (batch.size() == 1) {
+      long generation = batchGeneration;
+      timer.schedule(() -> flushIfStill(generation), settings.maxDelay().toMillis(), TimeUnit.MILLISECONDS);
+    }
+    if (batch.size() >= settings.maxAssets() || batchBytes >= settings.maxBytes()) {
+      flush();
+    }
+    return result;
+  }
+
+  /**
+   * Sends the current batch, waiting while {@code maxInFlight} batches are in flight.
+   */
+  public synchronized void flush() throws InterruptedException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    var sending = batch;
+    batch = new ArrayList<>();
+    batchBytes = 0;
+    batchGeneration++;
+    inFlight.acquire();
+    senders.execute(() -> {
+      try {
+        send(sending);
+      } finally {
+        inFlight.release();
+      }
+    });
+  }
+
+  /**
+   * Sends the current batch and waits until all batches have been uploaded.
+   */
+  @Override
+  public void close() {
+    try {
+      flush();
+      inFlight.acquire(settings.maxInFlight());
+      inFlight.release(settings.maxInFlight());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      timer.shutdownNow();
+      senders.shutdownNow();
+    }
+  }
+
+  private synchronized void flushIfStill(long generation) {
+    if (generation != batchGeneration) {
+      return;
+    }
+    try {
+      flush();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void send(List<PendingAsset> sending) {
+    if (!bulkUnavailable) {
+      try {
+        sendBatch(sending);
+        sending.forEach(pendingAsset -> pendingAsset.result().complete(null));
+        log.debug("Uploaded batch of {} assets", sending.size());
+        return;
+      } catch (BulkUploadFailedException e) {
+        if (e.isEndpointMissing()) {
+          log.warn("Bulk uploads are unavailable, falling back to single uploads: {}", e.getMessage());
+          bulkUnavailable = true;
+        } else if (e.isRejected()) {
+          log.warn("Uploading batch of {} assets one by one: {}", sending.size(), e.getMessage());
+        } else {
+          log.warn("Failed to upload batch of {} assets: {}", sending.size(), e.getMessage());
+          sending.forEach(pendingAsset -> pendingAsset.result().completeExceptionally(e));
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        sending.forEach(pendingAsset -> pendingAsset.result().completeExceptionally(e));
+        return;
+      } catch (Exception e) {
+        sending.forEach(pendingAsset -> pendingAsset.result().completeExceptionally(e));
+        return;
+      }
+    }
+    for (var pendingAsset : sending) {
+      try {
+        synchronized (fallbackLock) {
+          fallback.onAssetUpdated(pendingAsset.asset());
+        }
+        pendingAsset.result().complete(null);
+      } catch (RuntimeException e) {
+        pendingAsset.result().completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * Sends the batch, again while it fails temporarily and attempts are left.
+   */
+  private void sendBatch(List<PendingAsset> sending) throws IOException, InterruptedException {
+    var json = toJsonArray(sending);
+    for (int attempt = 1; ; attempt++) {
+      try {
+        bulkClient.upload(json);
+        return;
+      } catch (BulkUploadFailedException e) {
+        if (!e.isRetryable() || attempt >= MAX_ATTEMPTS) {
+          throw e;
+        }
+        var delay = backoff(attempt, e.getRetryAfter());
+        log.debug("Sending batch of {} assets again in {} after status {}", sending.size(), delay, e.getStatus());
+        Thread.sleep(delay.toMillis());
+      }
+    }
+  }
+
+  static Duration backoff(int attempt, Duration retryAfter) {
+    var delay = retryAfter != null ? retryAfter : INITIAL_BACKOFF.multipliedBy(1L << Math.min(attempt - 1, 20));
+    return delay.compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : delay;
+  }
+
+  private static byte[] toJsonArray(List<PendingAsset> sending) {
+    int length = 1;
+    for (var pendingAsset : sending) {
+      length += pendingAsset.json().length + 1;
+    }
+    var json = new byte[length];
+    json[0] = '[';
+    int position = 1;
+    for (var pendingAsset : sending) {
+      if (position > 1) {
+        json[position++] = ',';
+      }
+      System.arraycopy(pendingAsset.json(), 0, json, position, pendingAsset.json().length);
+      position += pendingAsset.json().length;
+    }
+    json[position] = ']';
+    return json;
+  }
+
+}
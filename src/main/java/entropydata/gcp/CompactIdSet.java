@@ -0,0 +1,150 @@
+package entropydata.gcp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Immutable sorted set of ids, stored as concatenated UTF-8 bytes plus an offset array instead of one {@code String}
+ * per id. Memory is the total id length plus 4 bytes per id, and two sets are diffed with a single merge pass.
+ */
+class CompactIdSet {
+
+  static final CompactIdSet EMPTY = new CompactIdSet(new byte[0], new int[] {0});
+
+  private final byte[] data;
+  // id i spans data[offsets[i]] to data[offsets[i + 1]]
+  private final int[] offsets;
+
+  private CompactIdSet(byte[] data, int[] offsets) {
+    this.data = data;
+    this.offsets = offsets;
+  }
+
+  int size() {
+    return offsets.length - 1;
+  }
+
+  String get(int index) {
+    return new String(data, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+  }
+
+  boolean contains(String id) {
+    var bytes = id.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = size() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = Arrays.compareUnsigned(data, offsets[middle], offsets[middle + 1], bytes, 0, bytes.length);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Calls the consumer for every id of this set that is not contained in {@code other}, in sorted order.
+   */
+  void forEachMissingFrom(CompactIdSet other, Consumer<String> consumer) {
+    int j = 0;
+    for (int i = 0; i < size(); i++) {
+      int comparison = -1;
+      while (j < other.size() && (comparison = compare(this, i, other, j)) > 0) {
+        j++;
+      }
+      if (j == other.size() || comparison < 0) {
+        consumer.accept(get(i));
+      }
+    }
+  }
+
+  private static int compare(CompactIdSet a, int i, CompactIdSet b, int j) {
+    return Arrays.compareUnsigned(a.data, a.offsets[i], a.offsets[i + 1], b.data, b.offsets[j], b.offsets[j + 1]);
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Collects ids in insertion order into a growable byte buffer. Thread-safe.
+   */
+  static class Builder {
+
+    private byte[] data = new byte[4096];
+    private int length;
+    private int[] offsets = new int[256];
+    private int size;
+
+    synchronized void add(String id) {
+      var bytes = id.getBytes(StandardCharsets.UTF_8);
+      if (length + bytes.length > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length << 1, length + bytes.length));
+      }
+      if (size + 1 == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length << 1);
+      }
+      System.arraycopy(bytes, 0, data, length, bytes.length);
+      length += bytes.length;
+      offsets[++size] = length;
+    }
+
+    /**
+     * Sorts and deduplicates the ids collected so far. The builder can be used further afterwards.
+     */
+    synchronized CompactIdSet build() {
+      var order = new int[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      mergeSort(order, new int[size], 0, size);
+
+      var sortedData = new byte[length];
+      var sortedOffsets = new int[size + 1];
+      int sortedLength = 0;
+      int sortedSize = 0;
+      for (int i = 0; i < size; i++) {
+        int id = order[i];
+        int idLength = offsets[id + 1] - offsets[id];
+        if (sortedSize > 0 && Arrays.equals(data, offsets[id], offsets[id + 1],
+            sortedData, sortedOffsets[sortedSize - 1], sortedOffsets[sortedSize])) {
+          continue;
+        }
+        System.arraycopy(data, offsets[id], sortedData, sortedLength, idLength);
+        sortedLength += idLength;
+        sortedOffsets[++sortedSize] = sortedLength;
+      }
+      return new CompactIdSet(Arrays.copyOf(sortedData, sortedLength), Arrays.copyOf(sortedOffsets, sortedSize + 1));
+    }
+
+    // sorts id indices without boxing them for a Comparator
+    private void mergeSort(int[] order, int[] buffer, int from, int to) {
+      if (to - from < 2) {
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      mergeSort(order, buffer, from, middle);
+      mergeSort(order, buffer, middle, to);
+      System.arraycopy(order, from, buffer, from, to - from);
+      int left = from;
+      int right = middle;
+      for (int i = from; i < to; i++) {
+        if (right == to || (left < middle && compare(buffer[left], buffer[right]) <= 0)) {
+          order[i] = buffer[left++];
+        } else {
+          order[i] = buffer[right++];
+        }
+      }
+    }
+
+    private int compare(int a, int b) {
+      return Arrays.compareUnsigned(data, offsets[a], offsets[a + 1], data, offsets[b], offsets[b + 1]);
+    }
+  }
+
+}
@@ -0,0 +1,51 @@
+package entropydata.gcp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys to members so that a joining or leaving member only moves about {@code 1/n} of the keys. Each member is
+ * placed on the ring at {@code virtualNodes} positions, and a key belongs to the member at the first position at or
+ * after the hash of the key. Hashes are stable across JVMs, so all replicas that see the same members agree on the
+ * owner of every key.
+ */
+class ConsistentHashRing {
+
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+
+  ConsistentHashRing(Collection<String> members, int virtualNodes) {
+    if (members.isEmpty()) {
+      throw new IllegalArgumentException("ring must have at least one member");
+    }
+    for (var member : members) {
+      for (int i = 0; i < virtualNodes; i++) {
+        // on collisions, the smaller member id wins on every replica
+        ring.merge(hash(member + "#" + i), member, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+      }
+    }
+  }
+
+  String ownerOf(String key) {
+    var entry = ring.ceilingEntry(hash(key));
+    return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+  }
+
+  /**
+   * FNV-1a over the UTF-8 bytes, followed by the MurmurHash3 finalizer to spread similar keys over the ring.
+   */
+  static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+}
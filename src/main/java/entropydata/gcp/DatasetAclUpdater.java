@@ -0,0 +1,122 @@
+package entropydata.gcp;
+
+import com.google.cloud.bigquery.Acl;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.DatasetId;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-modify-write of a dataset ACL that only succeeds if nobody else wrote the dataset in between. The dataset is
+ * read with its etag, which the update sends as {@code If-Match} (see {@link IfMatchTransportOptions}, which the
+ * BigQuery client must be built with). If the dataset changed since the read, BigQuery rejects the update with 412
+ * Precondition Failed, and the change is applied again to a fresh read after a short random backoff, at most
+ * {@code maxAttempts} times in total. Rejected updates are counted as {@code gcp.access.acl.conflicts}. Reads and
+ * writes go through the given client, so that its rate limit and metrics cover every attempt.
+ */
+class DatasetAclUpdater {
+
+  private static final Logger log = LoggerFactory.getLogger(DatasetAclUpdater.class);
+
+  static final int MAX_ATTEMPTS = 5;
+  static final Duration BACKOFF = Duration.ofMillis(50);
+
+  private static final int PRECONDITION_FAILED = 412;
+
+  enum Outcome {
+    /**
+     * The ACL was changed.
+     */
+    APPLIED,
+    /**
+     * The entity already had, or already did not have, the role.
+     */
+    UNCHANGED,
+    DATASET_NOT_FOUND
+  }
+
+  private final BigQuery bigQuery;
+  private final int maxAttempts;
+  private final Duration backoff;
+  private volatile MeterRegistry meterRegistry;
+
+  DatasetAclUpdater(BigQuery bigQuery, MeterRegistry meterRegistry) {
+    this(bigQuery, MAX_ATTEMPTS, BACKOFF, meterRegistry);
+  }
+
+  DatasetAclUpdater(BigQuery bigQuery, int maxAttempts, Duration backoff, MeterRegistry meterRegistry) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be at least 1");
+    }
+    this.bigQuery = bigQuery;
+    this.maxAttempts = maxAttempts;
+    this.backoff = backoff;
+    this.meterRegistry = meterRegistry;
+  }
+
+  void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * @param change modifies a copy of the current ACL and returns whether it changed it. Called once per attempt, so it
+   *     must compute its result from the given ACL alone.
+   * @throws BigQueryException if the dataset could not be read or written, or still conflicted after
+   *     {@code maxAttempts} attempts
+   */
+  Outcome update(DatasetId datasetId, Predicate<List<Acl>> change) {
+    for (int attempt = 1; ; attempt++) {
+      var dataset = bigQuery.getDataset(datasetId, GcpAccessManagement.ACL_FIELDS);
+      if (dataset == null) {
+        return Outcome.DATASET_NOT_FOUND;
+      }
+      var acl = dataset.getAcl() == null ? new ArrayList<Acl>() : new ArrayList<>(dataset.getAcl());
+      if (!change.test(acl)) {
+        return Outcome.UNCHANGED;
+      }
+      try {
+        var updated = dataset.toBuilder().setAcl(acl).build();
+        // through the given client rather than Dataset.update, which bypasses the rate limiter and the metrics
+        IfMatchTransportOptions.withIfMatch(dataset.getEtag(),
+            () -> bigQuery.update(updated, GcpAccessManagement.ACL_FIELDS));
+        return Outcome.APPLIED;
+      } catch (BigQueryException e) {
+        if (e.getCode() != PRECONDITION_FAILED) {
+          throw e;
+        }
+        meterRegistry.counter("gcp.access.acl.conflicts").increment();
+        if (attempt >= maxAttempts) {
+          log.warn("Giving up to update ACL of dataset {} after {} conflicting updates", datasetId, attempt);
+          throw e;
+        }
+        log.debug("ACL of dataset {} changed since it was read, retrying", datasetId);
+        sleep(attempt);
+      }
+    }
+  }
+
+  /**
+   * Waits a random time up to {@code attempt} times the backoff, so that writers that conflicted do not meet again.
+   */
+  private void sleep(int attempt) {
+    long maxNanos = backoff.toNanos() * attempt;
+    if (maxNanos <= 0) {
+      return;
+    }
+    try {
+      long nanos = ThreadLocalRandom.current().nextLong(maxNanos);
+      Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while updating an ACL", e);
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+package entropydata.gcp;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Decides per dataset whether it is polled in a run, based on how often it changed in the past. The change times are
+ * the modification times that BigQuery reports for the dataset and its tables.
+ * <p>
+ * The expected time between changes is an exponentially weighted average of the observed intervals, but at least the
+ * time since the last change, so datasets that stopped changing cool down. A dataset is polled again after half of that
+ * time, bounded by {@code minInterval} and {@code maxStaleness}, and spread by {@code jitter} so that datasets that were
+ * first seen together do not stay in lockstep. Unknown datasets and datasets that failed are always due. The schedule
+ * is kept in memory, so all datasets are due after a restart, and datasets that were deleted or are no longer included
+ * are dropped from it by {@link #retainOnly} at the end of each completed run.
+ */
+public class DatasetPollSchedule {
+
+  private static final double SMOOTHING = 0.3;
+
+  private final long minIntervalMillis;
+  private final long maxStalenessMillis;
+  private final double jitter;
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  private static class Entry {
+    final long observedSince;
+    long lastChangeAt;
+    double averageChangeInterval;
+    long nextPollAt;
+
+    Entry(long observedSince) {
+      this.observedSince = observedSince;
+    }
+  }
+
+  /**
+   * @param jitter fraction by which poll intervals are randomly shortened or lengthened, e.g. {@code 0.1}
+   */
+  public DatasetPollSchedule(Duration minInterval, Duration maxStaleness, double jitter) {
+    if (jitter < 0 || jitter >= 1) {
+      throw new IllegalArgumentException("jitter must be at least 0 and less than 1, but was " + jitter);
+    }
+    this.minIntervalMillis = minInterval.toMillis();
+    this.maxStalenessMillis = maxStaleness.toMillis();
+    this.jitter = jitter;
+  }
+
+  /**
+   * @param datasetKey {@code project:dataset}
+   */
+  synchronized boolean isDue(String datasetKey, long now) {
+    var entry = entries.get(datasetKey);
+    return entry == null || entry.nextPollAt <= now;
+  }
+
+  /**
+   * Records a successful poll and schedules the next one.
+   *
+   * @param lastChangeAt the latest modification time of the dataset and its tables seen in this poll, or {@code null}
+   *     if nothing changed since the previous poll
+   */
+  synchronized void onPolled(String datasetKey, long now, Long lastChangeAt) {
+    var entry = entries.computeIfAbsent(datasetKey, key -> new Entry(now));
+    if (lastChangeAt != null && lastChangeAt > entry.lastChangeAt) {
+      if (entry.lastChangeAt > 0) {
+        double interval = lastChangeAt - entry.lastChangeAt;
+        entry.averageChangeInterval = entry.averageChangeInterval == 0
+            ? interval : SMOOTHING * interval + (1 - SMOOTHING) * entry.averageChangeInterval;
+      }
+      entry.lastChangeAt = lastChangeAt;
+    }
+    // without a known change, the dataset has been unchanged at least since it was first polled
+    double expectedChangeInterval = entry.lastChangeAt == 0
+        ? now - entry.observedSince : Math.max(entry.averageChangeInterval, now - entry.lastChangeAt);
+    double interval = Math.min(maxStalenessMillis, Math.max(minIntervalMillis, expectedChangeInterval / 2));
+    if (jitter > 0) {
+      interval *= 1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter);
+    }
+    // jitter must not exceed the staleness bound
+    entry.nextPollAt = now + (long) Math.min(maxStalenessMillis, interval);
+  }
+
+  /**
+   * Forgets the datasets that {@code retained} rejects.
+   */
+  synchronized void retainOnly(Predicate<String> retained) {
+    entries.keySet().removeIf(datasetKey -> !retained.test(datasetKey));
+  }
+
+}
@@ -0,0 +1,163 @@
+package entropydata.gcp;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import entropydata.sdk.client.model.Asset;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads many assets to Entropy Data with one gzip-compressed request. The SDK client only offers single-asset
+ * uploads, so this client talks to the bulk endpoint directly, serializing the assets with the object mapper of the SDK
+ * client, so that they are sent exactly like single uploads.
+ */
+public class EntropyDataBulkAssetsClient {
+
+  private final HttpClient httpClient;
+  private final URI uri;
+  private final String apiKey;
+  private final Duration timeout;
+  private final ObjectMapper objectMapper;
+  private MeterRegistry meterRegistry = new CompositeMeterRegistry();
+
+  /**
+   * @param objectMapper the object mapper of the SDK client, see {@code EntropyDataClient.getApiClient()}
+   */
+  public EntropyDataBulkAssetsClient(String host, String apiKey, String path, Duration timeout,
+      ObjectMapper objectMapper) {
+    this.httpClient = HttpClient.newBuilder().connectTimeout(timeout).build();
+    this.uri = URI.create(host.replaceAll("/+$", "") + path);
+    this.apiKey = apiKey;
+    this.timeout = timeout;
+    this.objectMapper = objectMapper;
+  }
+
+  /**
+   * Records the bulk requests as Entropy Data API requests with operation {@code assets.bulk}.
+   */
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * @return the asset as JSON, as the SDK client would send it
+   */
+  public byte[] toJson(Asset asset) throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(asset);
+  }
+
+  /**
+   * @param assetsJson a JSON array of assets
+   * @throws BulkUploadFailedException if the server did not accept the batch
+   */
+  public void upload(byte[] assetsJson) throws IOException, InterruptedException {
+    var request = HttpRequest.newBuilder(uri)
+        .timeout(timeout)
+        .header("x-api-key", apiKey)
+        .header("Content-Type", "application/json")
+        .header("Content-Encoding", "gzip")
+        .POST(HttpRequest.BodyPublishers.ofByteArray(gzip(assetsJson)))
+        .build();
+    long start = System.nanoTime();
+    HttpResponse<String> response;
+    try {
+      response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    } catch (IOException e) {
+      ApiMetrics.recordEntropyData(meterRegistry, "assets.bulk", "error", start);
+      throw e;
+    }
+    int status = response.statusCode();
+    ApiMetrics.recordEntropyData(meterRegistry, "assets.bulk",
+        status >= 200 && status < 300 ? "success" : Integer.toString(status), start);
+    if (status < 200 || status >= 300) {
+      throw new BulkUploadFailedException(status, retryAfter(response),
+          "Bulk upload to " + uri + " failed with status " + status + ": " + response.body());
+    }
+  }
+
+  /**
+   * @return the delay requested by the {@code Retry-After} header, in seconds or as HTTP date, or null if there is none
+   */
+  static Duration retryAfter(HttpResponse<?> response) {
+    var value = response.headers().firstValue("Retry-After").map(String::trim).orElse(null);
+    if (value == null || value.isEmpty()) {
+      return null;
+    }
+    try {
+      return Duration.ofSeconds(Math.max(0, Long.parseLong(value)));
+    } catch (NumberFormatException e) {
+      // not in seconds, so it has to be an HTTP date
+    }
+    try {
+      var delay = Duration.between(Instant.now(), ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME));
+      return delay.isNegative() ? Duration.ZERO : delay;
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  private static byte[] gzip(byte[] bytes) throws IOException {
+    var buffer = new ByteArrayOutputStream(bytes.length / 4 + 64);
+    try (var gzip = new GZIPOutputStream(buffer)) {
+      gzip.write(bytes);
+    }
+    return buffer.toByteArray();
+  }
+
+  public static class BulkUploadFailedException extends IOException {
+
+    private final int status;
+    private final Duration retryAfter;
+
+    public BulkUploadFailedException(int status, Duration retryAfter, String message) {
+      super(message);
+      this.status = status;
+      this.retryAfter = retryAfter;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return the delay the server asked for before the batch is sent again, or null if it did not ask for one
+     */
+    public Duration getRetryAfter() {
+      return retryAfter;
+    }
+
+    /**
+     * @return whether the server does not offer the bulk endpoint at all, so that later batches fail as well
+     */
+    public boolean isEndpointMissing() {
+      return status == 404 || status == 405 || status == 501;
+    }
+
+    /**
+     * @return whether the server refused the batch as a whole, so that its assets may still be accepted one by one
+     */
+    public boolean isRejected() {
+      return status == 400 || status == 413;
+    }
+
+    /**
+     * @return whether the server was overloaded or failed temporarily, so that the same batch may be sent again
+     */
+    public boolean isRetryable() {
+      return status == 429 || (status >= 500 && !isEndpointMissing());
+    }
+  }
+
+}
@@ -5,129 +5,294 @@ import com.google.cloud.bigquery.Acl.Entity;
 import com.google.cloud.bigquery.Acl.Group;
 import com.google.cloud.bigquery.Acl.User;
 import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQuery.DatasetField;
+import com.google.cloud.bigquery.BigQuery.DatasetOption;
 import com.google.cloud.bigquery.DatasetId;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import entropydata.sdk.EntropyDataClient;
 import entropydata.sdk.EntropyDataEventHandler;
 import entropydata.sdk.client.model.Access;
 import entropydata.sdk.client.model.AccessActivatedEvent;
 import entropydata.sdk.client.model.AccessDeactivatedEvent;
-import entropydata.sdk.client.model.DataProduct;
+import entropydata.sdk.client.model.DataContract;
 import entropydata.sdk.client.model.Team;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class GcpAccessManagement implements EntropyDataEventHandler {
+public class GcpAccessManagement implements EntropyDataEventHandler,
+    AccessEventDispatcher.ResolvingEventHandler<GcpAccessManagement.ResolvedAccess> {
 
   private static final Logger log = LoggerFactory.getLogger(GcpAccessManagement.class);
 
+  // ACL changes only read and write the access list, not the whole dataset, and the etag that makes the write
+  // conditional
+  static final DatasetOption ACL_FIELDS = DatasetOption.fields(DatasetField.ACCESS, DatasetField.ETAG);
+
   private final EntropyDataClient client;
-  private final BigQuery bigQuery;
-  private final ObjectMapper objectMapper;
+  private final OutputPortResolver outputPortResolver;
+  private final DatasetAclUpdater aclUpdater;
 
   private final String teamCustomField;
   private final String dataProductCustomField;
   private final String role;
 
+  /**
+   * An access and the dataset it grants, or {@code null} as dataset if it has none.
+   */
+  public record ResolvedAccess(Access access, DatasetId datasetId) {
+  }
+
+  private MeterRegistry meterRegistry = new CompositeMeterRegistry();
+  private TtlCache<String, Object> dataProducts;
+  private TtlCache<String, DataContract> dataContracts;
+  private TtlCache<String, Team> teams;
+  private AclUpdateCoalescer aclUpdates;
+
   public GcpAccessManagement(EntropyDataClient client, BigQuery bigQuery, String role, String teamCustomField, String dataProductCustomField) {
     this.client = client;
-    this.bigQuery = bigQuery;
-    this.objectMapper = client.getApiClient().getObjectMapper();
+    this.outputPortResolver = new OutputPortResolver(client.getApiClient().getObjectMapper());
+    this.aclUpdater = new DatasetAclUpdater(bigQuery, meterRegistry);
     this.role = role;
     this.teamCustomField = teamCustomField;
     this.dataProductCustomField = dataProductCustomField;
   }
 
+  /**
+   * Records the processing time of access events as timer {@code gcp.access.events} (tagged with the event type and
+   * the outcome {@code success}, {@code skipped} or {@code error}, with a percentile histogram), granted and revoked
+   * permissions as counters {@code gcp.access.grants} and {@code gcp.access.revokes}, ACL updates that conflicted with
+   * a concurrent change as counter {@code gcp.access.acl.conflicts}, and the calls to Entropy Data as
+   * {@link ApiMetrics}.
+   */
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+    aclUpdater.setMeterRegistry(meterRegistry);
+    bindCaches();
+    if (aclUpdates != null) {
+      aclUpdates.setMeterRegistry(meterRegistry);
+    }
+  }
+
+  /**
+   * Applies the grants and revokes of concurrently processed events to the same dataset with one ACL update, collected
+   * for {@code window} and at most {@code maxChanges} at a time (see {@link AclUpdateCoalescer}). Besides saving
+   * round trips and staying below the metadata update rate limit of a dataset, concurrent events then share one update
+   * instead of waiting for each other's. Each event still waits for the update holding its change. An
+   * {@link AccessEventDispatcher} processes the events of a dataset one after another, so their changes are not
+   * combined. {@link Duration#ZERO} disables batching, which is the default.
+   */
+  public void setAclBatching(Duration window, int maxChanges) {
+    if (aclUpdates != null) {
+      aclUpdates.close();
+      aclUpdates = null;
+    }
+    if (!window.isZero()) {
+      aclUpdates = new AclUpdateCoalescer(aclUpdater, new AclUpdateCoalescer.Settings(window, maxChanges),
+          meterRegistry);
+    }
+  }
+
+  /**
+   * Caches data products, data contracts and teams for {@code ttl}, at most {@code maxSize} of each, so that a burst of
+   * events for the same data products fetches each of them once. Concurrent lookups of the same id share one request.
+   * A changed principal or output port therefore takes effect after at most {@code ttl}, or immediately after an
+   * invalidation. {@link Duration#ZERO} disables caching. Nothing is cached until this is called, but the application
+   * calls it with {@code entropydata.client.gcp.accessmanagement.cache.ttl}, which defaults to one minute. See
+   * {@link TtlCache} for the metrics.
+   */
+  public void setCache(Duration ttl, int maxSize) {
+    if (ttl.isZero()) {
+      dataProducts = null;
+      dataContracts = null;
+      teams = null;
+      return;
+    }
+    dataProducts = new TtlCache<>("dataproducts", ttl, maxSize);
+    dataContracts = new TtlCache<>("datacontracts", ttl, maxSize);
+    teams = new TtlCache<>("teams", ttl, maxSize);
+    bindCaches();
+  }
+
+  public void invalidateDataProduct(String dataProductId) {
+    if (dataProducts != null) {
+      dataProducts.invalidate(dataProductId);
+    }
+  }
+
+  public void invalidateDataContract(String dataContractId) {
+    if (dataContracts != null) {
+      dataContracts.invalidate(dataContractId);
+    }
+  }
+
+  public void invalidateTeam(String teamId) {
+    if (teams != null) {
+      teams.invalidate(teamId);
+    }
+  }
+
+  public void invalidateCaches() {
+    for (var cache : Arrays.asList(dataProducts, dataContracts, teams)) {
+      if (cache != null) {
+        cache.invalidateAll();
+      }
+    }
+  }
+
+  private void bindCaches() {
+    for (var cache : Arrays.asList(dataProducts, dataContracts, teams)) {
+      if (cache != null) {
+        cache.bindTo(meterRegistry);
+      }
+    }
+  }
+
   @Override
   public void onAccessActivatedEvent(AccessActivatedEvent event) {
+    onAccessActivatedEvent(event, null);
+  }
+
+  @Override
+  public void onAccessActivatedEvent(AccessActivatedEvent event, ResolvedAccess resolved) {
     String accessId = event.getId();
     log.info("Processing AccessActivatedEvent {}", accessId);
-    var access = client.getAccessApi().getAccess(accessId);
+    timeEvent("activated", () -> {
+      var resolvedAccess = resolved != null ? resolved : resolve(accessId);
 
-    var datasetId = findProviderDatasetId(access, client);
-    if (datasetId == null) {
-      return;
-    }
+      var datasetId = resolvedAccess.datasetId();
+      if (datasetId == null) {
+        return false;
+      }
 
-    var entity = findConsumerEntity(access, client);
-    if (entity == null) {
-      return;
-    }
+      var entity = findConsumerEntity(resolvedAccess.access(), client);
+      if (entity == null) {
+        return false;
+      }
 
-    authorize(datasetId, entity);
+      authorize(datasetId, entity);
 
-    addTag(accessId, "permission-granted-on-gcp");
+      addTag(accessId, "permission-granted-on-gcp");
+      return true;
+    });
   }
 
   @Override
   public void onAccessDeactivatedEvent(AccessDeactivatedEvent event) {
+    onAccessDeactivatedEvent(event, null);
+  }
+
+  @Override
+  public void onAccessDeactivatedEvent(AccessDeactivatedEvent event, ResolvedAccess resolved) {
     String accessId = event.getId();
     log.info("Processing AccessDeactivatedEvent {}", accessId);
-    var access = client.getAccessApi().getAccess(accessId);
+    timeEvent("deactivated", () -> {
+      var resolvedAccess = resolved != null ? resolved : resolve(accessId);
 
-    var datasetId = findProviderDatasetId(access, client);
-    if (datasetId == null) {
-      return;
-    }
+      var datasetId = resolvedAccess.datasetId();
+      if (datasetId == null) {
+        return false;
+      }
 
-    var entity = findConsumerEntity(access, client);
-    if (entity == null) {
-      return;
-    }
+      var entity = findConsumerEntity(resolvedAccess.access(), client);
+      if (entity == null) {
+        return false;
+      }
 
-    deauthorize(datasetId, entity);
+      deauthorize(datasetId, entity);
 
-    removeTag(accessId, "permission-granted-on-gcp");
+      removeTag(accessId, "permission-granted-on-gcp");
+      return true;
+    });
   }
 
-  public void authorize(DatasetId datasetId, Entity entity) {
-    var dataset = bigQuery.getDataset(datasetId);
-    if (dataset == null) {
-      log.info("Cannot authorize as dataset {} does not exist", datasetId);
-      return;
+  /**
+   * @param handler returns whether the event was applied, or {@code false} if it was skipped
+   */
+  private void timeEvent(String type, Supplier<Boolean> handler) {
+    long start = System.nanoTime();
+    String outcome = "error";
+    try {
+      outcome = handler.get() ? "success" : "skipped";
+    } finally {
+      Timer.builder("gcp.access.events")
+          .tag("type", type)
+          .tag("outcome", outcome)
+          .publishPercentileHistogram()
+          .register(meterRegistry)
+          .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
     }
+  }
+
+  private Access getAccess(String accessId) {
+    return ApiMetrics.entropyData(meterRegistry, "access.get", () -> client.getAccessApi().getAccess(accessId));
+  }
 
-    List<Acl> aclList = dataset.getAcl() == null ? new ArrayList<>() : new ArrayList<>(dataset.getAcl());
+  private Object getDataProduct(String dataProductId) {
+    return cached(dataProducts, dataProductId, id -> ApiMetrics.entropyData(meterRegistry, "dataproducts.get",
+        () -> client.getDataProductsApi().getDataProduct(id)));
+  }
+
+  private DataContract getDataContract(String dataContractId) {
+    return cached(dataContracts, dataContractId, id -> ApiMetrics.entropyData(meterRegistry, "datacontracts.get",
+        () -> client.getDataContractsApi().getDataContract(id)));
+  }
+
+  private Team getTeam(String teamId) {
+    return cached(teams, teamId, id -> ApiMetrics.entropyData(meterRegistry, "teams.get",
+        () -> client.getTeamsApi().getTeam(id)));
+  }
+
+  private static <V> V cached(TtlCache<String, V> cache, String id, Function<String, V> loader) {
+    return cache == null ? loader.apply(id) : cache.get(id, loader);
+  }
+
+  /**
+   * Grants the role to the entity with an ACL update that is conditional on the etag of the read, so that concurrent
+   * changes of the dataset are re-read rather than overwritten (see {@link DatasetAclUpdater}).
+   */
+  public void authorize(DatasetId datasetId, Entity entity) {
     var expectedRole = Acl.Role.valueOf(role);
-    for (var acl : aclList) {
-      boolean isAlreadyGranted = acl.getRole().equals(expectedRole) && acl.getEntity().equals(entity);
-      if (isAlreadyGranted) {
-        log.info("Already authorized entity {} with role {} for dataset {}", entity, expectedRole, datasetId);
-        return;
+    var acl = Acl.of(entity, expectedRole);
+    var outcome = aclUpdates != null
+        ? await(aclUpdates.grant(datasetId, acl))
+        : aclUpdater.update(datasetId, aclList -> !aclList.contains(acl) && aclList.add(acl));
+    switch (outcome) {
+      case DATASET_NOT_FOUND -> log.info("Cannot authorize as dataset {} does not exist", datasetId);
+      case UNCHANGED -> log.info("Already authorized entity {} with role {} for dataset {}", entity, expectedRole,
+          datasetId);
+      case APPLIED -> {
+        meterRegistry.counter("gcp.access.grants").increment();
+        log.info("Authorized entity {} with role {} for dataset {} ", entity, expectedRole, datasetId);
       }
     }
-
-    Acl acl = Acl.of(entity, expectedRole);
-    aclList.add(acl);
-    dataset.toBuilder().setAcl(aclList).build().update();
-    log.info("Authorized entity {} with role {} for dataset {} ", entity, expectedRole, datasetId);
   }
 
   public void deauthorize(DatasetId datasetId, Entity entity) {
-    var dataset = bigQuery.getDataset(datasetId);
-
-    List<Acl> aclList = dataset.getAcl() == null ? new ArrayList<>() : new ArrayList<>(dataset.getAcl());
     var expectedRole = Acl.Role.valueOf(role);
-    Acl matchedAcl = null;
-    for (var acl : aclList) {
-      boolean matchingAcl = acl.getRole().equals(expectedRole) && acl.getEntity().equals(entity);
-      if (matchingAcl) {
-        matchedAcl = acl;
+    var acl = Acl.of(entity, expectedRole);
+    var outcome = aclUpdates != null
+        ? await(aclUpdates.revoke(datasetId, acl))
+        : aclUpdater.update(datasetId, aclList -> aclList.removeIf(acl::equals));
+    switch (outcome) {
+      case DATASET_NOT_FOUND -> log.info("Cannot deauthorize as dataset {} does not exist", datasetId);
+      case UNCHANGED -> log.info("Already deauthorized entity {} with role {} for dataset {}", entity, expectedRole,
+          datasetId);
+      case APPLIED -> {
+        meterRegistry.counter("gcp.access.revokes").increment();
+        log.info("Deauthorized entity {} with role {} for dataset {} ", entity, expectedRole, datasetId);
       }
     }
-    if (matchedAcl == null) {
-      log.info("Already deauthorized entity {} with role {} for dataset {}", entity, expectedRole, datasetId);
-      return;
-    }
-
-    aclList.remove(matchedAcl);
-
-    dataset.toBuilder().setAcl(aclList).build().update();
-    log.info("Deauthorized entity {} with role {} for dataset {} ", entity, expectedRole, datasetId);
   }
 
   private Entity findConsumerEntity(Access access, EntropyDataClient client) {
@@ -148,22 +313,20 @@ public class GcpAccessManagement implements EntropyDataEventHandler {
     // "unknown" is a sentinel value used by the backend when no data product has been assigned yet;
     // see https://github.com/entropy-data/entropy-data-sdk/blob/a2e78049a483c392ea268720efafad87a01a1c1f/src/main/resources/openapi.yaml#L2718
     if (dataProductId != null && !dataProductId.equals("unknown")) {
-      var rawDataProduct = client.getDataProductsApi().getDataProduct(dataProductId);
-      var custom = extractCustomFields(rawDataProduct);
-      return getEntityFromCustom(custom);
+      var rawDataProduct = getDataProduct(dataProductId);
+      return getEntityForServiceAccount(outputPortResolver.getCustomField(rawDataProduct, dataProductCustomField));
     }
 
     var teamId = access.getConsumer().getTeamId();
     if (teamId != null) {
-      var team = client.getTeamsApi().getTeam(teamId);
+      var team = getTeam(teamId);
       return getEntityForTeam(team);
     }
 
     return null;
   }
 
-  private Entity getEntityFromCustom(Map<String, String> custom) {
-    var gcpServiceAccount = getCustom(custom, dataProductCustomField);
+  private Entity getEntityForServiceAccount(String gcpServiceAccount) {
     if (gcpServiceAccount != null && gcpServiceAccount.startsWith("serviceAccount:")) {
       // requires https://cloud.google.com/iam/docs/principal-identifiers#v1
       // serviceAccount:SA_EMAIL_ADDRESS
@@ -194,32 +357,30 @@ public class GcpAccessManagement implements EntropyDataEventHandler {
     return null;
   }
 
-  @SuppressWarnings("unchecked")
-  private DatasetId findProviderDatasetId(Access access, EntropyDataClient client) {
+  /**
+   * Fetches an access and resolves the dataset it grants, without changing anything. An {@link AccessEventDispatcher}
+   * calls this ahead of the event handler, to order the events per dataset, and hands the result to the handler.
+   */
+  @Override
+  public ResolvedAccess resolve(String accessId) {
+    var access = getAccess(accessId);
+    return new ResolvedAccess(access, findProviderDatasetId(access, client));
+  }
+
+  @Override
+  public DatasetId datasetOf(ResolvedAccess resolved) {
+    return resolved.datasetId();
+  }
+
+  DatasetId findProviderDatasetId(Access access, EntropyDataClient client) {
     var provider = access.getProvider();
     if (provider == null) {
       log.debug("Abort, as no provider is available");
       return null;
     }
 
-    var rawDataProduct = client.getDataProductsApi().getDataProduct(provider.getDataProductId());
-    var dataProductMap = objectMapper.convertValue(rawDataProduct, Map.class);
-
-    var outputPorts = (List<Map<String, Object>>) dataProductMap.get("outputPorts");
-    if (outputPorts == null) {
-      log.debug("Abort, as no output port is available");
-      return null;
-    }
-
-    Map<String, Object> matchedPort = null;
-    for (var port : outputPorts) {
-      var portId = (String) port.get("id");
-      var portName = (String) port.get("name");
-      if (provider.getOutputPortId().equals(portId) || provider.getOutputPortId().equals(portName)) {
-        matchedPort = port;
-        break;
-      }
-    }
+    var rawDataProduct = getDataProduct(provider.getDataProductId());
+    var matchedPort = outputPortResolver.findOutputPort(rawDataProduct, provider.getOutputPortId());
     if (matchedPort == null) {
       log.debug("Abort, as no output port found for given output port id");
       return null;
@@ -228,7 +389,7 @@ public class GcpAccessManagement implements EntropyDataEventHandler {
     // Resolve server config: first try data contract, then fall back to direct server field
     var serverConfig = resolveServerFromContract(matchedPort);
     if (serverConfig == null) {
-      serverConfig = resolveServerFromOutputPort(matchedPort);
+      serverConfig = outputPortResolver.findOutputPortServer(matchedPort);
     }
     if (serverConfig == null) {
       log.debug("Abort, as no server configuration is available");
@@ -251,164 +412,59 @@ public class GcpAccessManagement implements EntropyDataEventHandler {
     return DatasetId.of(serverProject, serverDataset);
   }
 
-  @SuppressWarnings("unchecked")
-  private Map<String, String> resolveServerFromContract(Map<String, Object> outputPort) {
-    // Get the data contract ID - DPS uses "dataContractId", ODPS uses "contractId"
-    var dataContractId = (String) outputPort.get("dataContractId");
-    if (dataContractId == null) {
-      dataContractId = (String) outputPort.get("contractId");
-    }
-    if (dataContractId == null) {
-      // ODPS may store contractId in customProperties
-      dataContractId = getCustomPropertyValue(outputPort, "contractId");
-    }
+  Map<String, String> resolveServerFromContract(Map<String, Object> outputPort) {
+    var dataContractId = outputPortResolver.findDataContractId(outputPort);
     if (dataContractId == null) {
       return null;
     }
 
     // Get the contractServer name - DPS uses custom field, ODPS uses customProperties
-    var contractServerName = getOutputPortCustomField(outputPort, "contractServer");
+    var contractServerName = outputPortResolver.getOutputPortCustomField(outputPort, "contractServer");
 
-    // Fetch the data contract
-    Map<String, Object> dataContractMap;
+    DataContract dataContract;
     try {
-      var rawDataContract = client.getDataContractsApi().getDataContract(dataContractId);
-      dataContractMap = objectMapper.convertValue(rawDataContract, Map.class);
+      dataContract = getDataContract(dataContractId);
     } catch (Exception e) {
       log.debug("Failed to fetch data contract {}: {}", dataContractId, e.getMessage());
       return null;
     }
-
-    var servers = dataContractMap.get("servers");
-    if (servers == null) {
+    if (dataContract == null) {
       return null;
     }
-
-    // Data Contract Specification (DCS): servers is a Map<String, Server>
-    if (servers instanceof Map) {
-      var serversMap = (Map<String, Map<String, Object>>) servers;
-      Map<String, Object> server;
-      if (contractServerName != null && serversMap.containsKey(contractServerName)) {
-        server = serversMap.get(contractServerName);
-      } else {
-        server = serversMap.values().stream().findFirst().orElse(null);
-      }
-      if (server != null) {
-        return toStringMap(server);
-      }
-    }
-
-    // Open Data Contract Standard (ODCS): servers is a List with "server" field as the name
-    if (servers instanceof List) {
-      var serversList = (List<Map<String, Object>>) servers;
-      Map<String, Object> server;
-      if (contractServerName != null) {
-        server = serversList.stream()
-            .filter(s -> contractServerName.equals(s.get("server")))
-            .findFirst().orElse(serversList.isEmpty() ? null : serversList.get(0));
-      } else {
-        server = serversList.isEmpty() ? null : serversList.get(0);
-      }
-      if (server != null) {
-        return toStringMap(server);
-      }
-    }
-
-    return null;
+    return outputPortResolver.findContractServer(dataContract, contractServerName);
   }
 
-  @SuppressWarnings("unchecked")
-  private Map<String, String> resolveServerFromOutputPort(Map<String, Object> outputPort) {
-    // DPS format: direct "server" field
-    if (outputPort.containsKey("server") && outputPort.get("server") instanceof Map) {
-      return toStringMap((Map<String, Object>) outputPort.get("server"));
-    }
-    // ODPS format: server in customProperties
-    if (outputPort.containsKey("customProperties") && outputPort.get("customProperties") instanceof List) {
-      for (var prop : (List<Map<String, Object>>) outputPort.get("customProperties")) {
-        if ("server".equals(prop.get("property")) && prop.get("value") instanceof Map) {
-          return toStringMap((Map<String, Object>) prop.get("value"));
-        }
-      }
-    }
-    return null;
-  }
-
-  @SuppressWarnings("unchecked")
-  private String getOutputPortCustomField(Map<String, Object> outputPort, String fieldName) {
-    // DPS format: custom map
-    if (outputPort.containsKey("custom") && outputPort.get("custom") instanceof Map) {
-      var custom = (Map<String, Object>) outputPort.get("custom");
-      var value = custom.get(fieldName);
-      if (value != null) return value.toString();
-    }
-    // ODPS format: customProperties list
-    return getCustomPropertyValue(outputPort, fieldName);
-  }
-
-  @SuppressWarnings("unchecked")
-  private String getCustomPropertyValue(Map<String, Object> map, String propertyName) {
-    if (map.containsKey("customProperties") && map.get("customProperties") instanceof List) {
-      for (var prop : (List<Map<String, Object>>) map.get("customProperties")) {
-        if (propertyName.equals(prop.get("property"))) {
-          var value = prop.get("value");
-          return value != null ? value.toString() : null;
-        }
-      }
-    }
-    return null;
-  }
-
-  /**
-   * Extract custom fields from a data product, handling both DPS ("custom" map) and ODPS ("customProperties" list) formats.
-   */
-  @SuppressWarnings("unchecked")
-  private Map<String, String> extractCustomFields(Object rawDataProduct) {
-    var map = objectMapper.convertValue(rawDataProduct, Map.class);
-    // DPS format: "custom" is a Map<String, String>
-    if (map.containsKey("custom") && map.get("custom") instanceof Map) {
-      return (Map<String, String>) map.get("custom");
-    }
-    // ODPS format: "customProperties" is a List of {property, value} objects
-    if (map.containsKey("customProperties") && map.get("customProperties") instanceof List) {
-      var result = new HashMap<String, String>();
-      for (var item : (List<Map<String, Object>>) map.get("customProperties")) {
-        var property = (String) item.get("property");
-        var value = item.get("value");
-        if (property != null && value != null) {
-          result.put(property, value.toString());
-        }
-      }
-      return result;
-    }
-    return Map.of();
-  }
-
-  private static Map<String, String> toStringMap(Map<String, Object> map) {
-    var result = new HashMap<String, String>();
-    for (var entry : map.entrySet()) {
-      if (entry.getValue() != null) {
-        result.put(entry.getKey(), entry.getValue().toString());
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while updating an ACL", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
       }
+      throw new IllegalStateException(e.getCause());
     }
-    return result;
   }
 
   private void removeTag(String accessId, String tag) {
-    Access access = client.getAccessApi().getAccess(accessId);
+    Access access = getAccess(accessId);
     if (access.getTags() != null) {
       access.getTags().remove(tag);
     }
-    client.getAccessApi().addAccess(access.getId(), access);
+    ApiMetrics.runEntropyData(meterRegistry, "access.put",
+        () -> client.getAccessApi().addAccess(access.getId(), access));
   }
 
   private void addTag(String accessId, String tag) {
-    Access access = client.getAccessApi().getAccess(accessId);
+    Access access = getAccess(accessId);
     if (access.getTags() == null) {
       access.setTags(new ArrayList<>());
     }
     access.getTags().add(tag);
-    client.getAccessApi().addAccess(access.getId(), access);
+    ApiMetrics.runEntropyData(meterRegistry, "access.put",
+        () -> client.getAccessApi().addAccess(access.getId(), access));
   }
 
 }
@@ -2,7 +2,13 @@ package entropydata.gcp;
 
 import com.google.api.gax.paging.Page;
 import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQuery.DatasetField;
 import com.google.cloud.bigquery.BigQuery.DatasetListOption;
+import com.google.cloud.bigquery.BigQuery.DatasetOption;
+import com.google.cloud.bigquery.BigQuery.TableField;
+import com.google.cloud.bigquery.BigQuery.TableListOption;
+import com.google.cloud.bigquery.BigQuery.TableOption;
+import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.Dataset;
 import com.google.cloud.bigquery.DatasetId;
 import com.google.cloud.bigquery.Field;
@@ -10,13 +16,39 @@ import com.google.cloud.bigquery.FieldList;
 import com.google.cloud.bigquery.Schema;
 import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableDefinition;
+import com.google.cloud.bigquery.TableId;
+import entropydata.gcp.GcpProperties.AssetProperties.HarvestMode;
+import entropydata.gcp.PipelineStage.Work;
 import entropydata.sdk.EntropyDataAssetsProvider;
-import entropydata.sdk.EntropyDataStateRepositoryInMemory;
+import entropydata.sdk.EntropyDataStateRepository;
 import entropydata.sdk.client.model.Asset;
 import entropydata.sdk.client.model.AssetColumnsInner;
 import entropydata.sdk.client.model.AssetInfo;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,57 +56,880 @@ public class GcpAssetsProvider implements EntropyDataAssetsProvider {
 
   private static final Logger log = LoggerFactory.getLogger(GcpAssetsProvider.class);
 
+  // projections of the fields that are mapped to assets, the reference and type are always included
+  static final DatasetOption DATASET_FIELDS = DatasetOption.fields(DatasetField.ID, DatasetField.FRIENDLY_NAME,
+      DatasetField.DESCRIPTION, DatasetField.LAST_MODIFIED_TIME);
+  static final TableOption TABLE_FIELDS = TableOption.fields(TableField.ID, TableField.FRIENDLY_NAME,
+      TableField.DESCRIPTION, TableField.LAST_MODIFIED_TIME, TableField.SCHEMA);
+  static final TableOption TABLE_CHANGE_FIELDS = TableOption.fields(TableField.LAST_MODIFIED_TIME);
+
   private final BigQuery bigquery;
   private final List<String> projectIds;
-  private final EntropyDataStateRepositoryInMemory stateRepository;
+  private final EntropyDataStateRepository stateRepository;
+  private final InformationSchemaHarvester informationSchemaHarvester;
+
+  private int parallelism = 1;
+  private final Map<Stage, Integer> stageConcurrency = new EnumMap<>(Stage.class);
+  private int queueCapacity = 1000;
+  private HarvestMode harvestMode = HarvestMode.API;
+  private boolean prefilter = false;
+  private int checkpointInterval = 100;
+  private AssetFingerprints fingerprints;
+  private boolean detectDeletions = false;
+  private boolean collapseShards = false;
+  private AssetFilter filter = AssetFilter.ALL;
+  private ProjectDiscovery projectDiscovery;
+  private ReplicaMembership replicaMembership;
+  private Duration pollInterval = Duration.ZERO;
+  private DatasetPollSchedule pollSchedule;
+  private final ReentrantLock runLock = new ReentrantLock();
+  private AssetsMetrics metrics = new AssetsMetrics(new CompositeMeterRegistry());
+  private long nextRunAt;
+  private CompactIdSet previousAssetIds;
+  private Duration maxRunDuration = Duration.ZERO;
+  private int maxRunCalls;
+  private SuspendedRun suspendedRun;
+  private EntropyDataBulkAssetsClient bulkAssetsClient;
+  private BatchingAssetUploader.Settings batchSettings;
 
-  public GcpAssetsProvider(BigQuery bigquery, List<String> projectIds, EntropyDataStateRepositoryInMemory stateRepository) {
+  public GcpAssetsProvider(BigQuery bigquery, List<String> projectIds, EntropyDataStateRepository stateRepository) {
     this.bigquery = bigquery;
     this.projectIds = projectIds;
     this.stateRepository = stateRepository;
+    this.informationSchemaHarvester = new InformationSchemaHarvester(bigquery);
+  }
+
+  /**
+   * The stages of the synchronization pipeline, see {@link #fetchAssets}.
+   */
+  public enum Stage {
+    LIST_DATASETS,
+    LIST_TABLES,
+    FETCH,
+    MAP,
+    UPLOAD
+  }
+
+  /**
+   * Default number of threads of the stages that call BigQuery: {@link Stage#LIST_DATASETS}, {@link Stage#LIST_TABLES}
+   * and {@link Stage#FETCH}. Defaults to 1 (sequential).
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1, but was " + parallelism);
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Number of threads of a pipeline stage, or 0 for the default: {@code parallelism} for the stages that call BigQuery,
+   * 1 for {@link Stage#MAP} and {@link Stage#UPLOAD}. With more than one upload thread, the {@code assetCallback} must
+   * be thread-safe.
+   */
+  public void setStageConcurrency(Stage stage, int concurrency) {
+    if (concurrency < 0) {
+      throw new IllegalArgumentException(
+          "concurrency of stage " + stage + " must not be negative, but was " + concurrency);
+    }
+    if (concurrency == 0) {
+      stageConcurrency.remove(stage);
+    } else {
+      stageConcurrency.put(stage, concurrency);
+    }
+  }
+
+  /**
+   * Capacity of the queue in front of each pipeline stage. Bounds the number of datasets, tables and assets held in
+   * memory at once. Defaults to 1000.
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("queue capacity must be at least 1, but was " + queueCapacity);
+    }
+    this.queueCapacity = queueCapacity;
+  }
+
+  private int concurrency(Stage stage) {
+    return stageConcurrency.getOrDefault(stage, stage == Stage.MAP || stage == Stage.UPLOAD ? 1 : parallelism);
+  }
+
+  /**
+   * Selects how table metadata is read: {@code getTable} calls per table ({@link HarvestMode#API}) or a few
+   * region-wide INFORMATION_SCHEMA queries per project ({@link HarvestMode#INFORMATION_SCHEMA}). In API mode, tables of
+   * datasets synchronized before are first read with only their modification time, and the schema is read only for
+   * modified tables.
+   */
+  public void setHarvestMode(HarvestMode harvestMode) {
+    this.harvestMode = harvestMode;
+  }
+
+  /**
+   * In {@link HarvestMode#API} mode, reads the modification times of all tables of a dataset with one query against
+   * its {@code __TABLES__} meta-table and calls {@code getTable} only for tables modified since the last run. Requires
+   * permission to run query jobs.
+   */
+  public void setPrefilter(boolean prefilter) {
+    this.prefilter = prefilter;
+  }
+
+  /**
+   * Number of completed datasets after which the run cursor is saved to the state repository. Defaults to 100.
+   */
+  public void setCheckpointInterval(int checkpointInterval) {
+    this.checkpointInterval = checkpointInterval;
+  }
+
+  /**
+   * Suppresses uploads of assets whose content did not change since their last upload, even if BigQuery reports a newer
+   * modification time. See {@link AssetFingerprints}.
+   */
+  public void setSuppressUnchanged(boolean suppressUnchanged) {
+    this.fingerprints = suppressUnchanged ? new AssetFingerprints() : null;
+  }
+
+  /**
+   * Reports assets that were seen in the previous complete run but not in the current one as deleted. Assets of
+   * projects and datasets that failed in the current run are never reported as deleted. The ids of the previous run
+   * are kept in memory as a {@link CompactIdSet}, so the first run after a start cannot detect deletions.
+   */
+  public void setDetectDeletions(boolean detectDeletions) {
+    this.detectDeletions = detectDeletions;
   }
 
+  /**
+   * Collapses date-sharded tables such as {@code events_20240101} into one asset {@code events_*} per shard group,
+   * fetching metadata only for the newest shard. See {@link ShardedTables}.
+   */
+  public void setCollapseShards(boolean collapseShards) {
+    this.collapseShards = collapseShards;
+    this.informationSchemaHarvester.setCollapseShards(collapseShards);
+  }
+
+  /**
+   * Restricts the synchronization to the datasets and tables selected by the filter. Excluded datasets and tables are
+   * never fetched.
+   */
+  public void setFilter(AssetFilter filter) {
+    this.filter = filter;
+    this.informationSchemaHarvester.setFilter(filter);
+  }
+
+  /**
+   * Synchronizes the projects found by the discovery in addition to the configured projects.
+   */
+  public void setProjectDiscovery(ProjectDiscovery projectDiscovery) {
+    this.projectDiscovery = projectDiscovery;
+  }
+
+  /**
+   * Synchronizes only the datasets that the consistent hash ring of the live replicas assigns to this replica. The
+   * ring is taken at the start of each run, so a joining or leaving replica takes effect with the next run. Assets of
+   * datasets assigned to another replica are never reported as deleted by this one.
+   */
+  public void setReplicaMembership(ReplicaMembership replicaMembership) {
+    this.replicaMembership = replicaMembership;
+  }
+
+  /**
+   * Minimum time between the starts of two runs. Calls of {@link #fetchAssets} before that return without
+   * synchronizing, so the interval holds however often the synchronizer polls. Defaults to zero.
+   */
+  public void setPollInterval(Duration pollInterval) {
+    this.pollInterval = pollInterval;
+  }
+
+  /**
+   * Suspends a run once it has taken {@code maxDuration} or made {@code maxCalls} BigQuery calls, zero meaning no limit.
+   * A suspended run submits no more datasets and stops listing the tables of a dataset before the next page. Its
+   * position, including the page tokens of the suspended table listings, is saved, and the next run continues from
+   * there. Work already submitted is completed, so a run may exceed its budget by the time that takes. Dataset listings
+   * and table reads count as one call each, as does every page of a table listing.
+   */
+  public void setRunBudget(Duration maxDuration, int maxCalls) {
+    if (maxDuration.isNegative() || maxCalls < 0) {
+      throw new IllegalArgumentException("run budget must not be negative, but was " + maxDuration + " and " + maxCalls
+          + " calls");
+    }
+    this.maxRunDuration = maxDuration;
+    this.maxRunCalls = maxCalls;
+  }
+
+  /**
+   * Polls each dataset only when the schedule says it is due, based on how often it changed. Deferred datasets keep
+   * their watermark and their assets are never reported as deleted.
+   */
+  public void setPollSchedule(DatasetPollSchedule pollSchedule) {
+    this.pollSchedule = pollSchedule;
+  }
+
+  /**
+   * Registers the meters of the synchronization, see {@link AssetsMetrics}. Calls of the {@code assetCallback} are
+   * recorded as Entropy Data API requests.
+   */
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.metrics = new AssetsMetrics(meterRegistry);
+  }
+
+  /**
+   * Uploads assets in gzip-compressed batches through the bulk endpoint instead of one {@code onAssetUpdated} call per
+   * asset. See {@link BatchingAssetUploader}.
+   */
+  public void setBatching(EntropyDataBulkAssetsClient bulkAssetsClient, BatchingAssetUploader.Settings batchSettings) {
+    this.bulkAssetsClient = bulkAssetsClient;
+    this.batchSettings = batchSettings;
+  }
+
+  /**
+   * Fetches all assets through a pipeline of stages connected by bounded queues: list datasets, list tables, fetch
+   * table metadata, map to {@link Asset} and upload. Each stage runs on its own threads
+   * (see {@link #setStageConcurrency}), so a slow upload does not stall crawling and vice versa, and full queues
+   * throttle the stages before them. Calls to the {@code assetCallback} are serialized unless the upload stage has
+   * more than one thread.
+   * <p>
+   * Each dataset is compared against its own watermark (see {@link AssetsSyncState}). Progress is checkpointed every
+   * {@code checkpointInterval} datasets, and an interrupted run continues after the last checkpoint. A run that spent
+   * its budget (see {@link #setRunBudget}) is suspended and continued by the next call.
+   * <p>
+   * Runs never overlap: a call while a run is in progress, or before the poll interval has passed since the start of
+   * the previous run, returns immediately.
+   */
   @Override
   public void fetchAssets(AssetCallback assetCallback) {
+    if (!runLock.tryLock()) {
+      log.warn("Skipping synchronization, the previous run is still in progress");
+      return;
+    }
+    try {
+      long now = System.currentTimeMillis();
+      if (now < nextRunAt) {
+        return;
+      }
+      nextRunAt = now + pollInterval.toMillis();
+      synchronize(assetCallback);
+    } finally {
+      runLock.unlock();
+    }
+  }
+
+  private void synchronize(AssetCallback assetCallback) {
+    long startedAt = System.nanoTime();
+    var state = AssetsSyncState.load(stateRepository.getState(), System.currentTimeMillis());
+    if (state.isResumed()) {
+      log.info("Resuming synchronization started at {}", Instant.ofEpochMilli(state.getRunStartedAt()));
+    }
 
-    final var gcpLastUpdatedAt = getLastUpdatedAt();
-    var gcpLastUpdatedAtThisRunMax = gcpLastUpdatedAt;
+    // the assets seen before a suspension are only known to this process
+    var suspended = state.isResumed() ? suspendedRun : null;
+    suspendedRun = null;
+    var run = new SyncRun(state, assetCallback, suspended);
+    try {
+      run.execute();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while synchronizing assets", e);
+    } finally {
+      run.stop();
+    }
+
+    if (run.suspended) {
+      stateRepository.saveState(state.toMap(true));
+      suspendedRun = new SuspendedRun(run.seenAssetIds, run.failedProjects, run.failedDatasets);
+      log.info("Suspending synchronization after {} BigQuery calls in {}, continuing with the next run",
+          run.calls.get(), Duration.ofNanos(System.nanoTime() - startedAt));
+      return;
+    }
+
+    if (detectDeletions) {
+      emitDeletions(run.seenAssetIds, run.failedProjects, run.failedDatasets, run::ownsDataset,
+          state.isResumed() && suspended == null, run.assetCallback);
+    }
+    if (pollSchedule != null) {
+      // deleted datasets and datasets no longer included or owned are not listed
+      pollSchedule.retainOnly(state::mayStillExist);
+    }
+
+    state.finishRun();
+    stateRepository.saveState(state.toMap(false));
+    metrics.onRunCompleted(Duration.ofNanos(System.nanoTime() - startedAt));
+  }
+
+  /**
+   * Datasets of a project submitted for synchronization, up to and including {@code lastDatasetName} in name order.
+   */
+  private record PendingSynchronization(String projectId, String lastDatasetName, Map<String, Long> watermarks,
+                                        Future<Set<String>> failedDatasets) {
+  }
+
+  /**
+   * A table to fetch, and the shard group it represents if it is the newest shard of one.
+   *
+   * @param modified whether the table is known to be modified since the watermark
+   */
+  private record TableFetch(TableId tableId, ShardedTables.ShardGroup shards, boolean modified) {
+  }
+
+  private record FetchedTable(Table table, ShardedTables.ShardGroup shards) {
+  }
+
+  /**
+   * A dataset whose tables to list, from the given page on if it continues a suspended listing.
+   */
+  private record TableListing(Dataset dataset, String pageToken) {
+  }
+
+  /**
+   * What a suspended run has seen so far, so that the run that completes it can detect deletions.
+   */
+  private record SuspendedRun(CompactIdSet.Builder seenAssetIds, Set<String> failedProjects,
+                              Set<String> failedDatasets) {
+  }
+
+  /**
+   * Datasets of a project harvested together from INFORMATION_SCHEMA.
+   */
+  private record Harvest(List<Dataset> datasets, Map<String, Long> watermarks) {
+  }
 
-    for(String projectId : projectIds) {
-      log.info("Synchronizing project {}", projectId);
-      Iterable<Dataset> datasets = bigquery.listDatasets(projectId, DatasetListOption.all()).iterateAll();
-      for(Dataset dataset : datasets) {
+  /**
+   * The stages and bookkeeping of one {@link #fetchAssets} run.
+   */
+  private class SyncRun {
+
+    private final AssetsSyncState state;
+    private final AssetCallback assetCallback;
+    private final CompactIdSet.Builder seenAssetIds;
+    private final Consumer<String> seenAssetIdConsumer;
+    private final Set<String> failedProjects;
+    private final Set<String> failedDatasets;
+    private final ArrayDeque<PendingSynchronization> synchronizations = new ArrayDeque<>();
+    private final ConsistentHashRing replicaRing;
+    private final Map<String, Long> lastChanges = new ConcurrentHashMap<>();
+    private final long startedAt = System.nanoTime();
+    private final Map<String, Long> projectsDoneAt = new LinkedHashMap<>();
+    private int completedSinceCheckpoint;
+    private final AtomicInteger calls = new AtomicInteger();
+    // next page tokens of the table listings stopped by the budget, by project:dataset
+    private final Map<String, String> suspendedListings = new ConcurrentHashMap<>();
+    private volatile boolean suspended;
+
+    private final BatchingAssetUploader batchingUploader;
+    private final ExecutorService listDatasetsExecutor;
+    private final PipelineStage<Asset> uploadStage;
+    private final PipelineStage<FetchedTable> mapStage;
+    private final PipelineStage<TableFetch> fetchStage;
+    private final PipelineStage<TableListing> listTablesStage;
+    private final PipelineStage<Harvest> harvestStage;
+
+    SyncRun(AssetsSyncState state, AssetCallback assetCallback, SuspendedRun suspendedRun) {
+      this.state = state;
+      this.seenAssetIds = suspendedRun == null ? CompactIdSet.builder() : suspendedRun.seenAssetIds();
+      this.failedProjects = suspendedRun == null ? new HashSet<>() : suspendedRun.failedProjects();
+      this.failedDatasets = suspendedRun == null ? new HashSet<>() : suspendedRun.failedDatasets();
+      this.assetCallback = metrics.timed(assetCallback);
+      this.seenAssetIdConsumer = detectDeletions ? assetId -> {
+        metrics.onScanned(assetId);
+        seenAssetIds.add(assetId);
+      } : metrics::onScanned;
+      this.replicaRing = replicaMembership == null ? null : replicaMembership.ring();
+      this.batchingUploader = bulkAssetsClient == null
+          ? null : new BatchingAssetUploader(bulkAssetsClient, this.assetCallback, batchSettings);
+
+      var threadCounter = new AtomicInteger();
+      listDatasetsExecutor = Executors.newFixedThreadPool(concurrency(Stage.LIST_DATASETS), runnable -> {
+        var thread = new Thread(runnable, "gcp-assets-listdatasets-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+      uploadStage = PipelineStage.start("upload", concurrency(Stage.UPLOAD), queueCapacity, this::upload);
+      mapStage = PipelineStage.start("map", concurrency(Stage.MAP), queueCapacity, this::map);
+      fetchStage = PipelineStage.start("fetch", concurrency(Stage.FETCH), queueCapacity, this::fetchTable);
+      if (harvestMode == HarvestMode.INFORMATION_SCHEMA) {
+        listTablesStage = null;
+        harvestStage = PipelineStage.start("harvest", concurrency(Stage.LIST_TABLES), queueCapacity, this::harvest);
+      } else {
+        listTablesStage = PipelineStage.start("listtables", concurrency(Stage.LIST_TABLES), queueCapacity,
+            this::listTables);
+        harvestStage = null;
+      }
+    }
+
+    void execute() throws InterruptedException {
+      var datasetListings = new LinkedHashMap<String, Future<List<Dataset>>>();
+      for (String projectId : projectIds()) {
+        datasetListings.put(projectId, listDatasetsExecutor.submit(() -> {
+          calls.incrementAndGet();
+          return listDatasets(projectId);
+        }));
+      }
+
+      for (var datasetListing : datasetListings.entrySet()) {
+        if (budgetSpent()) {
+          break;
+        }
+        var projectId = datasetListing.getKey();
+        List<Dataset> datasets;
         try {
-          log.info("Synchronizing dataset {}", dataset.getDatasetId());
+          datasets = await(datasetListing.getValue());
+        } catch (Exception e) {
+          if (projectDiscovery != null && projectDiscovery.skipIfBigQueryDisabled(projectId, e)) {
+            state.onProjectListingFailed(projectId);
+            failedProjects.add(projectId);
+            continue;
+          }
+          log.warn("Failed to list datasets of project {}: {}", projectId, e.getMessage());
+          state.onProjectListingFailed(projectId);
+          failedProjects.add(projectId);
+          metrics.onProjectFailed();
+          continue;
+        }
+        projectsDoneAt.put(projectId, System.nanoTime());
 
-          DatasetId datasetId = dataset.getDatasetId();
+        var cursor = state.getCursor(projectId);
+        var watermarks = new LinkedHashMap<String, Long>();
+        var remainingDatasets = new ArrayList<Dataset>();
+        for (Dataset dataset : datasets) {
+          var datasetName = dataset.getDatasetId().getDataset();
+          if (!filter.includesDataset(datasetName) || !ownsDataset(projectId + ":" + datasetName)) {
+            continue;
+          }
+          state.onDatasetListed(projectId, datasetName);
+          var datasetKey = projectId + ":" + datasetName;
+          if (pollSchedule != null && !pollSchedule.isDue(datasetKey, state.getRunStartedAt())) {
+            state.onDatasetDeferred(projectId, datasetName, state.getWatermark(projectId, datasetName));
+            // carried over like the assets of a failed dataset
+            failedDatasets.add(datasetKey);
+            continue;
+          }
+          if (cursor == null || datasetName.compareTo(cursor) > 0
+              || state.getPageToken(projectId, datasetName) != null) {
+            watermarks.put(datasetName, state.getWatermark(projectId, datasetName));
+            remainingDatasets.add(dataset);
+          }
+        }
+        if (remainingDatasets.isEmpty()) {
+          continue;
+        }
 
-          Dataset datasetFull = bigquery.getDataset(datasetId);
+        if (harvestMode == HarvestMode.INFORMATION_SCHEMA) {
+          if (budgetSpent()) {
+            break;
+          }
+          var lastDatasetName = remainingDatasets.get(remainingDatasets.size() - 1).getDatasetId().getDataset();
+          var batch = new PipelineStage.Batch(projectId);
+          harvestStage.submit(new Work<>(batch, lastDatasetName, 0, new Harvest(remainingDatasets, watermarks)));
+          synchronizations.add(new PendingSynchronization(projectId, lastDatasetName, watermarks, batch.completion()));
+        } else {
+          for (Dataset dataset : remainingDatasets) {
+            if (budgetSpent()) {
+              break;
+            }
+            var datasetName = dataset.getDatasetId().getDataset();
+            long watermark = watermarks.get(datasetName);
+            var batch = new PipelineStage.Batch(projectId);
+            var pageToken = state.getPageToken(projectId, datasetName);
+            listTablesStage.submit(new Work<>(batch, datasetName, watermark, new TableListing(dataset, pageToken)));
+            synchronizations.add(new PendingSynchronization(projectId, datasetName, Map.of(datasetName, watermark),
+                batch.completion()));
+            completeSynchronizations(false);
+          }
+        }
+        completeSynchronizations(false);
+      }
+      completeSynchronizations(true);
+      projectsDoneAt.forEach((projectId, doneAt) ->
+          metrics.onProjectCompleted(projectId, Duration.ofNanos(doneAt - startedAt)));
+    }
+
+    /**
+     * @return whether the run has used up its budget, after which it stays suspended
+     */
+    private boolean budgetSpent() {
+      if (!suspended && ((maxRunCalls > 0 && calls.get() >= maxRunCalls)
+          || (!maxRunDuration.isZero() && System.nanoTime() - startedAt >= maxRunDuration.toNanos()))) {
+        suspended = true;
+      }
+      return suspended;
+    }
+
+    /**
+     * @param datasetKey {@code project:dataset}
+     */
+    boolean ownsDataset(String datasetKey) {
+      return replicaRing == null || replicaRing.ownerOf(datasetKey).equals(replicaMembership.replicaId());
+    }
 
-          long gcpLastUpdatedDataset = getLastUpdated(datasetFull);
-          if (gcpLastUpdatedDataset >= gcpLastUpdatedAt) {
-            assetCallback.onAssetUpdated(toAsset(datasetFull));
+    /**
+     * Records finished synchronizations in submission order, so that the cursor never skips an unfinished dataset.
+     *
+     * @param wait whether to wait for all pending synchronizations, or only record those already finished
+     */
+    private void completeSynchronizations(boolean wait) {
+      while (!synchronizations.isEmpty() && (wait || synchronizations.peek().failedDatasets().isDone())) {
+        var synchronization = synchronizations.poll();
+        var failedDatasetNames = await(synchronization.failedDatasets());
+        synchronization.watermarks().forEach((datasetName, watermark) -> {
+          boolean failed = failedDatasetNames.contains(datasetName);
+          var datasetKey = synchronization.projectId() + ":" + datasetName;
+          var pageToken = suspendedListings.remove(datasetKey);
+          var lastChange = lastChanges.remove(datasetKey);
+          if (pageToken != null && !failed) {
+            state.onDatasetSuspended(synchronization.projectId(), datasetName, watermark, pageToken);
+            return;
+          }
+          state.onDatasetCompleted(synchronization.projectId(), datasetName, watermark, failed);
+          if (pollSchedule != null && !failed) {
+            pollSchedule.onPolled(datasetKey, System.currentTimeMillis(), lastChange);
           }
+        });
+        failedDatasetNames.forEach(datasetName -> failedDatasets.add(synchronization.projectId() + ":" + datasetName));
+        metrics.onDatasetsFailed(failedDatasetNames.size());
+        projectsDoneAt.put(synchronization.projectId(), System.nanoTime());
+        state.advanceCursor(synchronization.projectId(), synchronization.lastDatasetName());
+
+        completedSinceCheckpoint += synchronization.watermarks().size();
+        if (completedSinceCheckpoint >= checkpointInterval) {
+          stateRepository.saveState(state.toMap(true));
+          completedSinceCheckpoint = 0;
+        }
+      }
+    }
 
-          Iterable<Table> tables = bigquery.listTables(datasetId).iterateAll();
-          for(Table table : tables) {
-            log.info("Synchronizing table {}", table.getTableId());
-            Table tableFull = bigquery.getTable(table.getTableId());
+    void stop() {
+      listDatasetsExecutor.shutdownNow();
+      for (var stage : Arrays.asList(listTablesStage, harvestStage, fetchStage, mapStage, uploadStage)) {
+        if (stage != null) {
+          stage.stop();
+        }
+      }
+      if (batchingUploader != null) {
+        batchingUploader.close();
+      }
+    }
 
-            long gcpLastUpdatedTable = getLastUpdated(tableFull);
-            if (gcpLastUpdatedTable >= gcpLastUpdatedAt) {
-              assetCallback.onAssetUpdated(toAsset(tableFull));
+    private void listTables(Work<TableListing> work) throws InterruptedException {
+      DatasetId datasetId = work.payload().dataset().getDatasetId();
+      var datasetAssetId = datasetId.getProject() + ":" + datasetId.getDataset();
+      var pageToken = work.payload().pageToken();
+      if (pageToken == null) {
+        log.info("Synchronizing dataset {}", datasetId);
+        calls.incrementAndGet();
+        Dataset datasetFull = bigquery.getDataset(datasetId, DATASET_FIELDS);
+        if (datasetFull == null) {
+          // deleted after it was listed, so neither it nor its tables are seen, and their deletions are emitted
+          log.debug("Skipping dataset {}, which no longer exists", datasetId);
+          return;
+        }
+        seenAssetIdConsumer.accept(datasetFull.getGeneratedId());
+        if (getLastUpdated(datasetFull) >= work.watermark()) {
+          offerUpload(work.with(toAsset(datasetFull)));
+        }
+      } else {
+        // the dataset itself was synchronized by the suspended run
+        log.info("Continuing synchronization of dataset {}", datasetId);
+        seenAssetIdConsumer.accept(datasetAssetId);
+      }
+
+      if (prefilter) {
+        calls.incrementAndGet();
+        var lastModifiedTimes = informationSchemaHarvester.queryLastModifiedTimes(datasetId);
+        lastModifiedTimes.keySet().removeIf(tableName -> !filter.includesTable(datasetId.getDataset(), tableName));
+        if (collapseShards) {
+          var grouping = ShardedTables.group(lastModifiedTimes.keySet());
+          for (var group : grouping.shardGroups().values()) {
+            seenAssetIdConsumer.accept(ShardedTables.groupAssetId(datasetAssetId, group));
+            long lastModified = group.tableNames().stream().mapToLong(lastModifiedTimes::get).max().orElse(0);
+            if (lastModified >= work.watermark()) {
+              var tableId = TableId.of(datasetId.getProject(), datasetId.getDataset(), group.newestTableName());
+              fetchStage.submit(work.with(new TableFetch(tableId, group, true)));
             }
+          }
+          lastModifiedTimes.keySet().retainAll(new HashSet<>(grouping.tables()));
+        }
+        for (var entry : lastModifiedTimes.entrySet()) {
+          seenAssetIdConsumer.accept(datasetAssetId + "." + entry.getKey());
+          if (entry.getValue() >= work.watermark()) {
+            var tableId = TableId.of(datasetId.getProject(), datasetId.getDataset(), entry.getKey());
+            fetchStage.submit(work.with(new TableFetch(tableId, null, true)));
+          }
+        }
+        return;
+      }
 
-            gcpLastUpdatedAtThisRunMax = Math.max(gcpLastUpdatedAtThisRunMax, gcpLastUpdatedTable);
+      if (collapseShards) {
+        // shards are grouped across the whole dataset, so the listing is never suspended
+        calls.incrementAndGet();
+        // modification times of the listed tables, null where the listing does not include them
+        var lastModifiedTimes = new LinkedHashMap<String, Long>();
+        for (Table table : bigquery.listTables(datasetId).iterateAll()) {
+          if (filter.includesTable(datasetId.getDataset(), table.getTableId().getTable())) {
+            lastModifiedTimes.put(table.getTableId().getTable(), table.getLastModifiedTime());
           }
-        } catch (Exception e) {
-          log.warn("Failed to synchronize dataset {}: {}", dataset.getDatasetId(), e.getMessage());
         }
+        var grouping = ShardedTables.group(lastModifiedTimes.keySet());
+        for (var group : grouping.shardGroups().values()) {
+          seenAssetIdConsumer.accept(ShardedTables.groupAssetId(datasetAssetId, group));
+          // a group counts as modified if any of its shards is, e.g. when an older shard was backfilled
+          boolean modified = false;
+          boolean timesListed = true;
+          for (var tableName : group.tableNames()) {
+            var lastModified = lastModifiedTimes.get(tableName);
+            timesListed &= lastModified != null;
+            modified |= lastModified != null && lastModified >= work.watermark();
+          }
+          if (modified || !timesListed) {
+            var tableId = TableId.of(datasetId.getProject(), datasetId.getDataset(), group.newestTableName());
+            fetchStage.submit(work.with(new TableFetch(tableId, group, modified)));
+          }
+        }
+        for (var tableName : grouping.tables()) {
+          seenAssetIdConsumer.accept(datasetAssetId + "." + tableName);
+          var tableId = TableId.of(datasetId.getProject(), datasetId.getDataset(), tableName);
+          fetchStage.submit(work.with(new TableFetch(tableId, null, false)));
+        }
+        return;
+      }
+      var page = listTablesFrom(datasetId, pageToken);
+      while (true) {
+        for (Table table : page.getValues()) {
+          if (!filter.includesTable(datasetId.getDataset(), table.getTableId().getTable())) {
+            continue;
+          }
+          seenAssetIdConsumer.accept(table.getGeneratedId());
+          fetchStage.submit(work.with(new TableFetch(table.getTableId(), null, false)));
+        }
+        if (!page.hasNextPage()) {
+          return;
+        }
+        if (budgetSpent()) {
+          suspendedListings.put(datasetAssetId, page.getNextPageToken());
+          return;
+        }
+        calls.incrementAndGet();
+        page = page.getNextPage();
+      }
+    }
+
+    /**
+     * Lists the first page of tables, or the page of {@code pageToken}. Listings that cannot be continued, e.g. because
+     * the token expired, start over.
+     */
+    private Page<Table> listTablesFrom(DatasetId datasetId, String pageToken) {
+      calls.incrementAndGet();
+      if (pageToken != null) {
+        try {
+          return bigquery.listTables(datasetId, TableListOption.pageToken(pageToken));
+        } catch (BigQueryException e) {
+          if (e.getCode() != 400) {
+            throw e;
+          }
+          log.info("Cannot continue listing the tables of dataset {}, starting over: {}", datasetId, e.getMessage());
+          calls.incrementAndGet();
+        }
+      }
+      return bigquery.listTables(datasetId);
+    }
+
+    private void fetchTable(Work<TableFetch> work) throws InterruptedException {
+      var tableId = work.payload().tableId();
+      log.debug("Synchronizing table {}", tableId);
+      var shards = work.payload().shards();
+      if (work.watermark() > 0 && !work.payload().modified() && !modifiedSince(work.payload(), work.watermark())) {
+        return;
+      }
+      calls.incrementAndGet();
+      Table tableFull = bigquery.getTable(tableId, TABLE_FIELDS);
+      // null if the table was deleted after it was listed. A group is modified if any shard is, not only the newest.
+      if (tableFull != null && (shards != null || getLastUpdated(tableFull) >= work.watermark())) {
+        mapStage.submit(work.with(new FetchedTable(tableFull, work.payload().shards())));
+      }
+    }
+
+    /**
+     * Checks the modification time before fetching the schema, as most tables are unchanged since the last run. The
+     * shards of a group are checked newest first, as recent shards change most, until one is modified.
+     */
+    private boolean modifiedSince(TableFetch fetch, long watermark) {
+      var tableId = fetch.tableId();
+      var tableNames = fetch.shards() == null ? List.of(tableId.getTable()) : fetch.shards().tableNames();
+      for (int i = tableNames.size() - 1; i >= 0; i--) {
+        calls.incrementAndGet();
+        Table tableHead = bigquery.getTable(TableId.of(tableId.getProject(), tableId.getDataset(), tableNames.get(i)),
+            TABLE_CHANGE_FIELDS);
+        if (tableHead != null && getLastUpdated(tableHead) >= watermark) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void map(Work<FetchedTable> work) throws InterruptedException {
+      var asset = toAsset(work.payload().table());
+      var shards = work.payload().shards();
+      offerUpload(work.with(shards == null ? asset : ShardedTables.toGroupAsset(asset, shards)));
+    }
+
+    private void harvest(Work<Harvest> work) {
+      var harvest = work.payload();
+      var projectId = work.batch().projectId();
+      calls.incrementAndGet();
+      try {
+        var failedDatasetNames = informationSchemaHarvester.harvest(projectId, harvest.datasets(),
+            harvest.watermarks(), asset -> offerHarvestedUpload(work, asset), seenAssetIdConsumer);
+        failedDatasetNames.forEach(work.batch()::fail);
+      } catch (RuntimeException e) {
+        log.warn("Failed to harvest project {}: {}", projectId, e.getMessage());
+        harvest.watermarks().keySet().forEach(work.batch()::fail);
+      }
+    }
+
+    private void offerHarvestedUpload(Work<Harvest> work, Asset asset) {
+      var datasetKey = datasetKey(asset.getId());
+      var datasetName = datasetKey.substring(datasetKey.lastIndexOf(':') + 1);
+      try {
+        long watermark = work.payload().watermarks().getOrDefault(datasetName, 0L);
+        offerUpload(new Work<>(work.batch(), datasetName, watermark, asset));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while synchronizing assets", e);
+      }
+    }
+
+    private void offerUpload(Work<Asset> work) throws InterruptedException {
+      var asset = work.payload();
+      if (pollSchedule != null) {
+        var updatedAt = asset.getProperties().get("updatedAt");
+        if (updatedAt != null) {
+          lastChanges.merge(datasetKey(asset.getId()), Long.parseLong(updatedAt), Math::max);
+        }
+      }
+      if (fingerprints != null && !fingerprints.update(asset)) {
+        log.debug("Skipping unchanged asset {}", asset.getId());
+        return;
+      }
+      uploadStage.submit(work);
+    }
+
+    private void upload(Work<Asset> work) throws InterruptedException {
+      if (batchingUploader != null) {
+        uploadBatched(work);
+        return;
+      }
+      try {
+        assetCallback.onAssetUpdated(work.payload());
+        metrics.onUploaded();
+      } catch (RuntimeException e) {
+        if (fingerprints != null) {
+          fingerprints.remove(work.payload().getId());
+        }
+        throw e;
       }
     }
 
-    setLastUpdatedAt(gcpLastUpdatedAtThisRunMax);
+    /**
+     * Keeps the dataset open until the batch holding the asset has been uploaded.
+     */
+    private void uploadBatched(Work<Asset> work) throws InterruptedException {
+      var asset = work.payload();
+      work.batch().retain();
+      CompletableFuture<Void> result;
+      try {
+        result = batchingUploader.upload(asset);
+      } catch (InterruptedException | RuntimeException e) {
+        work.batch().release();
+        throw e;
+      }
+      result.whenComplete((ignored, e) -> {
+        if (e != null) {
+          log.warn("Failed to upload asset {}: {}", asset.getId(), e.getMessage());
+          if (fingerprints != null) {
+            fingerprints.remove(asset.getId());
+          }
+          work.batch().fail(work.datasetName());
+        } else {
+          metrics.onUploaded();
+        }
+        work.batch().release();
+      });
+    }
+  }
+
+  private Set<String> projectIds() {
+    var allProjectIds = new LinkedHashSet<String>();
+    if (projectIds != null) {
+      allProjectIds.addAll(projectIds);
+    }
+    if (projectDiscovery != null) {
+      allProjectIds.addAll(projectDiscovery.getProjectIds());
+    }
+    return allProjectIds;
+  }
+
+  private List<Dataset> listDatasets(String projectId) {
+    log.info("Synchronizing project {}", projectId);
+    var datasets = new ArrayList<Dataset>();
+    var options = filter.labelFilter() == null
+        ? new DatasetListOption[] {DatasetListOption.all()}
+        : new DatasetListOption[] {DatasetListOption.all(), DatasetListOption.labelFilter(filter.labelFilter())};
+    bigquery.listDatasets(projectId, options).iterateAll().forEach(datasets::add);
+    datasets.sort(Comparator.comparing(dataset -> dataset.getDatasetId().getDataset()));
+    return datasets;
+  }
+
+  /**
+   * Reports assets of the previous run that were not seen in this run as deleted, except for assets of failed projects
+   * and datasets, which are carried over to the next run instead, and assets of datasets now synchronized by another
+   * replica, which are dropped.
+   */
+  private void emitDeletions(CompactIdSet.Builder seenAssetIds, Set<String> failedProjects, Set<String> failedDatasets,
+      Predicate<String> ownsDataset, boolean resumed, AssetCallback assetCallback) {
+    if (resumed) {
+      // datasets completed before the interruption were not listed in this run
+      log.info("Skipping deletion detection for resumed run");
+      previousAssetIds = null;
+      return;
+    }
+    if (previousAssetIds != null) {
+      previousAssetIds.forEachMissingFrom(seenAssetIds.build(), assetId -> {
+        var datasetKey = datasetKey(assetId);
+        var projectId = datasetKey.substring(0, datasetKey.lastIndexOf(':'));
+        if (failedDatasets.contains(datasetKey) || failedProjects.contains(projectId)) {
+          seenAssetIds.add(assetId);
+          return;
+        }
+        if (!ownsDataset.test(datasetKey)) {
+          return;
+        }
+        log.info("Asset {} was deleted", assetId);
+        assetCallback.onAssetDeleted(assetId);
+        metrics.onDeleted();
+        if (fingerprints != null) {
+          fingerprints.remove(assetId);
+        }
+      });
+    }
+    previousAssetIds = seenAssetIds.build();
+  }
+
+  /**
+   * Asset ids are {@code project:dataset} or {@code project:dataset.table}, and project ids may contain ':' and '.'.
+   */
+  static String datasetKey(String assetId) {
+    int dot = assetId.indexOf('.', assetId.lastIndexOf(':'));
+    return dot < 0 ? assetId : assetId.substring(0, dot);
+  }
+
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while synchronizing assets", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new IllegalStateException(e.getCause());
+    }
   }
 
   private long getLastUpdated(Table table) {
@@ -86,28 +941,15 @@ public class GcpAssetsProvider implements EntropyDataAssetsProvider {
   }
 
   // minimal helper (core fix only)
-  private String safeName(String friendlyName, String fallback) {
+  private static String safeName(String friendlyName, String fallback) {
     return (friendlyName != null && !friendlyName.isBlank())
         ? friendlyName
         : fallback;
   }
 
-  private Asset toAsset(Table table) {
-    String project = table.getTableId().getProject();
-    String dataset = table.getTableId().getDataset();
-    String tableName = table.getTableId().getTable();
-
-    String resolvedName = safeName(table.getFriendlyName(), tableName);
-
-    Asset asset = new Asset()
-        .id(table.getGeneratedId())
-        .info(new AssetInfo()
-            .name(resolvedName)
-            .source("gcp")
-            .qualifiedName(project + ":" + dataset + "." + tableName)
-            .status("active")
-            .description(table.getDescription()))
-        .putPropertiesItem("updatedAt", table.getLastModifiedTime().toString());
+  Asset toAsset(Table table) {
+    Asset asset = newTableAsset(table.getTableId(), table.getGeneratedId(), table.getFriendlyName(),
+        table.getDescription(), table.getLastModifiedTime());
 
     if (table.getDefinition() != null) {
       TableDefinition tableDefinition = table.getDefinition();
@@ -133,30 +975,45 @@ public class GcpAssetsProvider implements EntropyDataAssetsProvider {
   }
 
   private Asset toAsset(Dataset dataset) {
-    String project = dataset.getDatasetId().getProject();
-    String datasetName = dataset.getDatasetId().getDataset();
+    return newDatasetAsset(dataset.getDatasetId(), dataset.getGeneratedId(), dataset.getFriendlyName(),
+        dataset.getDescription(), dataset.getLastModified());
+  }
+
+  static Asset newTableAsset(TableId tableId, String generatedId, String friendlyName, String description,
+      Long lastModifiedTime) {
+    String project = tableId.getProject();
+    String dataset = tableId.getDataset();
+    String tableName = tableId.getTable();
 
-    String resolvedName = safeName(dataset.getFriendlyName(), datasetName);
+    String resolvedName = safeName(friendlyName, tableName);
 
     return new Asset()
-        .id(dataset.getGeneratedId())
+        .id(generatedId)
         .info(new AssetInfo()
             .name(resolvedName)
             .source("gcp")
-            .qualifiedName(project + ":" + datasetName)
-            .type("dataset")
+            .qualifiedName(project + ":" + dataset + "." + tableName)
             .status("active")
-            .description(dataset.getDescription()))
-        .putPropertiesItem("updatedAt", dataset.getLastModified().toString());
+            .description(description))
+        .putPropertiesItem("updatedAt", lastModifiedTime.toString());
   }
 
-  private Long getLastUpdatedAt() {
-    Map<String, Object> state = stateRepository.getState();
-    return (Long) state.getOrDefault("lastUpdatedAt", 0L);
-  }
+  static Asset newDatasetAsset(DatasetId datasetId, String generatedId, String friendlyName, String description,
+      Long lastModified) {
+    String project = datasetId.getProject();
+    String datasetName = datasetId.getDataset();
+
+    String resolvedName = safeName(friendlyName, datasetName);
 
-  private void setLastUpdatedAt(Long gcpLastUpdatedAtThisRunMax) {
-    Map<String, Object> state = Map.of("lastUpdatedAt", gcpLastUpdatedAtThisRunMax);
-    stateRepository.saveState(state);
+    return new Asset()
+        .id(generatedId)
+        .info(new AssetInfo()
+            .name(resolvedName)
+            .source("gcp")
+            .qualifiedName(project + ":" + datasetName)
+            .type("dataset")
+            .status("active")
+            .description(description))
+        .putPropertiesItem("updatedAt", lastModified.toString());
   }
 }
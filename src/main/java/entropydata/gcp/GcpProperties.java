@@ -1,19 +1,26 @@
 package entropydata.gcp;
 
+import java.time.Duration;
 import java.util.List;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 
 @ConfigurationProperties(prefix = "entropydata.client.gcp")
 public record GcpProperties(
     AccessmanagementProperties accessmanagement,
-    AssetProperties assets
+    AssetProperties assets,
+    @DefaultValue StateProperties state,
+    @DefaultValue RateLimitProperties ratelimit
 ) {
 
   public record AccessmanagementProperties(
       String connectorid,
       Boolean enabled,
       String role,
-      AccessmanagementMappingProperties mapping
+      AccessmanagementMappingProperties mapping,
+      @DefaultValue CacheProperties cache,
+      @DefaultValue AclBatchingProperties aclbatching,
+      @DefaultValue DispatcherProperties dispatcher
   ) {
     public record AccessmanagementMappingProperties(
         AccessmanagementMappingCustomfieldProperties dataproduct,
@@ -24,13 +31,172 @@ public record GcpProperties(
       ) {
       }
     }
+
+    /**
+     * Caching of the data products, data contracts and teams looked up for access events. {@code PT0S} disables it.
+     */
+    public record CacheProperties(
+        @DefaultValue("PT1M") Duration ttl,
+        @DefaultValue("1000") int maxsize
+    ) {
+    }
+
+    /**
+     * Batching of the ACL changes of concurrently processed events per dataset. {@code PT0S} disables it.
+     */
+    public record AclBatchingProperties(
+        @DefaultValue("PT0S") Duration window,
+        @DefaultValue("100") int maxchanges
+    ) {
+    }
+
+    /**
+     * Concurrent processing of access events, in order per access and dataset. {@code 1} processes them one at a time
+     * on the listener thread. See {@link AccessEventDispatcher}.
+     */
+    public record DispatcherProperties(
+        @DefaultValue("1") int concurrency,
+        @DefaultValue("100") int maxinflight
+    ) {
+    }
   }
 
   public record AssetProperties(
       String connectorid,
       Boolean enabled,
-      List<String> projects
+      List<String> projects,
+      @DefaultValue("PT5S") Duration pollinterval,
+      @DefaultValue AdaptivePollingProperties adaptivepolling,
+      @DefaultValue BudgetProperties budget,
+      @DefaultValue("1") int parallelism,
+      @DefaultValue("api") HarvestMode harvestmode,
+      @DefaultValue("false") boolean prefilter,
+      @DefaultValue("100") int checkpointinterval,
+      @DefaultValue("false") boolean suppressunchanged,
+      @DefaultValue("false") boolean detectdeletions,
+      @DefaultValue("false") boolean collapseshards,
+      @DefaultValue DatasetsProperties datasets,
+      @DefaultValue TablesProperties tables,
+      @DefaultValue PipelineProperties pipeline,
+      @DefaultValue BatchingProperties batching,
+      @DefaultValue DiscoveryProperties discovery,
+      @DefaultValue ShardingProperties sharding
   ) {
+    public enum HarvestMode {
+      API,
+      INFORMATION_SCHEMA
+    }
+
+    /**
+     * Polls datasets that rarely change less often than {@code pollinterval}. See {@link DatasetPollSchedule}.
+     */
+    public record AdaptivePollingProperties(
+        @DefaultValue("false") boolean enabled,
+        @DefaultValue("PT1H") Duration maxstaleness,
+        @DefaultValue("0.1") double jitter
+    ) {
+    }
+
+    /**
+     * Limits of a single run, zero meaning no limit. A run that reaches a limit is continued by the next run.
+     */
+    public record BudgetProperties(
+        @DefaultValue("PT0S") Duration maxduration,
+        @DefaultValue("0") int maxcalls
+    ) {
+    }
+
+    /**
+     * Glob patterns ({@code *}, {@code ?}) of dataset names, and labels ({@code key} or {@code key:value}) that every
+     * synchronized dataset must carry.
+     */
+    public record DatasetsProperties(
+        @DefaultValue("*") List<String> allowlist,
+        @DefaultValue List<String> denylist,
+        @DefaultValue List<String> labels
+    ) {
+    }
+
+    /**
+     * Glob patterns of table names, or of {@code dataset.table} for patterns containing a dot.
+     */
+    public record TablesProperties(
+        @DefaultValue("*") List<String> allowlist,
+        @DefaultValue List<String> denylist
+    ) {
+    }
+
+    /**
+     * Threads per pipeline stage, 0 for the default. See {@link GcpAssetsProvider#setStageConcurrency}.
+     */
+    public record PipelineProperties(
+        @DefaultValue("0") int listdatasets,
+        @DefaultValue("0") int listtables,
+        @DefaultValue("0") int fetch,
+        @DefaultValue("0") int map,
+        @DefaultValue("0") int upload,
+        @DefaultValue("1000") int queuecapacity
+    ) {
+    }
+
+    /**
+     * Organizations and folders ({@code organizations/123}, {@code folders/456}) whose projects are discovered.
+     */
+    public record DiscoveryProperties(
+        @DefaultValue List<String> parents,
+        @DefaultValue("PT1H") Duration refreshinterval,
+        @DefaultValue("8") int parallelism
+    ) {
+    }
+
+    /**
+     * Splits the datasets across replicas that share a lease directory. See {@link ReplicaMembership}.
+     */
+    public record ShardingProperties(
+        @DefaultValue("false") boolean enabled,
+        @DefaultValue("replicas") String directory,
+        @DefaultValue("") String replicaid,
+        @DefaultValue("PT30S") Duration leaseduration,
+        @DefaultValue("128") int virtualnodes
+    ) {
+    }
+
+    public record BatchingProperties(
+        @DefaultValue("false") boolean enabled,
+        @DefaultValue("/api/assets/bulk") String path,
+        @DefaultValue("500") int maxassets,
+        @DefaultValue("4000000") int maxbytes,
+        @DefaultValue("PT1S") Duration maxdelay,
+        @DefaultValue("4") int maxinflight,
+        @DefaultValue("PT30S") Duration timeout
+    ) {
+    }
+  }
+
+  /**
+   * Client-side limits of the BigQuery calls of all connectors, per project. See {@link RateLimitedBigQuery}.
+   */
+  public record RateLimitProperties(
+      @DefaultValue("true") boolean enabled,
+      @DefaultValue("50") double requestspersecond,
+      @DefaultValue("50") int burst,
+      @DefaultValue("16") int maxconcurrency,
+      @DefaultValue("8") int maxretries,
+      @DefaultValue("PT0.5S") Duration initialbackoff,
+      @DefaultValue("PT32S") Duration maxbackoff
+  ) {
+  }
+
+  public record StateProperties(
+      @DefaultValue("memory") StateType type,
+      @DefaultValue("state") String directory,
+      @DefaultValue("PT1S") Duration syncinterval,
+      @DefaultValue("1000") int compactionthreshold
+  ) {
+    public enum StateType {
+      MEMORY,
+      FILE
+    }
   }
 
 }
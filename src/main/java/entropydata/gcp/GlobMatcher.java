@@ -0,0 +1,115 @@
+package entropydata.gcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches names against a list of glob patterns, where {@code *} matches any sequence of characters and {@code ?} any
+ * single character. The patterns are compiled once: names without wildcards go into a hash set, patterns with a single
+ * trailing {@code *} into a prefix trie, and all other patterns into one regular expression. A name is checked in
+ * time proportional to its length for the first two kinds.
+ */
+class GlobMatcher {
+
+  private final boolean matchesAll;
+  private final Set<String> names = new HashSet<>();
+  private final TrieNode prefixes = new TrieNode();
+  private final Pattern pattern;
+
+  private GlobMatcher(List<String> globs) {
+    boolean all = false;
+    var regexes = new ArrayList<String>();
+    for (var glob : globs) {
+      if (glob.isBlank()) {
+        continue;
+      }
+      int firstWildcard = indexOfWildcard(glob);
+      if (glob.equals("*")) {
+        all = true;
+      } else if (firstWildcard < 0) {
+        names.add(glob);
+      } else if (firstWildcard == glob.length() - 1 && glob.endsWith("*")) {
+        prefixes.add(glob.substring(0, glob.length() - 1));
+      } else {
+        regexes.add(toRegex(glob));
+      }
+    }
+    this.matchesAll = all;
+    this.pattern = regexes.isEmpty() ? null : Pattern.compile(String.join("|", regexes));
+  }
+
+  static GlobMatcher compile(List<String> globs) {
+    return new GlobMatcher(globs == null ? List.of() : globs);
+  }
+
+  boolean matches(String name) {
+    return matchesAll
+        || names.contains(name)
+        || prefixes.matchesPrefixOf(name)
+        || (pattern != null && pattern.matcher(name).matches());
+  }
+
+  private static int indexOfWildcard(String glob) {
+    for (int i = 0; i < glob.length(); i++) {
+      if (glob.charAt(i) == '*' || glob.charAt(i) == '?') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String toRegex(String glob) {
+    var regex = new StringBuilder("(?:");
+    int literalStart = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        if (i > literalStart) {
+          regex.append(Pattern.quote(glob.substring(literalStart, i)));
+        }
+        regex.append(c == '*' ? ".*" : ".");
+        literalStart = i + 1;
+      }
+    }
+    if (literalStart < glob.length()) {
+      regex.append(Pattern.quote(glob.substring(literalStart)));
+    }
+    return regex.append(')').toString();
+  }
+
+  private static class TrieNode {
+
+    private final Map<Character, TrieNode> children = new HashMap<>();
+    private boolean terminal;
+
+    void add(String prefix) {
+      var node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), c -> new TrieNode());
+      }
+      node.terminal = true;
+    }
+
+    boolean matchesPrefixOf(String name) {
+      var node = this;
+      for (int i = 0; ; i++) {
+        if (node.terminal) {
+          return true;
+        }
+        if (i == name.length()) {
+          return false;
+        }
+        node = node.children.get(name.charAt(i));
+        if (node == null) {
+          return false;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,51 @@
+package entropydata.gcp;
+
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.http.HttpTransportOptions;
+import java.util.function.Supplier;
+
+/**
+ * HTTP transport of the BigQuery client that sends an {@code If-Match} header with the requests made inside
+ * {@link #withIfMatch}, so that {@link DatasetAclUpdater} does not depend on whether the client derives the
+ * precondition from the etag of the updated dataset. The client executes a call on the calling thread, so the etag is
+ * passed to the request through a thread local.
+ */
+class IfMatchTransportOptions extends HttpTransportOptions {
+
+  private static final ThreadLocal<String> IF_MATCH = new ThreadLocal<>();
+
+  IfMatchTransportOptions(HttpTransportOptions.Builder builder) {
+    super(builder);
+  }
+
+  static IfMatchTransportOptions create() {
+    return new IfMatchTransportOptions(HttpTransportOptions.newBuilder());
+  }
+
+  /**
+   * @return the result of {@code call}, whose requests are sent with {@code If-Match: etag}, or without precondition
+   *     if {@code etag} is null
+   */
+  static <T> T withIfMatch(String etag, Supplier<T> call) {
+    IF_MATCH.set(etag);
+    try {
+      return call.get();
+    } finally {
+      IF_MATCH.remove();
+    }
+  }
+
+  @Override
+  public HttpRequestInitializer getHttpRequestInitializer(ServiceOptions<?, ?> serviceOptions) {
+    var delegate = super.getHttpRequestInitializer(serviceOptions);
+    return request -> {
+      delegate.initialize(request);
+      var etag = IF_MATCH.get();
+      if (etag != null) {
+        request.getHeaders().setIfMatch(etag);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,333 @@
+package entropydata.gcp;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Dataset;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.TableId;
+import entropydata.gcp.ShardedTables.Grouping;
+import entropydata.sdk.client.model.Asset;
+import entropydata.sdk.client.model.AssetColumnsInner;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads dataset, table and column metadata of a project with a handful of region-wide INFORMATION_SCHEMA queries
+ * instead of one {@code getDataset}/{@code getTable} call per resource.
+ * <p>
+ * INFORMATION_SCHEMA.TABLES has no modification time, so table modification times are read from the
+ * {@code __TABLES__} meta-tables of up to {@value #DATASETS_PER_META_TABLE_QUERY} datasets per query.
+ */
+public class InformationSchemaHarvester {
+
+  private static final Logger log = LoggerFactory.getLogger(InformationSchemaHarvester.class);
+
+  static final int DATASETS_PER_META_TABLE_QUERY = 500;
+
+  private final BigQuery bigquery;
+  private boolean collapseShards = false;
+  private AssetFilter filter = AssetFilter.ALL;
+
+  public InformationSchemaHarvester(BigQuery bigquery) {
+    this.bigquery = bigquery;
+  }
+
+  /**
+   * Skips tables excluded by the filter. Datasets are expected to be filtered by the caller.
+   */
+  public void setFilter(AssetFilter filter) {
+    this.filter = filter;
+  }
+
+  /**
+   * Emits one asset per group of date-sharded tables instead of one per shard. See {@link ShardedTables}.
+   */
+  public void setCollapseShards(boolean collapseShards) {
+    this.collapseShards = collapseShards;
+  }
+
+  /**
+   * Harvests all given datasets of a project and emits the assets modified at or after the watermark of their dataset.
+   * Failures are logged and isolated to the affected region.
+   *
+   * @param watermarks watermark per dataset name
+   * @param seenAssetIdConsumer receives the id of every dataset and table found, whether modified or not
+   * @return the names of the datasets that could not be harvested
+   */
+  public Set<String> harvest(String projectId, Iterable<Dataset> datasets, Map<String, Long> watermarks,
+      Consumer<Asset> assetConsumer, Consumer<String> seenAssetIdConsumer) {
+    var datasetsByLocation = new TreeMap<String, Set<String>>();
+    for (Dataset dataset : datasets) {
+      var location = dataset.getLocation() == null ? "US" : dataset.getLocation();
+      datasetsByLocation.computeIfAbsent(location.toLowerCase(), l -> new TreeSet<>())
+          .add(dataset.getDatasetId().getDataset());
+    }
+
+    var failedDatasets = new HashSet<String>();
+    for (var entry : datasetsByLocation.entrySet()) {
+      try {
+        log.info("Harvesting project {} in region {}", projectId, entry.getKey());
+        harvestRegion(projectId, entry.getKey(), entry.getValue(), watermarks, assetConsumer, seenAssetIdConsumer);
+      } catch (Exception e) {
+        log.warn("Failed to harvest project {} in region {}: {}", projectId, entry.getKey(), e.getMessage());
+        failedDatasets.addAll(entry.getValue());
+      }
+    }
+    return failedDatasets;
+  }
+
+  private void harvestRegion(String projectId, String location, Set<String> datasetNames, Map<String, Long> watermarks,
+      Consumer<Asset> assetConsumer, Consumer<String> seenAssetIdConsumer) throws InterruptedException {
+    var informationSchema = "`" + projectId + "`.`region-" + location + "`.INFORMATION_SCHEMA";
+
+    var datasetRows = query("""
+        SELECT s.schema_name, s.last_modified_time,
+          MAX(IF(o.option_name = 'friendly_name', o.option_value, NULL)) AS friendly_name,
+          MAX(IF(o.option_name = 'description', o.option_value, NULL)) AS description
+        FROM %1$s.SCHEMATA s
+        LEFT JOIN %1$s.SCHEMATA_OPTIONS o ON o.schema_name = s.schema_name
+        GROUP BY s.schema_name, s.last_modified_time
+        """.formatted(informationSchema));
+    for (FieldValueList row : datasetRows) {
+      var datasetName = row.get("schema_name").getStringValue();
+      if (!datasetNames.contains(datasetName)) {
+        continue;
+      }
+      seenAssetIdConsumer.accept(projectId + ":" + datasetName);
+      long lastModified = row.get("last_modified_time").getTimestampValue() / 1000;
+      if (lastModified >= watermarks.get(datasetName)) {
+        assetConsumer.accept(GcpAssetsProvider.newDatasetAsset(DatasetId.of(projectId, datasetName),
+            projectId + ":" + datasetName, stringOrNull(row.get("friendly_name")), stringOrNull(row.get("description")),
+            lastModified));
+      }
+    }
+
+    var lastModifiedTimes = queryLastModifiedTimes(projectId, datasetNames);
+
+    var changedTables = new LinkedHashMap<String, Asset>();
+    var shardGroups = new HashMap<String, ShardedTables.ShardGroup>();
+    var tableRows = query("""
+        SELECT t.table_schema, t.table_name, t.table_type,
+          MAX(IF(o.option_name = 'friendly_name', o.option_value, NULL)) AS friendly_name,
+          MAX(IF(o.option_name = 'description', o.option_value, NULL)) AS description
+        FROM %1$s.TABLES t
+        LEFT JOIN %1$s.TABLE_OPTIONS o ON o.table_schema = t.table_schema AND o.table_name = t.table_name
+        GROUP BY t.table_schema, t.table_name, t.table_type
+        """.formatted(informationSchema));
+    var shardGroupings = Map.<String, Grouping>of();
+    if (collapseShards) {
+      // iterated twice, so keep the rows instead of fetching their pages again
+      var rows = new ArrayList<FieldValueList>();
+      tableRows.forEach(rows::add);
+      tableRows = rows;
+      shardGroupings = groupShards(rows, datasetNames, filter);
+    }
+    for (FieldValueList row : tableRows) {
+      var datasetName = row.get("table_schema").getStringValue();
+      var tableName = row.get("table_name").getStringValue();
+      var key = datasetName + "." + tableName;
+      if (!datasetNames.contains(datasetName) || !filter.includesTable(datasetName, tableName)) {
+        continue;
+      }
+      var lastModified = lastModifiedTimes.get(key);
+      var grouping = shardGroupings.get(datasetName);
+      var shardGroup = grouping == null ? null : grouping.groupOf(tableName);
+      if (shardGroup != null) {
+        if (!tableName.equals(shardGroup.newestTableName())) {
+          continue;
+        }
+        // the group changed if any of its shards changed
+        lastModified = shardGroup.tableNames().stream()
+            .map(shardName -> lastModifiedTimes.get(datasetName + "." + shardName))
+            .filter(Objects::nonNull)
+            .max(Long::compare)
+            .orElse(null);
+        seenAssetIdConsumer.accept(ShardedTables.groupAssetId(projectId + ":" + datasetName, shardGroup));
+      } else {
+        seenAssetIdConsumer.accept(projectId + ":" + key);
+      }
+      if (lastModified == null || lastModified < watermarks.get(datasetName)) {
+        continue;
+      }
+      var asset = GcpAssetsProvider.newTableAsset(TableId.of(projectId, datasetName, tableName),
+          projectId + ":" + key, stringOrNull(row.get("friendly_name")), stringOrNull(row.get("description")),
+          lastModified);
+      asset.getInfo().type(toTableType(row.get("table_type").getStringValue()));
+      changedTables.put(key, asset);
+      if (shardGroup != null) {
+        shardGroups.put(key, shardGroup);
+      }
+    }
+
+    if (!changedTables.isEmpty()) {
+      var columnRows = query("""
+          SELECT c.table_schema, c.table_name, c.column_name, c.data_type, p.description
+          FROM %1$s.COLUMNS c
+          LEFT JOIN %1$s.COLUMN_FIELD_PATHS p
+            ON p.table_schema = c.table_schema AND p.table_name = c.table_name AND p.field_path = c.column_name
+          ORDER BY c.table_schema, c.table_name, c.ordinal_position
+          """.formatted(informationSchema));
+      for (FieldValueList row : columnRows) {
+        var asset = changedTables.get(row.get("table_schema").getStringValue() + "." + row.get("table_name").getStringValue());
+        if (asset == null) {
+          continue;
+        }
+        asset.addColumnsItem(new AssetColumnsInner()
+            .name(row.get("column_name").getStringValue())
+            .type(toLegacyTypeName(row.get("data_type").getStringValue()))
+            .description(row.get("description").isNull() ? null : row.get("description").getStringValue()));
+      }
+    }
+
+    changedTables.forEach((key, asset) -> {
+      var shardGroup = shardGroups.get(key);
+      assetConsumer.accept(shardGroup == null ? asset : ShardedTables.toGroupAsset(asset, shardGroup));
+    });
+  }
+
+  private static Map<String, Grouping> groupShards(Iterable<FieldValueList> tableRows, Set<String> datasetNames,
+      AssetFilter filter) {
+    var tableNamesByDataset = new HashMap<String, List<String>>();
+    for (FieldValueList row : tableRows) {
+      var datasetName = row.get("table_schema").getStringValue();
+      var tableName = row.get("table_name").getStringValue();
+      if (datasetNames.contains(datasetName) && filter.includesTable(datasetName, tableName)) {
+        tableNamesByDataset.computeIfAbsent(datasetName, key -> new ArrayList<>()).add(tableName);
+      }
+    }
+    var groupings = new HashMap<String, Grouping>();
+    tableNamesByDataset.forEach((datasetName, tableNames) -> groupings.put(datasetName, ShardedTables.group(tableNames)));
+    return groupings;
+  }
+
+  /**
+   * Reads the modification time of every table in the given datasets from their {@code __TABLES__} meta-tables.
+   *
+   * @return modification times in epoch millis, keyed by {@code dataset.table}
+   */
+  Map<String, Long> queryLastModifiedTimes(String projectId, Set<String> datasetNames) throws InterruptedException {
+    var result = new HashMap<String, Long>();
+    var chunk = new ArrayList<String>(DATASETS_PER_META_TABLE_QUERY);
+    for (var datasetName : datasetNames) {
+      chunk.add(datasetName);
+      if (chunk.size() == DATASETS_PER_META_TABLE_QUERY) {
+        queryLastModifiedTimes(projectId, chunk, result);
+        chunk.clear();
+      }
+    }
+    if (!chunk.isEmpty()) {
+      queryLastModifiedTimes(projectId, chunk, result);
+    }
+    return result;
+  }
+
+  /**
+   * Reads the modification time of every table in a dataset with a single query against its {@code __TABLES__}
+   * meta-table.
+   *
+   * @return modification times in epoch millis, keyed by table name
+   */
+  public Map<String, Long> queryLastModifiedTimes(DatasetId datasetId) throws InterruptedException {
+    var result = new HashMap<String, Long>();
+    var prefix = datasetId.getDataset() + ".";
+    var lastModifiedTimes = new HashMap<String, Long>();
+    queryLastModifiedTimes(datasetId.getProject(), List.of(datasetId.getDataset()), lastModifiedTimes);
+    lastModifiedTimes.forEach((key, lastModified) -> result.put(key.substring(prefix.length()), lastModified));
+    return result;
+  }
+
+  private void queryLastModifiedTimes(String projectId, List<String> datasetNames, Map<String, Long> result)
+      throws InterruptedException {
+    var sql = datasetNames.stream()
+        .map(datasetName -> "SELECT dataset_id, table_id, last_modified_time FROM `" + projectId + "`.`" + datasetName + "`.__TABLES__")
+        .collect(Collectors.joining("\nUNION ALL\n"));
+    for (FieldValueList row : query(sql)) {
+      result.put(row.get("dataset_id").getStringValue() + "." + row.get("table_id").getStringValue(),
+          row.get("last_modified_time").getLongValue());
+    }
+  }
+
+  private Iterable<FieldValueList> query(String sql) throws InterruptedException {
+    return bigquery.query(QueryJobConfiguration.newBuilder(sql).setUseLegacySql(false).build()).iterateAll();
+  }
+
+  private static String stringOrNull(FieldValue value) {
+    return value == null || value.isNull() ? null : unquote(value.getStringValue());
+  }
+
+  /**
+   * Option values in INFORMATION_SCHEMA are rendered as SQL string literals, e.g. {@code "My \"table\""}.
+   */
+  static String unquote(String optionValue) {
+    if (optionValue == null || optionValue.length() < 2 || optionValue.charAt(0) != '"'
+        || optionValue.charAt(optionValue.length() - 1) != '"') {
+      return optionValue;
+    }
+    var result = new StringBuilder(optionValue.length() - 2);
+    for (int i = 1; i < optionValue.length() - 1; i++) {
+      char c = optionValue.charAt(i);
+      if (c == '\\' && i + 1 < optionValue.length() - 1) {
+        char escaped = optionValue.charAt(++i);
+        result.append(switch (escaped) {
+          case 'n' -> '\n';
+          case 't' -> '\t';
+          case 'r' -> '\r';
+          default -> escaped;
+        });
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Maps an INFORMATION_SCHEMA table type to the {@code TableDefinition.Type} name used by the API harvester.
+   */
+  static String toTableType(String tableType) {
+    return switch (tableType) {
+      case "BASE TABLE", "CLONE" -> "TABLE";
+      case "MATERIALIZED VIEW" -> "MATERIALIZED_VIEW";
+      default -> tableType;
+    };
+  }
+
+  /**
+   * Maps a GoogleSQL data type such as {@code ARRAY<STRUCT<a INT64>>} to the legacy type name used by the API harvester.
+   */
+  static String toLegacyTypeName(String dataType) {
+    var type = dataType;
+    if (type.startsWith("ARRAY<") && type.endsWith(">")) {
+      type = type.substring("ARRAY<".length(), type.length() - 1);
+    }
+    for (int i = 0; i < type.length(); i++) {
+      char c = type.charAt(i);
+      if (c == '<' || c == '(') {
+        type = type.substring(0, i);
+        break;
+      }
+    }
+    return switch (type.trim()) {
+      case "INT64" -> "INTEGER";
+      case "FLOAT64" -> "FLOAT";
+      case "BOOL" -> "BOOLEAN";
+      case "STRUCT" -> "RECORD";
+      default -> type.trim();
+    };
+  }
+
+}
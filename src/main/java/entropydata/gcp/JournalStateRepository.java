@@ -0,0 +1,222 @@
+package entropydata.gcp;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import entropydata.sdk.EntropyDataStateRepository;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * State repository that survives restarts by appending every saved state to a journal file on a local volume.
+ * <p>
+ * Each journal line holds a sequence number, a CRC32 checksum and the state as JSON, so a line torn by a crash is
+ * detected and skipped on load. The journal is forced to disk at most once per {@code syncInterval}; writes in between
+ * only reach the page cache and survive a process crash, but not a machine crash. After {@code compactionThreshold}
+ * entries the current state is written to a snapshot file, which atomically replaces the previous snapshot, and the
+ * journal is truncated once the directory entry of the new snapshot was forced to disk as well.
+ */
+public class JournalStateRepository implements EntropyDataStateRepository, Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(JournalStateRepository.class);
+
+  private static final TypeReference<Map<String, Object>> STATE_TYPE = new TypeReference<>() {
+  };
+
+  // Windows cannot open a directory as a channel
+  private static final boolean FORCE_DIRECTORY = !System.getProperty("os.name", "").startsWith("Windows");
+
+  private final Path journalPath;
+  private final Path snapshotPath;
+  private final long syncIntervalMillis;
+  private final int compactionThreshold;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final FileChannel journal;
+  private Map<String, Object> state = new HashMap<>();
+  private long sequence;
+  private int journalEntries;
+  private long lastSyncAt;
+  private boolean unsynced;
+
+  public JournalStateRepository(Path directory, String name, Duration syncInterval, int compactionThreshold) {
+    this.journalPath = directory.resolve(name + ".journal");
+    this.snapshotPath = directory.resolve(name + ".snapshot");
+    this.syncIntervalMillis = syncInterval.toMillis();
+    this.compactionThreshold = compactionThreshold;
+    try {
+      Files.createDirectories(directory);
+      boolean tornJournal = load();
+      this.journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+      if (tornJournal) {
+        compact();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to open state journal " + journalPath, e);
+    }
+    log.info("Loaded state {} from {} at sequence {}", name, directory, sequence);
+  }
+
+  @Override
+  public synchronized Map<String, Object> getState() {
+    return state;
+  }
+
+  @Override
+  public synchronized void saveState(Map<String, Object> state) {
+    try {
+      sequence++;
+      write(journal, toLine(sequence, state));
+      this.state = state;
+      journalEntries++;
+      unsynced = true;
+
+      long now = System.currentTimeMillis();
+      if (journalEntries >= compactionThreshold) {
+        compact();
+      } else if (now - lastSyncAt >= syncIntervalMillis) {
+        journal.force(false);
+        lastSyncAt = now;
+        unsynced = false;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to write state journal " + journalPath, e);
+    }
+  }
+
+  /**
+   * Forces pending journal entries to disk and closes the journal.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (unsynced) {
+      journal.force(false);
+    }
+    journal.close();
+  }
+
+  /**
+   * @return whether the journal ends with a torn or corrupt entry
+   */
+  private boolean load() throws IOException {
+    if (Files.exists(snapshotPath)) {
+      if (parseLines(Files.readAllBytes(snapshotPath), true)) {
+        throw new IOException("Corrupt state snapshot " + snapshotPath);
+      }
+    }
+    if (Files.exists(journalPath)) {
+      return parseLines(Files.readAllBytes(journalPath), false);
+    }
+    return false;
+  }
+
+  /**
+   * Applies all valid lines and stops at the first torn or corrupt one.
+   *
+   * @return whether a torn or corrupt line was found
+   */
+  private boolean parseLines(byte[] bytes, boolean snapshot) throws IOException {
+    int start = 0;
+    while (start < bytes.length) {
+      int end = start;
+      while (end < bytes.length && bytes[end] != '\n') {
+        end++;
+      }
+      if (end == bytes.length) {
+        return true;
+      }
+      var line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+      start = end + 1;
+
+      var parts = line.split(" ", 3);
+      if (parts.length != 3) {
+        return true;
+      }
+      long lineSequence;
+      long checksum;
+      try {
+        lineSequence = Long.parseLong(parts[0]);
+        checksum = Long.parseLong(parts[1], 16);
+      } catch (NumberFormatException e) {
+        return true;
+      }
+      var json = parts[2].getBytes(StandardCharsets.UTF_8);
+      if (crc32(json) != checksum) {
+        return true;
+      }
+      // entries older than the snapshot remain if a crash happened between writing the snapshot and truncating
+      if (snapshot || lineSequence > sequence) {
+        state = objectMapper.readValue(json, STATE_TYPE);
+        sequence = lineSequence;
+        if (!snapshot) {
+          journalEntries++;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void compact() throws IOException {
+    var temporaryPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+    try (var snapshot = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      write(snapshot, toLine(sequence, state));
+      snapshot.force(true);
+    }
+    Files.move(temporaryPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    // otherwise a machine crash may lose the rename after the truncation reached the disk, and with it the state
+    forceDirectory(snapshotPath.toAbsolutePath().getParent());
+    journal.truncate(0);
+    journal.force(true);
+    journalEntries = 0;
+    lastSyncAt = System.currentTimeMillis();
+    unsynced = false;
+  }
+
+  private static void forceDirectory(Path directory) throws IOException {
+    if (!FORCE_DIRECTORY) {
+      return;
+    }
+    try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  private byte[] toLine(long lineSequence, Map<String, Object> state) throws IOException {
+    var json = objectMapper.writeValueAsBytes(state);
+    var prefix = (lineSequence + " " + Long.toHexString(crc32(json)) + " ").getBytes(StandardCharsets.UTF_8);
+    var line = Arrays.copyOf(prefix, prefix.length + json.length + 1);
+    System.arraycopy(json, 0, line, prefix.length, json.length);
+    line[line.length - 1] = '\n';
+    return line;
+  }
+
+  private static void write(FileChannel channel, byte[] bytes) throws IOException {
+    var buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static long crc32(byte[] bytes) {
+    var crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+}
@@ -0,0 +1,161 @@
+package entropydata.gcp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import entropydata.sdk.client.model.DataContract;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads output ports, servers and custom fields from data products in the Data Product Specification (DPS) or Open Data
+ * Product Standard (ODPS) format, and from data contracts in the Data Contract Specification (DCS) or Open Data
+ * Contract Standard (ODCS) format.
+ * <p>
+ * The client returns data products as the maps they were parsed into, and data contracts as typed models whose servers
+ * are maps. Both are navigated in place, so only the matched output port and server are copied, however many output
+ * ports, servers and models there are. Only a data product of another type is converted to a map first.
+ */
+class OutputPortResolver {
+
+  private final ObjectMapper objectMapper;
+
+  OutputPortResolver(ObjectMapper objectMapper) {
+    this.objectMapper = objectMapper;
+  }
+
+  /**
+   * @return the output port whose id (DPS) or name (ODPS) is {@code outputPortId}, or {@code null}
+   */
+  @SuppressWarnings("unchecked")
+  Map<String, Object> findOutputPort(Object dataProduct, String outputPortId) {
+    if (!(asMap(dataProduct).get("outputPorts") instanceof List<?> outputPorts)) {
+      return null;
+    }
+    for (var port : outputPorts) {
+      if (port instanceof Map<?, ?> portMap
+          && (outputPortId.equals(portMap.get("id")) || outputPortId.equals(portMap.get("name")))) {
+        return (Map<String, Object>) portMap;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the data contract of the output port, DPS {@code dataContractId} or ODPS {@code contractId}, or
+   *     {@code null}
+   */
+  String findDataContractId(Map<String, Object> outputPort) {
+    if (outputPort.get("dataContractId") instanceof String dataContractId) {
+      return dataContractId;
+    }
+    if (outputPort.get("contractId") instanceof String contractId) {
+      return contractId;
+    }
+    // ODPS may store contractId in customProperties
+    return getCustomPropertyValue(outputPort, "contractId");
+  }
+
+  /**
+   * @param serverName the {@code contractServer} of the output port, or {@code null} for the first server
+   * @return the named server of the data contract, falling back to the first one, or {@code null}
+   */
+  Map<String, String> findContractServer(DataContract dataContract, String serverName) {
+    Object servers = dataContract.getServers();
+    // DCS: servers is a Map<String, Server>
+    if (servers instanceof Map<?, ?> serversMap) {
+      var server = serverName == null ? null : serversMap.get(serverName);
+      if (server == null && !serversMap.isEmpty()) {
+        server = serversMap.values().iterator().next();
+      }
+      return server instanceof Map<?, ?> serverMap ? toStringMap(serverMap) : null;
+    }
+    // ODCS: servers is a List with "server" field as the name
+    if (servers instanceof List<?> serversList && !serversList.isEmpty()) {
+      Object server = serversList.get(0);
+      if (serverName != null) {
+        for (var candidate : serversList) {
+          if (candidate instanceof Map<?, ?> candidateMap && serverName.equals(candidateMap.get("server"))) {
+            server = candidate;
+            break;
+          }
+        }
+      }
+      return server instanceof Map<?, ?> serverMap ? toStringMap(serverMap) : null;
+    }
+    return null;
+  }
+
+  /**
+   * @return the server of the output port itself, DPS {@code server} or ODPS custom property {@code server}, or
+   *     {@code null}
+   */
+  Map<String, String> findOutputPortServer(Map<String, Object> outputPort) {
+    if (outputPort.get("server") instanceof Map<?, ?> server) {
+      return toStringMap(server);
+    }
+    if (outputPort.get("customProperties") instanceof List<?> customProperties) {
+      for (var property : customProperties) {
+        if (property instanceof Map<?, ?> propertyMap && "server".equals(propertyMap.get("property"))
+            && propertyMap.get("value") instanceof Map<?, ?> server) {
+          return toStringMap(server);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the custom field of the output port, DPS {@code custom} or ODPS {@code customProperties}, or {@code null}
+   */
+  String getOutputPortCustomField(Map<String, Object> outputPort, String fieldName) {
+    if (outputPort.get("custom") instanceof Map<?, ?> custom) {
+      var value = custom.get(fieldName);
+      if (value != null) {
+        return value.toString();
+      }
+    }
+    return getCustomPropertyValue(outputPort, fieldName);
+  }
+
+  /**
+   * @return the custom field of the data product, DPS {@code custom} or ODPS {@code customProperties}, or {@code null}
+   */
+  String getCustomField(Object dataProduct, String fieldName) {
+    var map = asMap(dataProduct);
+    if (map.get("custom") instanceof Map<?, ?> custom) {
+      var value = custom.get(fieldName);
+      return value == null ? null : value.toString();
+    }
+    return getCustomPropertyValue(map, fieldName);
+  }
+
+  private static String getCustomPropertyValue(Map<?, ?> map, String propertyName) {
+    if (map.get("customProperties") instanceof List<?> customProperties) {
+      for (var property : customProperties) {
+        if (property instanceof Map<?, ?> propertyMap && propertyName.equals(propertyMap.get("property"))) {
+          var value = propertyMap.get("value");
+          return value != null ? value.toString() : null;
+        }
+      }
+    }
+    return null;
+  }
+
+  private Map<?, ?> asMap(Object dataProduct) {
+    if (dataProduct instanceof Map<?, ?> map) {
+      return map;
+    }
+    return objectMapper.convertValue(dataProduct, Map.class);
+  }
+
+  private static Map<String, String> toStringMap(Map<?, ?> map) {
+    var result = new HashMap<String, String>();
+    for (var entry : map.entrySet()) {
+      if (entry.getValue() != null) {
+        result.put(entry.getKey().toString(), entry.getValue().toString());
+      }
+    }
+    return result;
+  }
+
+}
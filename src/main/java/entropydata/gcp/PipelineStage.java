@@ -0,0 +1,146 @@
+package entropydata.gcp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One stage of the asset synchronization pipeline: a bounded queue drained by a fixed number of worker threads.
+ * {@link #submit} blocks while the queue is full, which throttles the upstream stage to the pace of this one.
+ * <p>
+ * Every {@link Work} item belongs to a {@link Batch}, which completes once all its items and the items they submitted
+ * downstream have been handled. A failing item marks its dataset as failed in the batch but does not stop the stage.
+ */
+class PipelineStage<T> {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelineStage.class);
+
+  interface Handler<T> {
+    void handle(Work<T> work) throws Exception;
+  }
+
+  /**
+   * @param watermark the watermark of the dataset the item belongs to
+   */
+  record Work<T>(Batch batch, String datasetName, long watermark, T payload) {
+    <R> Work<R> with(R payload) {
+      return new Work<>(batch, datasetName, watermark, payload);
+    }
+  }
+
+  private final String name;
+  private final Handler<T> handler;
+  private final BlockingQueue<Work<T>> queue;
+  private final List<Thread> workers = new ArrayList<>();
+
+  private PipelineStage(String name, int capacity, Handler<T> handler) {
+    this.name = name;
+    this.handler = handler;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+  }
+
+  static <T> PipelineStage<T> start(String name, int concurrency, int capacity, Handler<T> handler) {
+    var stage = new PipelineStage<>(name, capacity, handler);
+    for (int i = 1; i <= concurrency; i++) {
+      var thread = new Thread(stage::work, "gcp-assets-" + name + "-" + i);
+      thread.setDaemon(true);
+      stage.workers.add(thread);
+      thread.start();
+    }
+    return stage;
+  }
+
+  /**
+   * Enqueues the item, waiting while the queue is full.
+   */
+  void submit(Work<T> work) throws InterruptedException {
+    work.batch().retain();
+    try {
+      queue.put(work);
+    } catch (InterruptedException e) {
+      work.batch().release();
+      throw e;
+    }
+  }
+
+  /**
+   * Interrupts all workers. Items still queued are dropped.
+   */
+  void stop() {
+    workers.forEach(Thread::interrupt);
+  }
+
+  private void work() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        var work = queue.take();
+        try {
+          handler.handle(work);
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          log.warn("Failed to synchronize dataset {}:{} in stage {}: {}", work.batch().projectId(), work.datasetName(),
+              name, e.getMessage());
+          work.batch().fail(work.datasetName());
+        } finally {
+          work.batch().release();
+        }
+      }
+    } catch (InterruptedException e) {
+      // stopped
+    }
+  }
+
+  /**
+   * Tracks the items submitted on behalf of one project or dataset across all stages.
+   */
+  static class Batch {
+
+    private final String projectId;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Set<String> failedDatasets = ConcurrentHashMap.newKeySet();
+    private final CompletableFuture<Set<String>> completion = new CompletableFuture<>();
+
+    Batch(String projectId) {
+      this.projectId = projectId;
+    }
+
+    String projectId() {
+      return projectId;
+    }
+
+    void fail(String datasetName) {
+      failedDatasets.add(datasetName);
+    }
+
+    /**
+     * @return the names of the datasets that failed, once all items of the batch have been handled
+     */
+    Future<Set<String>> completion() {
+      return completion;
+    }
+
+    /**
+     * Registers work that completes outside of a stage, such as an asynchronous upload. Must be followed by
+     * {@link #release()}.
+     */
+    void retain() {
+      pending.incrementAndGet();
+    }
+
+    void release() {
+      if (pending.decrementAndGet() == 0) {
+        completion.complete(Set.copyOf(failedDatasets));
+      }
+    }
+  }
+
+}
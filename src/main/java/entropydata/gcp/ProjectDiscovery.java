@@ -0,0 +1,148 @@
+package entropydata.gcp;
+
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.resourcemanager.v3.Folder;
+import com.google.cloud.resourcemanager.v3.FoldersClient;
+import com.google.cloud.resourcemanager.v3.Project;
+import com.google.cloud.resourcemanager.v3.ProjectsClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovers the active projects under organizations and folders with the Resource Manager API. Subfolders are
+ * enumerated recursively and concurrently. The result is cached for {@code refreshInterval}; if a refresh fails, the
+ * previous result is kept.
+ * <p>
+ * Projects whose BigQuery API turns out to be disabled are skipped until the next refresh, so they cost one failed
+ * call per refresh instead of one per poll.
+ */
+public class ProjectDiscovery implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(ProjectDiscovery.class);
+
+  private final ProjectsClient projectsClient;
+  private final FoldersClient foldersClient;
+  private final List<String> parents;
+  private final long refreshIntervalMillis;
+  private final ExecutorService executor;
+
+  private List<String> projectIds = List.of();
+  private final Set<String> bigQueryDisabled = ConcurrentHashMap.newKeySet();
+  private long refreshedAt = Long.MIN_VALUE;
+
+  /**
+   * @param parents resource names such as {@code organizations/123} or {@code folders/456}
+   */
+  public ProjectDiscovery(ProjectsClient projectsClient, FoldersClient foldersClient, List<String> parents,
+      Duration refreshInterval, int parallelism) {
+    this.projectsClient = projectsClient;
+    this.foldersClient = foldersClient;
+    this.parents = parents;
+    this.refreshIntervalMillis = refreshInterval.toMillis();
+    var threadCounter = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+      var thread = new Thread(runnable, "gcp-project-discovery-" + threadCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return the ids of the discovered projects, refreshed if the cached result is older than the refresh interval
+   */
+  public synchronized List<String> getProjectIds() {
+    long now = System.currentTimeMillis();
+    if (refreshedAt == Long.MIN_VALUE || now - refreshedAt >= refreshIntervalMillis) {
+      refresh();
+      refreshedAt = now;
+    }
+    return projectIds.stream().filter(projectId -> !bigQueryDisabled.contains(projectId)).toList();
+  }
+
+  /**
+   * Skips the project until the next refresh if the exception says that its BigQuery API is disabled.
+   *
+   * @return whether the project is skipped
+   */
+  public boolean skipIfBigQueryDisabled(String projectId, Exception exception) {
+    if (!isBigQueryDisabled(exception)) {
+      return false;
+    }
+    if (bigQueryDisabled.add(projectId)) {
+      log.info("Skipping project {} until the next discovery, its BigQuery API is disabled", projectId);
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    projectsClient.close();
+    foldersClient.close();
+  }
+
+  private void refresh() {
+    var discovered = ConcurrentHashMap.<String>newKeySet();
+    try {
+      CompletableFuture.allOf(parents.stream()
+          .map(parent -> discover(parent, discovered))
+          .toArray(CompletableFuture[]::new)).join();
+    } catch (CompletionException e) {
+      log.warn("Failed to discover projects, keeping {} previously discovered projects: {}", projectIds.size(),
+          e.getCause().getMessage());
+      return;
+    }
+    projectIds = List.copyOf(new TreeSet<>(discovered));
+    bigQueryDisabled.clear();
+    log.info("Discovered {} projects under {}", projectIds.size(), parents);
+  }
+
+  private CompletableFuture<Void> discover(String parent, Set<String> discovered) {
+    return CompletableFuture.supplyAsync(() -> listChildren(parent, discovered), executor)
+        .thenCompose(folders -> CompletableFuture.allOf(folders.stream()
+            .map(folder -> discover(folder, discovered))
+            .toArray(CompletableFuture[]::new)));
+  }
+
+  /**
+   * Adds the active projects directly under the parent.
+   *
+   * @return the active folders directly under the parent
+   */
+  private List<String> listChildren(String parent, Set<String> discovered) {
+    for (Project project : projectsClient.listProjects(parent).iterateAll()) {
+      if (project.getState() == Project.State.ACTIVE) {
+        discovered.add(project.getProjectId());
+      }
+    }
+    var folders = new ArrayList<String>();
+    for (Folder folder : foldersClient.listFolders(parent).iterateAll()) {
+      if (folder.getState() == Folder.State.ACTIVE) {
+        folders.add(folder.getName());
+      }
+    }
+    return folders;
+  }
+
+  static boolean isBigQueryDisabled(Exception exception) {
+    if (!(exception instanceof BigQueryException bigQueryException) || bigQueryException.getCode() != 403) {
+      return false;
+    }
+    var message = String.valueOf(bigQueryException.getMessage());
+    return "accessNotConfigured".equals(bigQueryException.getReason())
+        || message.contains("SERVICE_DISABLED")
+        || message.contains("has not been used in project");
+  }
+
+}
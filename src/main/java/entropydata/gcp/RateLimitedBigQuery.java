@@ -0,0 +1,227 @@
+package entropydata.gcp;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.bigquery.DatasetInfo;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.TableInfo;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the calls to a {@link BigQuery} client per project. Each project has a token bucket that bounds the request
+ * rate, and a concurrency limit that is halved whenever BigQuery reports a rate or quota error and raised by one after
+ * as many successful calls as the limit (additive increase, multiplicative decrease). Rate and quota errors (429, 403
+ * {@code rateLimitExceeded}) and server errors (5xx) are retried with exponential backoff and full jitter, so they no
+ * longer fail whole datasets.
+ * <p>
+ * The project of a call is taken from its {@link DatasetId}, {@link TableId} or {@link JobId} argument, and falls back
+ * to the default project of the client. Further pages of a {@code Page} are fetched by the page itself and are not
+ * limited.
+ */
+class RateLimitedBigQuery implements InvocationHandler {
+
+  private static final Logger log = LoggerFactory.getLogger(RateLimitedBigQuery.class);
+
+  private static final Set<String> QUOTA_REASONS = Set.of("rateLimitExceeded", "quotaExceeded");
+
+  /**
+   * @param requestsPerSecond sustained request rate per project
+   * @param burst number of requests per project that may be made at once after an idle period
+   * @param maxConcurrency maximum number of concurrent calls per project
+   * @param maxRetries retries of a call that failed with a rate, quota or server error
+   */
+  record Settings(double requestsPerSecond, int burst, int maxConcurrency, int maxRetries, Duration initialBackoff,
+                  Duration maxBackoff) {
+  }
+
+  private final BigQuery bigquery;
+  private final Settings settings;
+  private final String defaultProjectId;
+  private final Map<String, ProjectLimiter> limiters = new ConcurrentHashMap<>();
+
+  private RateLimitedBigQuery(BigQuery bigquery, Settings settings) {
+    this.bigquery = bigquery;
+    this.settings = settings;
+    var options = bigquery.getOptions();
+    this.defaultProjectId = options == null || options.getProjectId() == null ? "" : options.getProjectId();
+  }
+
+  static BigQuery wrap(BigQuery bigquery, Settings settings) {
+    return (BigQuery) Proxy.newProxyInstance(BigQuery.class.getClassLoader(), new Class<?>[] {BigQuery.class},
+        new RateLimitedBigQuery(bigquery, settings));
+  }
+
+  /**
+   * @return the current concurrency limit of the project
+   */
+  static int concurrencyLimit(BigQuery rateLimitedBigQuery, String projectId) {
+    var handler = (RateLimitedBigQuery) Proxy.getInvocationHandler(rateLimitedBigQuery);
+    return handler.limiter(projectId).limit();
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class || method.getName().equals("getOptions")) {
+      return invokeTarget(method, args);
+    }
+    try {
+      return invokeLimited(limiter(projectId(method, args)), method, args);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for BigQuery rate limit", e);
+    }
+  }
+
+  private Object invokeLimited(ProjectLimiter limiter, Method method, Object[] args) throws Throwable {
+    for (int attempt = 0; ; attempt++) {
+      limiter.acquire();
+      try {
+        var result = invokeTarget(method, args);
+        limiter.release(false);
+        return result;
+      } catch (BigQueryException e) {
+        boolean quotaError = isQuotaError(e);
+        limiter.release(quotaError);
+        if (attempt >= settings.maxRetries() || !(quotaError || isRetryableServerError(method, e))) {
+          throw e;
+        }
+        long backoffMillis = backoffMillis(attempt);
+        log.debug("Retrying {} in {} ms after error {}: {}", method.getName(), backoffMillis, e.getCode(),
+            e.getMessage());
+        Thread.sleep(backoffMillis);
+      } catch (Throwable e) {
+        limiter.release(false);
+        throw e;
+      }
+    }
+  }
+
+  private Object invokeTarget(Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(bigquery, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private ProjectLimiter limiter(String projectId) {
+    return limiters.computeIfAbsent(projectId, key -> new ProjectLimiter());
+  }
+
+  private String projectId(Method method, Object[] args) {
+    if (args != null) {
+      for (var arg : args) {
+        String projectId = null;
+        if (arg instanceof DatasetId datasetId) {
+          projectId = datasetId.getProject();
+        } else if (arg instanceof TableId tableId) {
+          projectId = tableId.getProject();
+        } else if (arg instanceof JobId jobId) {
+          projectId = jobId.getProject();
+        } else if (arg instanceof DatasetInfo datasetInfo) {
+          projectId = datasetInfo.getDatasetId().getProject();
+        } else if (arg instanceof TableInfo tableInfo) {
+          projectId = tableInfo.getTableId().getProject();
+        } else if (arg instanceof String name && method.getName().equals("listDatasets")) {
+          // the only method whose leading string is a project rather than a dataset
+          projectId = name;
+        }
+        if (projectId != null) {
+          return projectId;
+        }
+      }
+    }
+    return defaultProjectId;
+  }
+
+  private long backoffMillis(int attempt) {
+    long exponential = settings.initialBackoff().toMillis() << Math.min(attempt, 20);
+    long cap = Math.min(settings.maxBackoff().toMillis(), exponential);
+    return ThreadLocalRandom.current().nextLong(cap + 1);
+  }
+
+  static boolean isQuotaError(BigQueryException e) {
+    return e.getCode() == 429 || (e.getCode() == 403 && QUOTA_REASONS.contains(e.getReason()));
+  }
+
+  /**
+   * Server errors are retried except for calls that create or insert, which may have succeeded.
+   */
+  private static boolean isRetryableServerError(Method method, BigQueryException e) {
+    return e.getCode() >= 500 && !method.getName().startsWith("create") && !method.getName().equals("insertAll");
+  }
+
+  /**
+   * Token bucket and adaptive concurrency limit of one project.
+   */
+  private class ProjectLimiter {
+
+    private final long nanosPerToken = (long) (TimeUnit.SECONDS.toNanos(1) / settings.requestsPerSecond());
+    private double tokens = settings.burst();
+    private long refilledAt = System.nanoTime();
+    private int limit = settings.maxConcurrency();
+    private int inFlight;
+    private int successes;
+
+    void acquire() throws InterruptedException {
+      synchronized (this) {
+        while (inFlight >= limit) {
+          wait();
+        }
+        inFlight++;
+      }
+      try {
+        TimeUnit.NANOSECONDS.sleep(reserveToken());
+      } catch (InterruptedException e) {
+        release(false);
+        throw e;
+      }
+    }
+
+    /**
+     * Takes a token, possibly ahead of time.
+     *
+     * @return how long to wait until the token is due
+     */
+    private synchronized long reserveToken() {
+      long now = System.nanoTime();
+      tokens = Math.min(settings.burst(), tokens + (double) (now - refilledAt) / nanosPerToken);
+      refilledAt = now;
+      tokens--;
+      return tokens >= 0 ? 0 : (long) (-tokens * nanosPerToken);
+    }
+
+    synchronized void release(boolean quotaError) {
+      inFlight--;
+      if (quotaError) {
+        successes = 0;
+        if (limit > 1) {
+          limit = Math.max(1, limit / 2);
+          log.warn("BigQuery rate limit reached, reducing concurrency to {}", limit);
+        }
+      } else if (++successes >= limit && limit < settings.maxConcurrency()) {
+        limit++;
+        successes = 0;
+      }
+      notifyAll();
+    }
+
+    synchronized int limit() {
+      return limit;
+    }
+  }
+
+}
@@ -0,0 +1,122 @@
+package entropydata.gcp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the connector replicas that share the asset synchronization through lease files in a directory that all
+ * replicas can access, such as a shared volume. Each replica renews its lease {@code <replicaId>.lease} three times per
+ * lease duration and deletes it on shutdown. A replica whose lease has expired is considered gone.
+ * <p>
+ * {@link #ring()} returns the live replicas as a {@link ConsistentHashRing}. The assets provider takes a new ring at
+ * the start of every run, so datasets are rebalanced with the next run after a replica joins or leaves. Lease expiry
+ * times are compared across replicas, so their clocks must be synchronized to well within the lease duration.
+ */
+public class ReplicaMembership implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(ReplicaMembership.class);
+
+  private static final String LEASE_SUFFIX = ".lease";
+
+  private final Path directory;
+  private final String replicaId;
+  private final Duration leaseDuration;
+  private final int virtualNodes;
+  private final ScheduledExecutorService scheduler;
+
+  public ReplicaMembership(Path directory, String replicaId, Duration leaseDuration, int virtualNodes) {
+    this.directory = directory;
+    this.replicaId = replicaId;
+    this.leaseDuration = leaseDuration;
+    this.virtualNodes = virtualNodes;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "gcp-replica-lease");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Acquires the lease of this replica and keeps renewing it until {@link #close()}.
+   */
+  public void start() throws IOException {
+    Files.createDirectories(directory);
+    renew();
+    long periodMillis = Math.max(1, leaseDuration.toMillis() / 3);
+    scheduler.scheduleAtFixedRate(() -> {
+      try {
+        renew();
+      } catch (IOException e) {
+        log.warn("Failed to renew lease of replica {}: {}", replicaId, e.getMessage());
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    log.info("Replica {} joined through {}", replicaId, directory);
+  }
+
+  public String replicaId() {
+    return replicaId;
+  }
+
+  /**
+   * @return the ring of all replicas with an unexpired lease, always including this replica
+   */
+  ConsistentHashRing ring() {
+    var members = new TreeSet<String>();
+    members.add(replicaId);
+    long now = System.currentTimeMillis();
+    try (var files = Files.list(directory)) {
+      files.filter(file -> file.getFileName().toString().endsWith(LEASE_SUFFIX)).forEach(file -> {
+        var fileName = file.getFileName().toString();
+        if (readExpiry(file) > now) {
+          members.add(fileName.substring(0, fileName.length() - LEASE_SUFFIX.length()));
+        }
+      });
+    } catch (IOException e) {
+      log.warn("Failed to list replica leases in {}, synchronizing alone: {}", directory, e.getMessage());
+    }
+    log.debug("Live replicas: {}", members);
+    return new ConsistentHashRing(members, virtualNodes);
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    try {
+      Files.deleteIfExists(leaseFile());
+      log.info("Replica {} left", replicaId);
+    } catch (IOException e) {
+      log.warn("Failed to release lease of replica {}, it expires in {}: {}", replicaId, leaseDuration,
+          e.getMessage());
+    }
+  }
+
+  private void renew() throws IOException {
+    var expiry = System.currentTimeMillis() + leaseDuration.toMillis();
+    var tempFile = directory.resolve(replicaId + LEASE_SUFFIX + ".tmp");
+    Files.writeString(tempFile, Long.toString(expiry));
+    Files.move(tempFile, leaseFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private Path leaseFile() {
+    return directory.resolve(replicaId + LEASE_SUFFIX);
+  }
+
+  private static long readExpiry(Path file) {
+    try {
+      return Long.parseLong(Files.readString(file).trim());
+    } catch (IOException | NumberFormatException e) {
+      // deleted while listing, or a foreign file
+      return 0;
+    }
+  }
+
+}
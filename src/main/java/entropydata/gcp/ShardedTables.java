@@ -0,0 +1,127 @@
+package entropydata.gcp;
+
+import entropydata.sdk.client.model.Asset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detects date-sharded tables such as {@code events_20240101}, {@code events_20240102}, which BigQuery queries as the
+ * wildcard table {@code events_*}. Tables with the same prefix and a {@code YYYYMMDD} suffix form a shard group if there
+ * are at least two of them. A group is represented by a single asset whose metadata is taken from its newest shard.
+ */
+class ShardedTables {
+
+  private static final int MIN_SHARDS = 2;
+  private static final int SUFFIX_LENGTH = 8;
+
+  /**
+   * Shards of one group, ordered by date.
+   */
+  record ShardGroup(String prefix, List<String> tableNames) {
+
+    String newestTableName() {
+      return tableNames.get(tableNames.size() - 1);
+    }
+
+    String wildcardName() {
+      return prefix + "*";
+    }
+  }
+
+  /**
+   * @param tables tables that do not belong to a shard group
+   * @param shardGroups shard groups by wildcard name
+   */
+  record Grouping(List<String> tables, Map<String, ShardGroup> shardGroups) {
+
+    /**
+     * @return the group of the table, or {@code null} if the table is not a shard
+     */
+    ShardGroup groupOf(String tableName) {
+      var prefix = shardPrefix(tableName);
+      return prefix == null ? null : shardGroups.get(prefix + "*");
+    }
+  }
+
+  static Grouping group(Iterable<String> tableNames) {
+    var tables = new ArrayList<String>();
+    var shardsByPrefix = new HashMap<String, List<String>>();
+    for (var tableName : tableNames) {
+      var prefix = shardPrefix(tableName);
+      if (prefix == null) {
+        tables.add(tableName);
+      } else {
+        shardsByPrefix.computeIfAbsent(prefix, key -> new ArrayList<>()).add(tableName);
+      }
+    }
+    var shardGroups = new HashMap<String, ShardGroup>();
+    shardsByPrefix.forEach((prefix, shards) -> {
+      if (shards.size() < MIN_SHARDS) {
+        tables.addAll(shards);
+        return;
+      }
+      // names share the prefix, so name order is date order
+      shards.sort(null);
+      shardGroups.put(prefix + "*", new ShardGroup(prefix, shards));
+    });
+    return new Grouping(tables, shardGroups);
+  }
+
+  /**
+   * @return the part before a {@code YYYYMMDD} suffix, or {@code null} if the name has no such suffix
+   */
+  static String shardPrefix(String tableName) {
+    int start = tableName.length() - SUFFIX_LENGTH;
+    if (start < 0) {
+      return null;
+    }
+    for (int i = start; i < tableName.length(); i++) {
+      char c = tableName.charAt(i);
+      if (c < '0' || c > '9') {
+        return null;
+      }
+    }
+    if (start > 0 && Character.isDigit(tableName.charAt(start - 1))) {
+      return null;
+    }
+    int month = Integer.parseInt(tableName, start + 4, start + 6, 10);
+    int day = Integer.parseInt(tableName, start + 6, start + 8, 10);
+    if (month < 1 || month > 12 || day < 1 || day > 31) {
+      return null;
+    }
+    return tableName.substring(0, start);
+  }
+
+  /**
+   * Turns the asset of the newest shard into the asset of the whole group.
+   */
+  static Asset toGroupAsset(Asset newestShard, ShardGroup group) {
+    var newestId = newestShard.getId();
+    var datasetPrefix = newestId.substring(0, newestId.length() - group.newestTableName().length());
+    var qualifiedName = newestShard.getInfo().getQualifiedName();
+    newestShard.id(datasetPrefix + group.wildcardName());
+    newestShard.getInfo()
+        .name(group.wildcardName())
+        .qualifiedName(qualifiedName.substring(0, qualifiedName.length() - group.newestTableName().length())
+            + group.wildcardName());
+    var tableNames = group.tableNames();
+    return newestShard
+        .putPropertiesItem("shardCount", Integer.toString(tableNames.size()))
+        .putPropertiesItem("firstShard", suffix(tableNames.get(0)))
+        .putPropertiesItem("lastShard", suffix(group.newestTableName()));
+  }
+
+  /**
+   * @return the id of the group asset, given the id of its dataset
+   */
+  static String groupAssetId(String datasetAssetId, ShardGroup group) {
+    return datasetAssetId + "." + group.wildcardName();
+  }
+
+  private static String suffix(String tableName) {
+    return tableName.substring(tableName.length() - SUFFIX_LENGTH);
+  }
+
+}
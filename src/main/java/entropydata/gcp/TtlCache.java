@@ -0,0 +1,181 @@
+package entropydata.gcp;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * A cache of at most {@code maxSize} entries, evicting the least recently used, whose entries expire {@code ttl} after
+ * they were loaded. Concurrent misses of the same key share a single load. Failed loads and {@code null} values are
+ * not cached, and a load that overlaps an invalidation of its key is returned but not cached.
+ * <p>
+ * Bound to a registry, the cache reports the counter {@code gcp.access.cache.requests} tagged with the result
+ * {@code hit}, {@code miss} (loaded) or {@code coalesced} (waited for the load of another caller), the counter
+ * {@code gcp.access.cache.evictions} tagged with the cause {@code size} or {@code expired}, and the gauge
+ * {@code gcp.access.cache.size}, all tagged with the name of the cache.
+ */
+class TtlCache<K, V> implements MeterBinder {
+
+  private final String name;
+  private final long ttlNanos;
+  private final LongSupplier nanoClock;
+  // access ordered, guarded by this
+  private final LinkedHashMap<K, Entry<V>> entries;
+  private final Map<K, CompletableFuture<V>> loads = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder sizeEvictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  TtlCache(String name, Duration ttl, int maxSize) {
+    this(name, ttl, maxSize, System::nanoTime);
+  }
+
+  TtlCache(String name, Duration ttl, int maxSize, LongSupplier nanoClock) {
+    if (ttl.isNegative() || ttl.isZero() || maxSize <= 0) {
+      throw new IllegalArgumentException("ttl and maxSize must be positive, but were " + ttl + " and " + maxSize);
+    }
+    this.name = name;
+    this.ttlNanos = ttl.toNanos();
+    this.nanoClock = nanoClock;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        if (size() <= maxSize) {
+          return false;
+        }
+        sizeEvictions.increment();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @return the cached value, or the value returned by {@code loader}, which is called at most once at a time per key
+   */
+  V get(K key, Function<? super K, ? extends V> loader) {
+    var value = cached(key);
+    if (value != null) {
+      hits.increment();
+      return value;
+    }
+
+    var load = new CompletableFuture<V>();
+    var pendingLoad = loads.putIfAbsent(key, load);
+    if (pendingLoad != null) {
+      coalesced.increment();
+      return await(pendingLoad);
+    }
+    // the previous load may have completed since the lookup
+    value = cached(key);
+    if (value != null) {
+      loads.remove(key, load);
+      load.complete(value);
+      hits.increment();
+      return value;
+    }
+
+    misses.increment();
+    try {
+      value = loader.apply(key);
+    } catch (RuntimeException | Error e) {
+      loads.remove(key, load);
+      load.completeExceptionally(e);
+      throw e;
+    }
+    if (value != null) {
+      synchronized (this) {
+        // an invalidation removes the pending load, and the value may predate it
+        if (loads.get(key) == load) {
+          entries.put(key, new Entry<>(value, nanoClock.getAsLong()));
+        }
+      }
+    }
+    loads.remove(key, load);
+    load.complete(value);
+    return value;
+  }
+
+  void invalidate(K key) {
+    synchronized (this) {
+      entries.remove(key);
+    }
+    loads.remove(key);
+  }
+
+  void invalidateAll() {
+    synchronized (this) {
+      entries.clear();
+    }
+    loads.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    for (var result : Map.of("hit", hits, "miss", misses, "coalesced", coalesced).entrySet()) {
+      FunctionCounter.builder("gcp.access.cache.requests", result.getValue(), LongAdder::sum)
+          .tag("cache", name)
+          .tag("result", result.getKey())
+          .register(registry);
+    }
+    for (var cause : Map.of("size", sizeEvictions, "expired", expirations).entrySet()) {
+      FunctionCounter.builder("gcp.access.cache.evictions", cause.getValue(), LongAdder::sum)
+          .tag("cache", name)
+          .tag("cause", cause.getKey())
+          .register(registry);
+    }
+    Gauge.builder("gcp.access.cache.size", this, TtlCache::size)
+        .tag("cache", name)
+        .register(registry);
+  }
+
+  private synchronized V cached(K key) {
+    var entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (nanoClock.getAsLong() - entry.loadedAt() >= ttlNanos) {
+      entries.remove(key);
+      expirations.increment();
+      return null;
+    }
+    return entry.value();
+  }
+
+  private static <V> V await(CompletableFuture<V> load) {
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a cache load", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      if (e.getCause() instanceof Error error) {
+        throw error;
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private record Entry<V>(V value, long loadedAt) {
+  }
+
+}
@@ -0,0 +1,290 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.cloud.bigquery.Acl;
+import com.google.cloud.bigquery.Acl.Group;
+import com.google.cloud.bigquery.DatasetId;
+import entropydata.sdk.EntropyDataEventHandler;
+import entropydata.sdk.EntropyDataStateRepository;
+import entropydata.sdk.client.model.AccessActivatedEvent;
+import entropydata.sdk.client.model.AccessDeactivatedEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+class AccessEventDispatcherTest {
+
+  /**
+   * Records the events per access and the peak number of events processed at the same time.
+   */
+  private static class RecordingHandler implements EntropyDataEventHandler {
+    private final Map<String, List<String>> events = new ConcurrentHashMap<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final long maxSleepMillis;
+
+    RecordingHandler(long maxSleepMillis) {
+      this.maxSleepMillis = maxSleepMillis;
+    }
+
+    @Override
+    public void onAccessActivatedEvent(AccessActivatedEvent event) {
+      handle(event.getId(), "activated");
+    }
+
+    @Override
+    public void onAccessDeactivatedEvent(AccessDeactivatedEvent event) {
+      handle(event.getId(), "deactivated");
+    }
+
+    private void handle(String accessId, String type) {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(maxSleepMillis == 0 ? 0 : ThreadLocalRandom.current().nextLong(maxSleepMillis + 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        running.decrementAndGet();
+      }
+      events.computeIfAbsent(accessId, key -> new ArrayList<>()).add(type);
+    }
+  }
+
+  private static AccessActivatedEvent activated(String accessId) {
+    var event = new AccessActivatedEvent();
+    event.setId(accessId);
+    return event;
+  }
+
+  private static AccessDeactivatedEvent deactivated(String accessId) {
+    var event = new AccessDeactivatedEvent();
+    event.setId(accessId);
+    return event;
+  }
+
+  @Test
+  void keepsTheOrderOfEventsOfTheSameAccess() {
+    var handler = new RecordingHandler(3);
+    var expected = new ArrayList<String>();
+    try (var dispatcher = new AccessEventDispatcher(handler, accessId -> null, 8, 16)) {
+      for (int round = 0; round < 5; round++) {
+        for (int access = 0; access < 20; access++) {
+          dispatcher.onAccessActivatedEvent(activated("access-" + access));
+          dispatcher.onAccessDeactivatedEvent(deactivated("access-" + access));
+        }
+        expected.add("activated");
+        expected.add("deactivated");
+      }
+    }
+
+    assertThat(handler.events).hasSize(20);
+    handler.events.values().forEach(events -> assertThat(events).isEqualTo(expected));
+    assertThat(handler.maxRunning).hasValueGreaterThan(1);
+  }
+
+  @Test
+  void processesEventsOfDifferentAccessesInParallel() {
+    long sequential = processingMillis(1, 64);
+    long parallel = processingMillis(8, 64);
+
+    // 64 events of 10 ms each: 640 ms one at a time, about 80 ms on 8 threads
+    assertThat(sequential).isGreaterThanOrEqualTo(640);
+    assertThat(parallel).isLessThan(sequential / 3);
+  }
+
+  private static long processingMillis(int concurrency, int events) {
+    var handler = new EntropyDataEventHandler() {
+      @Override
+      public void onAccessActivatedEvent(AccessActivatedEvent event) {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      @Override
+      public void onAccessDeactivatedEvent(AccessDeactivatedEvent event) {
+      }
+    };
+    long start = System.nanoTime();
+    try (var dispatcher = new AccessEventDispatcher(handler, accessId -> null, concurrency, events)) {
+      for (int i = 0; i < events; i++) {
+        // distinct accesses without a dataset are not ordered against each other
+        dispatcher.onAccessActivatedEvent(activated(String.valueOf((char) ('a' + i))));
+      }
+    }
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  @Test
+  void changesTheAclOfADatasetInTheOrderTheEventsWereReceived() {
+    var fakeBigQuery = new FakeBigQuery(new FakeBigQuery.Settings(1, 2, 0, 1, 2, 100, Duration.ofMillis(1), 0));
+    var aclUpdater = new DatasetAclUpdater(fakeBigQuery.bigQuery(), new SimpleMeterRegistry());
+    var shared = DatasetId.of("project-0", "dataset_0000");
+    var other = DatasetId.of("project-0", "dataset_0001");
+    var datasets = Map.of("access-1", shared, "access-2", shared, "access-3", other);
+    // the accesses to the shared dataset grant the same team, so the order of their events decides its ACL
+    var team = Acl.of(new Group("team@example.com"), Acl.Role.READER);
+    var processed = new ConcurrentHashMap<DatasetId, List<String>>();
+    var handler = new EntropyDataEventHandler() {
+      @Override
+      public void onAccessActivatedEvent(AccessActivatedEvent event) {
+        var datasetId = datasets.get(event.getId());
+        aclUpdater.update(datasetId, aclList -> !aclList.contains(team) && aclList.add(team));
+        processed.computeIfAbsent(datasetId, key -> new CopyOnWriteArrayList<>()).add("grant " + event.getId());
+      }
+
+      @Override
+      public void onAccessDeactivatedEvent(AccessDeactivatedEvent event) {
+        var datasetId = datasets.get(event.getId());
+        aclUpdater.update(datasetId, aclList -> aclList.removeIf(team::equals));
+        processed.computeIfAbsent(datasetId, key -> new CopyOnWriteArrayList<>()).add("revoke " + event.getId());
+      }
+    };
+    // resolving takes a random time, so that later events of the shared dataset are often resolved first
+    Function<String, DatasetId> datasetOf = accessId -> {
+      try {
+        Thread.sleep(ThreadLocalRandom.current().nextLong(4));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return datasets.get(accessId);
+    };
+
+    var random = new Random(42);
+    var received = new HashMap<DatasetId, List<String>>();
+    try (var dispatcher = new AccessEventDispatcher(handler, datasetOf, 8, 16)) {
+      for (int i = 0; i < 200; i++) {
+        var accessId = "access-" + (1 + random.nextInt(3));
+        boolean grant = random.nextBoolean();
+        if (grant) {
+          dispatcher.onAccessActivatedEvent(activated(accessId));
+        } else {
+          dispatcher.onAccessDeactivatedEvent(deactivated(accessId));
+        }
+        received.computeIfAbsent(datasets.get(accessId), key -> new ArrayList<>())
+            .add((grant ? "grant " : "revoke ") + accessId);
+      }
+    }
+
+    assertThat(processed).isEqualTo(received);
+    for (var datasetId : List.of(shared, other)) {
+      var events = received.get(datasetId);
+      assertThat(fakeBigQuery.acl(datasetId).contains(team))
+          .isEqualTo(events.get(events.size() - 1).startsWith("grant"));
+    }
+  }
+
+  @Test
+  void handsTheResolutionOfAnAccessToItsEvent() {
+    var resolutions = new AtomicInteger();
+    var handled = new ConcurrentHashMap<String, String>();
+    var handler = new AccessEventDispatcher.ResolvingEventHandler<String>() {
+      @Override
+      public String resolve(String accessId) {
+        if (accessId.equals("unresolvable")) {
+          throw new IllegalStateException("no such access");
+        }
+        return "resolution " + resolutions.incrementAndGet() + " of " + accessId;
+      }
+
+      @Override
+      public DatasetId datasetOf(String resolved) {
+        return null;
+      }
+
+      @Override
+      public void onAccessActivatedEvent(AccessActivatedEvent event, String resolved) {
+        handled.put(event.getId(), String.valueOf(resolved));
+      }
+
+      @Override
+      public void onAccessDeactivatedEvent(AccessDeactivatedEvent event, String resolved) {
+        handled.put(event.getId(), String.valueOf(resolved));
+      }
+    };
+
+    try (var dispatcher = new AccessEventDispatcher(handler, 2, 4)) {
+      dispatcher.onAccessActivatedEvent(activated("access-1"));
+      dispatcher.onAccessActivatedEvent(activated("unresolvable"));
+    }
+
+    assertThat(resolutions).hasValue(1);
+    assertThat(handled).containsOnly(
+        Map.entry("access-1", "resolution 1 of access-1"),
+        Map.entry("unresolvable", "null"));
+  }
+
+  @Test
+  void holdsBackSavedStatesUntilTheEventsReceivedBeforeAreDone() throws Exception {
+    var release = new CountDownLatch(1);
+    var processed = new CountDownLatch(2);
+    var handler = new EntropyDataEventHandler() {
+      @Override
+      public void onAccessActivatedEvent(AccessActivatedEvent event) {
+        if (event.getId().equals("slow")) {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        processed.countDown();
+      }
+
+      @Override
+      public void onAccessDeactivatedEvent(AccessDeactivatedEvent event) {
+        throw new IllegalStateException("failed");
+      }
+    };
+    var saved = new AtomicReference<Map<String, Object>>(Map.of());
+    var repository = new EntropyDataStateRepository() {
+      @Override
+      public Map<String, Object> getState() {
+        return saved.get();
+      }
+
+      @Override
+      public void saveState(Map<String, Object> state) {
+        saved.set(state);
+      }
+    };
+    var registry = new SimpleMeterRegistry();
+    try (var dispatcher = new AccessEventDispatcher(handler, accessId -> null, 4, 10)) {
+      dispatcher.setMeterRegistry(registry);
+      var checkpointing = dispatcher.checkpointing(repository);
+
+      dispatcher.onAccessActivatedEvent(activated("slow"));
+      checkpointing.saveState(Map.of("lastEventId", "1"));
+      dispatcher.onAccessDeactivatedEvent(deactivated("failing"));
+      dispatcher.onAccessActivatedEvent(activated("fast"));
+      checkpointing.saveState(Map.of("lastEventId", "3"));
+
+      assertThat(repository.getState()).doesNotContainKey("lastEventId");
+      assertThat(checkpointing.getState()).containsEntry("lastEventId", "3");
+      assertThat(registry.get("gcp.access.dispatcher.inflight").gauge().value()).isGreaterThanOrEqualTo(1);
+
+      release.countDown();
+      assertThat(processed.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    // the failed event does not hold back the state
+    assertThat(repository.getState()).containsEntry("lastEventId", "3");
+  }
+
+}
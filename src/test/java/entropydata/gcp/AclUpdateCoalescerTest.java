@@ -0,0 +1,183 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.bigquery.Acl;
+import com.google.cloud.bigquery.Acl.Group;
+import com.google.cloud.bigquery.Acl.Role;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.DatasetId;
+import entropydata.gcp.DatasetAclUpdater.Outcome;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class AclUpdateCoalescerTest {
+
+  private static final DatasetId DATASET = DatasetId.of("project-0", "dataset_0000");
+  private static final DatasetId OTHER_DATASET = DatasetId.of("project-0", "dataset_0001");
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private FakeBigQuery fakeBigQuery;
+  private AclUpdateCoalescer coalescer;
+
+  private AclUpdateCoalescer coalescer(double errorRate, Duration window, int maxChanges) {
+    fakeBigQuery = new FakeBigQuery(new FakeBigQuery.Settings(1, 2, 0, 1, 2, 100, Duration.ofMillis(5), errorRate));
+    coalescer = new AclUpdateCoalescer(new DatasetAclUpdater(fakeBigQuery.bigQuery(), registry),
+        new AclUpdateCoalescer.Settings(window, maxChanges), registry);
+    return coalescer;
+  }
+
+  @AfterEach
+  void tearDown() {
+    coalescer.close();
+  }
+
+  private static Acl reader(String group) {
+    return Acl.of(new Group(group + "@example.com"), Role.READER);
+  }
+
+  @Test
+  void appliesChangesOfADatasetWithOneUpdate() throws Exception {
+    coalescer(0, Duration.ofMillis(100), 100);
+
+    var results = new ArrayList<CompletableFuture<Outcome>>();
+    for (int i = 0; i < 10; i++) {
+      results.add(coalescer.grant(DATASET, reader("team-" + i)));
+    }
+    results.add(coalescer.grant(OTHER_DATASET, reader("team-0")));
+    for (var result : results) {
+      assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.APPLIED);
+    }
+
+    assertThat(fakeBigQuery.calls("update")).isEqualTo(2);
+    assertThat(fakeBigQuery.acl(DATASET)).hasSize(12).contains(reader("team-0"), reader("team-9"));
+    assertThat(fakeBigQuery.acl(OTHER_DATASET)).hasSize(3).contains(reader("team-0"));
+    assertThat(registry.get("gcp.access.acl.batches").summary().totalAmount()).isEqualTo(11);
+  }
+
+  @Test
+  void appliesChangesInOrderAndReportsUnchangedOnes() throws Exception {
+    coalescer(0, Duration.ofMillis(50), 100);
+
+    var granted = coalescer.grant(DATASET, reader("team-a"));
+    var grantedAgain = coalescer.grant(DATASET, reader("team-a"));
+    var revokedMissing = coalescer.revoke(DATASET, reader("team-b"));
+
+    assertThat(granted.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.APPLIED);
+    assertThat(grantedAgain.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.UNCHANGED);
+    assertThat(revokedMissing.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.UNCHANGED);
+
+    assertThat(coalescer.revoke(DATASET, reader("team-a")).get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.APPLIED);
+    assertThat(fakeBigQuery.acl(DATASET)).hasSize(2).doesNotContain(reader("team-a"));
+  }
+
+  @Test
+  void updatesWithoutWaitingForTheWindowWhenTheBatchIsFull() throws Exception {
+    coalescer(0, Duration.ofMinutes(1), 3);
+
+    var results = new ArrayList<CompletableFuture<Outcome>>();
+    for (int i = 0; i < 3; i++) {
+      results.add(coalescer.grant(DATASET, reader("team-" + i)));
+    }
+
+    for (var result : results) {
+      assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.APPLIED);
+    }
+    assertThat(fakeBigQuery.calls("update")).isEqualTo(1);
+  }
+
+  @Test
+  void collectsChangesDuringAnUpdateIntoTheNextBatch() throws Exception {
+    coalescer(0, Duration.ofMillis(10), 100);
+
+    var first = coalescer.grant(DATASET, reader("team-0"));
+    // waits until the first update reads the dataset, then submits while it writes
+    while (fakeBigQuery.calls("getDataset") == 0) {
+      Thread.sleep(1);
+    }
+    var second = coalescer.grant(DATASET, reader("team-1"));
+    var third = coalescer.grant(DATASET, reader("team-2"));
+
+    assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.APPLIED);
+    assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.APPLIED);
+    assertThat(third.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.APPLIED);
+    assertThat(fakeBigQuery.acl(DATASET)).contains(reader("team-0"), reader("team-1"), reader("team-2"));
+  }
+
+  @Test
+  void splitsChangesCollectedDuringAnUpdateAtMaxChanges() throws Exception {
+    coalescer(0, Duration.ofMillis(10), 2);
+
+    var results = new ArrayList<CompletableFuture<Outcome>>();
+    results.add(coalescer.grant(DATASET, reader("team-0")));
+    while (fakeBigQuery.calls("getDataset") == 0) {
+      Thread.sleep(1);
+    }
+    for (int i = 1; i < 6; i++) {
+      results.add(coalescer.grant(DATASET, reader("team-" + i)));
+    }
+    for (var result : results) {
+      assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.APPLIED);
+    }
+
+    assertThat(fakeBigQuery.acl(DATASET)).hasSize(8).contains(reader("team-0"), reader("team-5"));
+    var batchSizes = registry.get("gcp.access.acl.batches").summary();
+    assertThat(batchSizes.totalAmount()).isEqualTo(6);
+    assertThat(batchSizes.max()).isLessThanOrEqualTo(2);
+  }
+
+  @Test
+  void keepsWritingTheDatasetAfterAnError() throws Exception {
+    var aclUpdater = mock(DatasetAclUpdater.class);
+    when(aclUpdater.update(eq(DATASET), any()))
+        .thenThrow(new AssertionError("failed"))
+        .thenAnswer(invocation -> invocation.<Predicate<List<Acl>>>getArgument(1).test(new ArrayList<>())
+            ? Outcome.APPLIED : Outcome.UNCHANGED);
+    coalescer = new AclUpdateCoalescer(aclUpdater, new AclUpdateCoalescer.Settings(Duration.ofMillis(10), 100),
+        registry);
+
+    var failed = coalescer.grant(DATASET, reader("team-0"));
+    assertThatThrownBy(() -> failed.get(5, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasCauseInstanceOf(AssertionError.class);
+
+    assertThat(coalescer.grant(DATASET, reader("team-1")).get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.APPLIED);
+  }
+
+  @Test
+  void reportsMissingDatasets() throws Exception {
+    coalescer(0, Duration.ofMillis(10), 100);
+
+    var result = coalescer.grant(DatasetId.of("project-1", "dataset_0000"), reader("team-0"));
+
+    assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo(Outcome.DATASET_NOT_FOUND);
+  }
+
+  @Test
+  void failsAllChangesOfAFailedBatch() {
+    coalescer(1, Duration.ofMillis(10), 100);
+
+    var first = coalescer.grant(DATASET, reader("team-0"));
+    var second = coalescer.revoke(DATASET, reader("team-1"));
+
+    for (var result : List.of(first, second)) {
+      assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+          .isInstanceOf(ExecutionException.class)
+          .hasCauseInstanceOf(BigQueryException.class);
+    }
+  }
+
+}
@@ -39,5 +39,16 @@ class ApplicationTest {
     assertThat(gcpProperties.accessmanagement().mapping().team().customfield()).isEqualTo("gcpPrincipal");
     assertThat(gcpProperties.assets().connectorid()).isEqualTo("gcp-asset-synchronizer");
     assertThat(gcpProperties.assets().projects()).containsExactly("test-project");
+    assertThat(gcpProperties.assets().parallelism()).isEqualTo(4);
+    assertThat(gcpProperties.assets().harvestmode()).isEqualTo(GcpProperties.AssetProperties.HarvestMode.API);
+    assertThat(gcpProperties.assets().pipeline().upload()).isEqualTo(1);
+    assertThat(gcpProperties.assets().pipeline().fetch()).isZero();
+    assertThat(gcpProperties.assets().pipeline().queuecapacity()).isEqualTo(100);
+    assertThat(gcpProperties.assets().tables().allowlist()).containsExactly("*");
+    assertThat(gcpProperties.assets().datasets().denylist()).isEmpty();
+    assertThat(gcpProperties.assets().pollinterval()).hasSeconds(5);
+    assertThat(gcpProperties.assets().adaptivepolling().enabled()).isFalse();
+    assertThat(gcpProperties.ratelimit().maxconcurrency()).isEqualTo(16);
+    assertThat(gcpProperties.ratelimit().initialbackoff()).hasMillis(500);
   }
 }
@@ -0,0 +1,56 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class AssetFilterTest {
+
+  @Test
+  void matchesGlobPatterns() {
+    var matcher = GlobMatcher.compile(List.of("orders", "tmp_*", "stg_*_v?", "*_backup"));
+
+    assertThat(matcher.matches("orders")).isTrue();
+    assertThat(matcher.matches("orders_2")).isFalse();
+    assertThat(matcher.matches("tmp_")).isTrue();
+    assertThat(matcher.matches("tmp_load")).isTrue();
+    assertThat(matcher.matches("stg_orders_v2")).isTrue();
+    assertThat(matcher.matches("stg_orders_v10")).isFalse();
+    assertThat(matcher.matches("orders_backup")).isTrue();
+    assertThat(matcher.matches("tm")).isFalse();
+  }
+
+  @Test
+  void quotesRegexCharactersInPatterns() {
+    var matcher = GlobMatcher.compile(List.of("a+b*c"));
+
+    assertThat(matcher.matches("a+bxc")).isTrue();
+    assertThat(matcher.matches("aabxc")).isFalse();
+  }
+
+  @Test
+  void excludesTakePrecedenceOverIncludes() {
+    var filter = new AssetFilter(List.of("*"), List.of("scratch*"), List.of("*"), List.of("*_tmp", "sales.raw_*"),
+        List.of());
+
+    assertThat(filter.includesDataset("sales")).isTrue();
+    assertThat(filter.includesDataset("scratch_alice")).isFalse();
+    assertThat(filter.includesTable("sales", "orders")).isTrue();
+    assertThat(filter.includesTable("sales", "orders_tmp")).isFalse();
+    assertThat(filter.includesTable("sales", "raw_orders")).isFalse();
+    assertThat(filter.includesTable("marketing", "raw_orders")).isTrue();
+    assertThat(filter.labelFilter()).isNull();
+  }
+
+  @Test
+  void matchesQualifiedTablePatternsAgainstDatasetAndTable() {
+    var filter = new AssetFilter(List.of("*"), List.of(), List.of("sales.*", "dim_*"), List.of(),
+        List.of("env:prod", "team"));
+
+    assertThat(filter.includesTable("sales", "orders")).isTrue();
+    assertThat(filter.includesTable("marketing", "dim_customer")).isTrue();
+    assertThat(filter.includesTable("marketing", "campaigns")).isFalse();
+    assertThat(filter.labelFilter()).isEqualTo("labels.env:prod labels.team");
+  }
+}
@@ -0,0 +1,56 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import entropydata.sdk.client.model.Asset;
+import entropydata.sdk.client.model.AssetColumnsInner;
+import entropydata.sdk.client.model.AssetInfo;
+import org.junit.jupiter.api.Test;
+
+class AssetFingerprintsTest {
+
+  private static Asset asset(String id, String description, String updatedAt) {
+    return new Asset()
+        .id(id)
+        .info(new AssetInfo().name("orders").source("gcp").qualifiedName(id).type("TABLE").status("active")
+            .description(description))
+        .putPropertiesItem("updatedAt", updatedAt)
+        .addColumnsItem(new AssetColumnsInner().name("id").type("INTEGER"));
+  }
+
+  @Test
+  void suppressesAssetsThatOnlyChangedTheirModificationTime() {
+    var fingerprints = new AssetFingerprints();
+
+    assertThat(fingerprints.update(asset("p:ds.orders", "Orders", "1000"))).isTrue();
+    assertThat(fingerprints.update(asset("p:ds.orders", "Orders", "2000"))).isFalse();
+    assertThat(fingerprints.update(asset("p:ds.orders", "All orders", "3000"))).isTrue();
+  }
+
+  @Test
+  void distinguishesNullFromEmptyAndFieldBoundaries() {
+    var withNull = asset("p:ds.orders", null, "1000");
+    var withEmpty = asset("p:ds.orders", "", "1000");
+    assertThat(AssetFingerprints.fingerprint(withNull)).isNotEqualTo(AssetFingerprints.fingerprint(withEmpty));
+
+    var ab = new Asset().id("x").info(new AssetInfo().name("ab").qualifiedName("c"));
+    var abc = new Asset().id("x").info(new AssetInfo().name("a").qualifiedName("bc"));
+    assertThat(AssetFingerprints.fingerprint(ab)).isNotEqualTo(AssetFingerprints.fingerprint(abc));
+  }
+
+  @Test
+  void keepsFingerprintsOfManyAssets() {
+    var fingerprints = new AssetFingerprints();
+    for (int i = 0; i < 100_000; i++) {
+      fingerprints.update(asset("p:ds.table_" + i, "Table", "1000"));
+    }
+    for (int i = 0; i < 100_000; i += 2) {
+      fingerprints.remove("p:ds.table_" + i);
+    }
+
+    assertThat(fingerprints.size()).isEqualTo(50_000);
+    for (int i = 0; i < 100_000; i++) {
+      assertThat(fingerprints.update(asset("p:ds.table_" + i, "Table", "2000"))).isEqualTo(i % 2 == 0);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import entropydata.sdk.EntropyDataAssetsProvider.AssetCallback;
+import entropydata.sdk.EntropyDataClient;
+import entropydata.sdk.client.model.Asset;
+import entropydata.sdk.client.model.AssetInfo;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BatchingAssetUploaderTest {
+
+  private HttpServer server;
+  private final ConcurrentLinkedQueue<List<?>> receivedBatches = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile int status = 200;
+  // statuses answered before status, one per request
+  private final ConcurrentLinkedQueue<Integer> firstStatuses = new ConcurrentLinkedQueue<>();
+  private volatile String retryAfter;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/assets/bulk", exchange -> {
+      requests.incrementAndGet();
+      assertThat(exchange.getRequestHeaders().getFirst("x-api-key")).isEqualTo("test-key");
+      assertThat(exchange.getRequestHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+      try (var body = new GZIPInputStream(exchange.getRequestBody())) {
+        receivedBatches.add(new ObjectMapper().readValue(body, List.class));
+      }
+      if (retryAfter != null) {
+        exchange.getResponseHeaders().set("Retry-After", retryAfter);
+      }
+      var firstStatus = firstStatuses.poll();
+      exchange.sendResponseHeaders(firstStatus != null ? firstStatus : status, -1);
+      exchange.close();
+    });
+    server.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+  }
+
+  private BatchingAssetUploader uploader(AssetCallback fallback, int maxAssets, Duration maxDelay) {
+    var host = "http://localhost:" + server.getAddress().getPort();
+    var client = new EntropyDataBulkAssetsClient(host, "test-key", "/api/assets/bulk", Duration.ofSeconds(5),
+        new EntropyDataClient(host, "test-key").getApiClient().getObjectMapper());
+    return new BatchingAssetUploader(client, fallback,
+        new BatchingAssetUploader.Settings(maxAssets, 1_000_000, maxDelay, 2));
+  }
+
+  private static Asset asset(int i) {
+    return new Asset().id("test-project:ds.t" + i).info(new AssetInfo().name("t" + i).source("gcp"));
+  }
+
+  @Test
+  void uploadsAssetsInCompressedBatches() throws Exception {
+    var results = new ArrayList<CompletableFuture<Void>>();
+    try (var uploader = uploader(mock(AssetCallback.class), 2, Duration.ofMinutes(1))) {
+      for (int i = 0; i < 5; i++) {
+        results.add(uploader.upload(asset(i)));
+      }
+    }
+
+    CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+    assertThat(requests).hasValue(3);
+    assertThat(receivedBatches).extracting(List::size).containsExactlyInAnyOrder(2, 2, 1);
+  }
+
+  @Test
+  void serializesAssetsLikeTheSdkClient() throws Exception {
+    try (var uploader = uploader(mock(AssetCallback.class), 1, Duration.ofMinutes(1))) {
+      uploader.upload(asset(1)).get(5, TimeUnit.SECONDS);
+    }
+
+    var sdkObjectMapper = new EntropyDataClient("http://localhost", "test-key").getApiClient().getObjectMapper();
+    var expected = sdkObjectMapper.readValue(sdkObjectMapper.writeValueAsBytes(List.of(asset(1))), List.class);
+    assertThat(receivedBatches).containsExactly(expected);
+  }
+
+  @Test
+  void flushesPartialBatchAfterMaxDelay() throws Exception {
+    try (var uploader = uploader(mock(AssetCallback.class), 100, Duration.ofMillis(50))) {
+      uploader.upload(asset(1)).get(5, TimeUnit.SECONDS);
+    }
+
+    assertThat(requests).hasValue(1);
+  }
+
+  @Test
+  void fallsBackToSingleUploadsWithoutBulkEndpoint() throws Exception {
+    status = 404;
+    var fallback = mock(AssetCallback.class);
+    try (var uploader = uploader(fallback, 2, Duration.ofMinutes(1))) {
+      uploader.upload(asset(0));
+      uploader.upload(asset(1)).get(5, TimeUnit.SECONDS);
+      uploader.upload(asset(2));
+      uploader.flush();
+    }
+
+    assertThat(requests).hasValue(1);
+    verify(fallback, times(3)).onAssetUpdated(any());
+  }
+
+  @Test
+  void fallsBackToSingleUploadsForRejectedBatchOnly() throws Exception {
+    status = 413;
+    var fallback = mock(AssetCallback.class);
+    try (var uploader = uploader(fallback, 1, Duration.ofMinutes(1))) {
+      uploader.upload(asset(1)).get(5, TimeUnit.SECONDS);
+      verify(fallback).onAssetUpdated(any());
+
+      status = 200;
+      uploader.upload(asset(2)).get(5, TimeUnit.SECONDS);
+    }
+
+    assertThat(requests).hasValue(2);
+    verify(fallback).onAssetUpdated(any());
+  }
+
+  @Test
+  void sendsTemporarilyFailedBatchAgain() throws Exception {
+    firstStatuses.addAll(List.of(503, 429));
+    retryAfter = "0";
+    var fallback = mock(AssetCallback.class);
+    try (var uploader = uploader(fallback, 1, Duration.ofMinutes(1))) {
+      uploader.upload(asset(1)).get(5, TimeUnit.SECONDS);
+    }
+
+    assertThat(requests).hasValue(3);
+    assertThat(receivedBatches).extracting(List::size).containsExactly(1, 1, 1);
+    verify(fallback, never()).onAssetUpdated(any());
+  }
+
+  @Test
+  void failsBatchThatKeepsFailingTemporarily() throws Exception {
+    status = 503;
+    retryAfter = "0";
+    var fallback = mock(AssetCallback.class);
+    CompletableFuture<Void> result;
+    try (var uploader = uploader(fallback, 1, Duration.ofMinutes(1))) {
+      result = uploader.upload(asset(1));
+    }
+
+    assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasMessageContaining("status 503");
+    assertThat(requests).hasValue(BatchingAssetUploader.MAX_ATTEMPTS);
+    verify(fallback, never()).onAssetUpdated(any());
+  }
+
+  @Test
+  void failsUnauthorizedBatchWithoutSendingItAgain() throws Exception {
+    status = 401;
+    var fallback = mock(AssetCallback.class);
+    CompletableFuture<Void> result;
+    try (var uploader = uploader(fallback, 1, Duration.ofMinutes(1))) {
+      result = uploader.upload(asset(1));
+    }
+
+    assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasMessageContaining("status 401");
+    assertThat(requests).hasValue(1);
+    verify(fallback, never()).onAssetUpdated(any());
+  }
+
+  @Test
+  void backsOffAsAskedOrExponentially() {
+    assertThat(BatchingAssetUploader.backoff(1, Duration.ofSeconds(7))).isEqualTo(Duration.ofSeconds(7));
+    assertThat(BatchingAssetUploader.backoff(1, Duration.ofHours(1))).isEqualTo(Duration.ofMinutes(1));
+    assertThat(BatchingAssetUploader.backoff(1, null)).isEqualTo(Duration.ofSeconds(1));
+    assertThat(BatchingAssetUploader.backoff(3, null)).isEqualTo(Duration.ofSeconds(4));
+    assertThat(BatchingAssetUploader.backoff(30, null)).isEqualTo(Duration.ofMinutes(1));
+  }
+
+  @Test
+  void failsAssetsWhoseSingleUploadFailed() throws Exception {
+    status = 400;
+    var fallback = mock(AssetCallback.class);
+    doThrow(new IllegalStateException("upload failed")).when(fallback).onAssetUpdated(any());
+    CompletableFuture<Void> result;
+    try (var uploader = uploader(fallback, 1, Duration.ofMinutes(1))) {
+      result = uploader.upload(asset(1));
+    }
+
+    assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasMessageContaining("upload failed");
+  }
+}
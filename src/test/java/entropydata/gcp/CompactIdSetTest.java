@@ -0,0 +1,55 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+
+class CompactIdSetTest {
+
+  @Test
+  void sortsAndDeduplicatesIds() {
+    var builder = CompactIdSet.builder();
+    builder.add("p:b.t");
+    builder.add("p:a");
+    builder.add("p:b.t");
+    builder.add("p:ä");
+
+    var ids = builder.build();
+
+    assertThat(ids.size()).isEqualTo(3);
+    assertThat(ids.get(0)).isEqualTo("p:a");
+    assertThat(ids.get(1)).isEqualTo("p:b.t");
+    assertThat(ids.get(2)).isEqualTo("p:ä");
+    assertThat(ids.contains("p:b.t")).isTrue();
+    assertThat(ids.contains("p:b")).isFalse();
+  }
+
+  @Test
+  void findsIdsMissingFromOtherSet() {
+    var previous = CompactIdSet.builder();
+    for (var id : new String[] {"p:a", "p:a.t1", "p:a.t2", "p:b", "p:c.t"}) {
+      previous.add(id);
+    }
+    var current = CompactIdSet.builder();
+    for (var id : new String[] {"p:a.t2", "p:a", "p:new"}) {
+      current.add(id);
+    }
+
+    var missing = new ArrayList<String>();
+    previous.build().forEachMissingFrom(current.build(), missing::add);
+
+    assertThat(missing).containsExactly("p:a.t1", "p:b", "p:c.t");
+  }
+
+  @Test
+  void everyIdIsMissingFromEmptySet() {
+    var builder = CompactIdSet.builder();
+    builder.add("p:a");
+
+    var missing = new ArrayList<String>();
+    builder.build().forEachMissingFrom(CompactIdSet.EMPTY, missing::add);
+
+    assertThat(missing).containsExactly("p:a");
+  }
+}
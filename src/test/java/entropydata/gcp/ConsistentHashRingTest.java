@@ -0,0 +1,53 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ConsistentHashRingTest {
+
+  private static final int KEYS = 10_000;
+
+  @Test
+  void spreadsKeysEvenly() {
+    var ring = new ConsistentHashRing(List.of("replica-0", "replica-1", "replica-2"), 128);
+
+    var counts = new HashMap<String, Integer>();
+    for (int i = 0; i < KEYS; i++) {
+      counts.merge(ring.ownerOf("project:dataset_" + i), 1, Integer::sum);
+    }
+
+    assertThat(counts).hasSize(3);
+    assertThat(counts.values()).allSatisfy(count -> assertThat(count).isBetween(KEYS / 4, KEYS / 2));
+  }
+
+  @Test
+  void joiningMemberOnlyTakesKeysFromOthers() {
+    var before = new ConsistentHashRing(List.of("replica-0", "replica-1", "replica-2"), 128);
+    var after = new ConsistentHashRing(List.of("replica-0", "replica-1", "replica-2", "replica-3"), 128);
+
+    Map<String, Integer> moved = new HashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      var key = "project:dataset_" + i;
+      if (!before.ownerOf(key).equals(after.ownerOf(key))) {
+        moved.merge(after.ownerOf(key), 1, Integer::sum);
+      }
+    }
+
+    assertThat(moved).containsOnlyKeys("replica-3");
+    assertThat(moved.get("replica-3")).isBetween(KEYS / 8, KEYS * 3 / 8);
+  }
+
+  @Test
+  void ownerDoesNotDependOnMemberOrder() {
+    var ring = new ConsistentHashRing(List.of("replica-a", "replica-b"), 16);
+    var reversed = new ConsistentHashRing(List.of("replica-b", "replica-a"), 16);
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(ring.ownerOf("key-" + i)).isEqualTo(reversed.ownerOf("key-" + i));
+    }
+  }
+}
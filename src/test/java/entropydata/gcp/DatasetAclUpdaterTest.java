@@ -0,0 +1,211 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.bigquery.Acl;
+import com.google.cloud.bigquery.Acl.Group;
+import com.google.cloud.bigquery.Acl.Role;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.http.HttpTransportOptions;
+import entropydata.gcp.DatasetAclUpdater.Outcome;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class DatasetAclUpdaterTest {
+
+  private static final DatasetId DATASET = DatasetId.of("project-0", "dataset_0000");
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private FakeBigQuery fakeBigQuery;
+
+  private DatasetAclUpdater updater(double errorRate) {
+    fakeBigQuery = new FakeBigQuery(new FakeBigQuery.Settings(1, 1, 0, 1, 2, 100, Duration.ZERO, errorRate));
+    return new DatasetAclUpdater(fakeBigQuery.bigQuery(), 3, Duration.ofMillis(1), registry);
+  }
+
+  private static Acl reader(String group) {
+    return Acl.of(new Group(group + "@example.com"), Role.READER);
+  }
+
+  /**
+   * Grants {@code acl} like another writer would, between the read and the write of the updater.
+   */
+  private void grantConcurrently(Acl acl) {
+    var dataset = fakeBigQuery.bigQuery().getDataset(DATASET);
+    var aclList = new ArrayList<>(dataset.getAcl());
+    aclList.add(acl);
+    dataset.toBuilder().setAcl(aclList).build().update();
+  }
+
+  @Test
+  void appliesTheChangeAgainToTheDatasetChangedSinceTheRead() {
+    var updater = updater(0);
+    var attempts = new AtomicInteger();
+
+    var outcome = updater.update(DATASET, aclList -> {
+      if (attempts.incrementAndGet() == 1) {
+        grantConcurrently(reader("other"));
+      }
+      return aclList.add(reader("team"));
+    });
+
+    assertThat(outcome).isEqualTo(Outcome.APPLIED);
+    assertThat(attempts).hasValue(2);
+    assertThat(fakeBigQuery.acl(DATASET)).hasSize(4).contains(reader("other"), reader("team"));
+    assertThat(registry.get("gcp.access.acl.conflicts").counter().count()).isEqualTo(1);
+  }
+
+  @Test
+  void recordsConflictingUpdatesAsBigQueryCalls() {
+    updater(0);
+    var updater = new DatasetAclUpdater(ApiMetrics.metered(fakeBigQuery.bigQuery(), registry), 3,
+        Duration.ofMillis(1), registry);
+    var attempts = new AtomicInteger();
+
+    var outcome = updater.update(DATASET, aclList -> {
+      if (attempts.incrementAndGet() == 1) {
+        grantConcurrently(reader("other"));
+      }
+      return aclList.add(reader("team"));
+    });
+
+    assertThat(outcome).isEqualTo(Outcome.APPLIED);
+    assertThat(registry.get(ApiMetrics.BIGQUERY_REQUESTS).tags("method", "update", "outcome", "412").timer()
+        .count()).isEqualTo(1);
+    assertThat(registry.get(ApiMetrics.BIGQUERY_REQUESTS).tags("method", "update", "outcome", "success").timer()
+        .count()).isEqualTo(1);
+    assertThat(registry.get(ApiMetrics.BIGQUERY_REQUESTS).tags("method", "getDataset").timer().count())
+        .isEqualTo(2);
+  }
+
+  @Test
+  void givesUpAfterMaxAttempts() {
+    var updater = updater(0);
+    var attempts = new AtomicInteger();
+
+    assertThatThrownBy(() -> updater.update(DATASET, aclList -> {
+      grantConcurrently(reader("other-" + attempts.incrementAndGet()));
+      return aclList.add(reader("team"));
+    })).isInstanceOfSatisfying(BigQueryException.class, e -> assertThat(e.getCode()).isEqualTo(412));
+
+    assertThat(attempts).hasValue(3);
+    assertThat(fakeBigQuery.acl(DATASET)).doesNotContain(reader("team"));
+    assertThat(registry.get("gcp.access.acl.conflicts").counter().count()).isEqualTo(3);
+  }
+
+  @Test
+  void skipsTheUpdateWhenNothingChangedAndReportsMissingDatasets() {
+    var updater = updater(0);
+
+    assertThat(updater.update(DATASET, aclList -> false)).isEqualTo(Outcome.UNCHANGED);
+    assertThat(updater.update(DatasetId.of("project-1", "dataset_0000"), aclList -> true))
+        .isEqualTo(Outcome.DATASET_NOT_FOUND);
+    assertThat(fakeBigQuery.calls("update")).isZero();
+  }
+
+  @Test
+  void updatesThroughTheGivenClient() {
+    updater(0);
+    // rejects the first update like BigQuery does when the metadata update rate of a dataset is exceeded
+    var updates = new AtomicInteger();
+    var throttled = (BigQuery) Proxy.newProxyInstance(BigQuery.class.getClassLoader(), new Class<?>[] {BigQuery.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("update") && updates.incrementAndGet() == 1) {
+            throw new BigQueryException(429, "Exceeded rate limits");
+          }
+          try {
+            return method.invoke(fakeBigQuery.bigQuery(), args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+    var rateLimited = RateLimitedBigQuery.wrap(throttled,
+        new RateLimitedBigQuery.Settings(1000, 10, 4, 3, Duration.ofMillis(1), Duration.ofMillis(5)));
+    var updater = new DatasetAclUpdater(rateLimited, 3, Duration.ofMillis(1), registry);
+
+    assertThat(updater.update(DATASET, aclList -> aclList.add(reader("team")))).isEqualTo(Outcome.APPLIED);
+
+    // the rate limiter retried the rejected update
+    assertThat(updates).hasValue(2);
+    assertThat(fakeBigQuery.acl(DATASET)).contains(reader("team"));
+  }
+
+  @Test
+  void sendsTheEtagOfTheReadAsIfMatch() {
+    record SentRequest(String method, MockLowLevelHttpRequest request) {
+    }
+    var sent = new CopyOnWriteArrayList<SentRequest>();
+    var reads = new AtomicInteger();
+    var patchStatuses = new ArrayDeque<>(List.of(412, 200));
+    var transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        var request = new MockLowLevelHttpRequest(url);
+        var response = new MockLowLevelHttpResponse().setContentType(Json.MEDIA_TYPE);
+        if (method.equals("GET")) {
+          response.setContent(datasetJson("etag-" + reads.incrementAndGet()));
+        } else {
+          int status = patchStatuses.removeFirst();
+          response.setStatusCode(status).setContent(status == 200 ? datasetJson("etag-updated")
+              : "{\"error\":{\"code\":412,\"message\":\"Precondition check failed.\"}}");
+        }
+        request.setResponse(response);
+        sent.add(new SentRequest(method, request));
+        return request;
+      }
+    };
+    var bigQuery = BigQueryOptions.newBuilder()
+        .setProjectId("my-project")
+        .setCredentials(NoCredentials.getInstance())
+        .setTransportOptions(new IfMatchTransportOptions(
+            HttpTransportOptions.newBuilder().setHttpTransportFactory(() -> transport)))
+        .setRetrySettings(ServiceOptions.getNoRetrySettings())
+        .build()
+        .getService();
+    var updater = new DatasetAclUpdater(bigQuery, 3, Duration.ofMillis(1), registry);
+
+    var outcome = updater.update(DatasetId.of("my-project", "my_dataset"), aclList -> aclList.add(reader("team")));
+
+    assertThat(outcome).isEqualTo(Outcome.APPLIED);
+    // the first update conflicts, the second one sends the etag of the second read
+    assertThat(sent).extracting(SentRequest::method, request -> request.request().getFirstHeaderValue("If-Match"))
+        .containsExactly(tuple("GET", null), tuple("PATCH", "etag-1"), tuple("GET", null), tuple("PATCH", "etag-2"));
+  }
+
+  private static String datasetJson(String etag) {
+    return "{\"kind\":\"bigquery#dataset\",\"id\":\"my-project:my_dataset\","
+        + "\"datasetReference\":{\"projectId\":\"my-project\",\"datasetId\":\"my_dataset\"},"
+        + "\"etag\":\"" + etag + "\",\"access\":[{\"role\":\"OWNER\",\"userByEmail\":\"owner@example.com\"}]}";
+  }
+
+  @Test
+  void doesNotRetryOtherErrors() {
+    var updater = updater(1);
+
+    assertThatThrownBy(() -> updater.update(DATASET, aclList -> aclList.add(reader("team"))))
+        .isInstanceOfSatisfying(BigQueryException.class, e -> assertThat(e.getCode()).isEqualTo(503));
+    assertThat(fakeBigQuery.calls("getDataset")).isEqualTo(1);
+    assertThat(registry.find("gcp.access.acl.conflicts").counter()).isNull();
+  }
+
+}
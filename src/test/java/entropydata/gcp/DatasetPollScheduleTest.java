@@ -0,0 +1,82 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+class DatasetPollScheduleTest {
+
+  private static final long MINUTE = Duration.ofMinutes(1).toMillis();
+
+  private final DatasetPollSchedule schedule = new DatasetPollSchedule(Duration.ofMinutes(1), Duration.ofHours(1), 0);
+
+  @Test
+  void unknownDatasetsAreDue() {
+    assertThat(schedule.isDue("p:ds", 0)).isTrue();
+  }
+
+  @Test
+  void pollsFrequentlyChangingDatasetsAtMinimumInterval() {
+    long now = 1000 * MINUTE;
+    for (int i = 0; i < 5; i++) {
+      schedule.onPolled("p:hot", now, now - 10_000);
+      now += MINUTE;
+    }
+
+    assertThat(schedule.isDue("p:hot", now)).isTrue();
+  }
+
+  @Test
+  void pollsDatasetsAfterHalfTheirChangeInterval() {
+    long now = 1000 * MINUTE;
+    schedule.onPolled("p:ds", now, now - 20 * MINUTE);
+    schedule.onPolled("p:ds", now, now);
+
+    assertThat(schedule.isDue("p:ds", now + 9 * MINUTE)).isFalse();
+    assertThat(schedule.isDue("p:ds", now + 10 * MINUTE)).isTrue();
+  }
+
+  @Test
+  void backsOffUnchangedDatasetsUpToMaxStaleness() {
+    long now = 100_000 * MINUTE;
+    schedule.onPolled("p:cold", now, now - 30 * 24 * 60 * MINUTE);
+
+    assertThat(schedule.isDue("p:cold", now + 59 * MINUTE)).isFalse();
+    assertThat(schedule.isDue("p:cold", now + 60 * MINUTE)).isTrue();
+  }
+
+  @Test
+  void coolsDownDatasetsWithoutKnownChanges() {
+    long start = 1000 * MINUTE;
+    schedule.onPolled("p:ds", start, null);
+    assertThat(schedule.isDue("p:ds", start + MINUTE)).isTrue();
+
+    schedule.onPolled("p:ds", start + 40 * MINUTE, null);
+    assertThat(schedule.isDue("p:ds", start + 50 * MINUTE)).isFalse();
+    assertThat(schedule.isDue("p:ds", start + 60 * MINUTE)).isTrue();
+  }
+
+  @Test
+  void forgetsDatasetsThatAreNotRetained() {
+    long now = 1000 * MINUTE;
+    schedule.onPolled("p:kept", now, now - 20 * MINUTE);
+    schedule.onPolled("p:deleted", now, now - 20 * MINUTE);
+
+    schedule.retainOnly("p:kept"::equals);
+
+    assertThat(schedule.isDue("p:kept", now + MINUTE)).isFalse();
+    assertThat(schedule.isDue("p:deleted", now + MINUTE)).isTrue();
+  }
+
+  @Test
+  void jitterStaysWithinStalenessBound() {
+    var jittered = new DatasetPollSchedule(Duration.ofMinutes(1), Duration.ofHours(1), 0.5);
+    long now = 100_000 * MINUTE;
+    for (int i = 0; i < 100; i++) {
+      jittered.onPolled("p:ds" + i, now, now - 30 * 24 * 60 * MINUTE);
+      assertThat(jittered.isDue("p:ds" + i, now + 29 * MINUTE)).isFalse();
+      assertThat(jittered.isDue("p:ds" + i, now + 60 * MINUTE)).isTrue();
+    }
+  }
+}
@@ -0,0 +1,394 @@
+package entropydata.gcp;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.bigquery.Acl;
+import com.google.cloud.bigquery.Acl.Role;
+import com.google.cloud.bigquery.Acl.User;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Dataset;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.bigquery.DatasetInfo;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.TableInfo;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import org.mockito.invocation.InvocationOnMock;
+
+/**
+ * A {@link BigQuery} with synthetic projects {@code project-<n>}, datasets {@code dataset_<n>} and tables
+ * {@code table_<n>}, for tests at production scale. Datasets and tables are generated on every call, so the fake needs
+ * no memory per table, and only datasets whose ACL was updated are stored. Every call, including the next page of a
+ * listing, waits for a random latency between half and one and a half times {@code latency} and fails with
+ * {@code errorRate} with a retryable 503.
+ * <p>
+ * Supported are listing, reading and updating datasets, and listing and reading tables. Listing options are ignored.
+ * Datasets and tables are stub-only mocks that answer from a {@link DatasetInfo} or {@link TableInfo}, because their
+ * constructors are not public. Like real datasets, {@code dataset.toBuilder().setAcl(acl).build().update()} writes to
+ * the fake itself, bypassing any wrapper. A dataset read with {@code getDataset} carries an etag that changes with
+ * every update. An update of a dataset built from it fails with 412 Precondition Failed once the dataset was updated
+ * since the read, like BigQuery answers the {@code If-Match} that {@link DatasetAclUpdater} sends with that etag.
+ */
+class FakeBigQuery implements InvocationHandler {
+
+  static final long CREATED_AT = 1_700_000_000_000L;
+  static final String PROJECT_PREFIX = "project-";
+
+  record Settings(int projects, int datasetsPerProject, int tablesPerDataset, int columnsPerTable,
+      int aclEntriesPerDataset, int pageSize, Duration latency, double errorRate) {
+  }
+
+  private final Settings settings;
+  private final BigQuery proxy;
+  private final Map<DatasetId, List<Acl>> updatedAcls = new ConcurrentHashMap<>();
+  private final Map<DatasetId, Integer> versions = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+  private volatile long modifiedAt = CREATED_AT;
+
+  FakeBigQuery(Settings settings) {
+    this.settings = settings;
+    this.proxy = (BigQuery) Proxy.newProxyInstance(BigQuery.class.getClassLoader(), new Class<?>[] {BigQuery.class},
+        this);
+  }
+
+  BigQuery bigQuery() {
+    return proxy;
+  }
+
+  static String projectId(int project) {
+    return PROJECT_PREFIX + project;
+  }
+
+  static String datasetName(int dataset) {
+    return String.format("dataset_%04d", dataset);
+  }
+
+  static String tableName(int table) {
+    return String.format("table_%05d", table);
+  }
+
+  /**
+   * Marks all datasets and tables as modified now, so that the next synchronization uploads them again.
+   */
+  void touchAll() {
+    modifiedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * @return number of calls of the given {@link BigQuery} method, counting every page of a listing
+   */
+  long calls(String method) {
+    var counter = calls.get(method);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  /**
+   * @return number of simulated errors of the given {@link BigQuery} method
+   */
+  long failures(String method) {
+    var counter = failures.get(method);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  List<Acl> acl(DatasetId datasetId) {
+    return updatedAcls.getOrDefault(datasetId, initialAcl());
+  }
+
+  String etag(DatasetId datasetId) {
+    return "v" + versions.getOrDefault(datasetId, 0);
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      return switch (method.getName()) {
+        case "equals" -> proxy == args[0];
+        case "hashCode" -> System.identityHashCode(proxy);
+        default -> "FakeBigQuery" + settings;
+      };
+    }
+    return switch (method.getName()) {
+      case "getOptions" -> null;
+      case "listDatasets" -> call("listDatasets", () -> listDatasets(
+          args[0] instanceof String projectId ? projectId : projectId(0), 0));
+      case "getDataset" -> call("getDataset", () -> getDataset(args[0] instanceof DatasetId datasetId
+          ? datasetId : DatasetId.of(projectId(0), (String) args[0])));
+      case "listTables" -> call("listTables", () -> listTables(args[0] instanceof DatasetId datasetId
+          ? datasetId : DatasetId.of(projectId(0), (String) args[0]), 0));
+      case "getTable" -> call("getTable", () -> getTable(args[0] instanceof TableId tableId
+          ? tableId : TableId.of(projectId(0), (String) args[0], (String) args[1])));
+      case "update" -> {
+        if (!(args[0] instanceof DatasetInfo datasetInfo)) {
+          throw new UnsupportedOperationException("FakeBigQuery only updates datasets");
+        }
+        yield call("update", () -> update(datasetInfo));
+      }
+      default -> throw new UnsupportedOperationException("FakeBigQuery does not support " + method.getName());
+    };
+  }
+
+  private <T> T call(String method, Supplier<T> supplier) {
+    calls.computeIfAbsent(method, key -> new LongAdder()).increment();
+    var random = ThreadLocalRandom.current();
+    long latencyNanos = settings.latency().toNanos();
+    if (latencyNanos > 0) {
+      try {
+        long nanos = random.nextLong(latencyNanos / 2, latencyNanos * 3 / 2 + 1);
+        Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new BigQueryException(BigQueryException.UNKNOWN_CODE, "Interrupted", e);
+      }
+    }
+    if (settings.errorRate() > 0 && random.nextDouble() < settings.errorRate()) {
+      failures.computeIfAbsent(method, key -> new LongAdder()).increment();
+      throw new BigQueryException(503, "Simulated backend error");
+    }
+    return supplier.get();
+  }
+
+  private Page<Dataset> listDatasets(String projectId, int offset) {
+    int total = projectIndex(projectId) < 0 ? 0 : settings.datasetsPerProject();
+    return new FakePage<>("listDatasets", total, offset,
+        i -> dataset(DatasetInfo.newBuilder(DatasetId.of(projectId, datasetName(i))).build(), false, null),
+        next -> listDatasets(projectId, next));
+  }
+
+  private Dataset getDataset(DatasetId datasetId) {
+    if (!exists(datasetId)) {
+      return null;
+    }
+    return dataset(DatasetInfo.newBuilder(datasetId)
+        .setFriendlyName(datasetId.getDataset())
+        .setDescription("Synthetic dataset " + datasetId.getDataset())
+        .setLabels(Map.of("env", "load"))
+        .setAcl(acl(datasetId))
+        .build(), true, etag(datasetId));
+  }
+
+  private Page<Table> listTables(DatasetId datasetId, int offset) {
+    if (!exists(datasetId)) {
+      throw new BigQueryException(404, "Not found: Dataset " + datasetId);
+    }
+    return new FakePage<>("listTables", settings.tablesPerDataset(), offset,
+        i -> table(TableInfo.of(TableId.of(datasetId.getProject(), datasetId.getDataset(), tableName(i)),
+            StandardTableDefinition.newBuilder().build())),
+        next -> listTables(datasetId, next));
+  }
+
+  private Table getTable(TableId tableId) {
+    if (!exists(DatasetId.of(tableId.getProject(), tableId.getDataset())) || tableIndex(tableId.getTable()) < 0) {
+      return null;
+    }
+    var fields = new ArrayList<Field>(settings.columnsPerTable());
+    for (int i = 0; i < settings.columnsPerTable(); i++) {
+      fields.add(Field.newBuilder("column_" + i, i % 2 == 0 ? LegacySQLTypeName.STRING : LegacySQLTypeName.INTEGER)
+          .setDescription("Synthetic column " + i)
+          .build());
+    }
+    return table(TableInfo.newBuilder(tableId, StandardTableDefinition.of(Schema.of(fields)))
+        .setFriendlyName(tableId.getTable())
+        .setDescription("Synthetic table " + tableId.getTable())
+        .build());
+  }
+
+  private Dataset update(DatasetInfo datasetInfo) {
+    var datasetId = datasetInfo.getDatasetId();
+    if (!exists(datasetId)) {
+      throw new BigQueryException(404, "Not found: Dataset " + datasetId);
+    }
+    synchronized (versions) {
+      if (datasetInfo.getEtag() != null && !datasetInfo.getEtag().equals(etag(datasetId))) {
+        throw new BigQueryException(412, "Precondition check failed");
+      }
+      updatedAcls.put(datasetId, List.copyOf(datasetInfo.getAcl()));
+      versions.merge(datasetId, 1, Integer::sum);
+    }
+    return getDataset(datasetId);
+  }
+
+  private List<Acl> initialAcl() {
+    var acl = new ArrayList<Acl>(settings.aclEntriesPerDataset());
+    for (int i = 0; i < settings.aclEntriesPerDataset(); i++) {
+      acl.add(Acl.of(new User("user-" + i + "@example.com"), Role.READER));
+    }
+    return acl;
+  }
+
+  private boolean exists(DatasetId datasetId) {
+    return projectIndex(datasetId.getProject()) >= 0
+        && index(datasetId.getDataset(), "dataset_", settings.datasetsPerProject()) >= 0;
+  }
+
+  private int projectIndex(String projectId) {
+    return index(projectId, PROJECT_PREFIX, settings.projects());
+  }
+
+  private int tableIndex(String tableName) {
+    return index(tableName, "table_", settings.tablesPerDataset());
+  }
+
+  private static int index(String name, String prefix, int count) {
+    if (name == null || !name.startsWith(prefix)) {
+      return -1;
+    }
+    try {
+      int index = Integer.parseInt(name.substring(prefix.length()));
+      return index < count ? index : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @param full whether the dataset is the result of {@code getDataset}, rather than an entry of a listing
+   * @param etag the etag of the read the dataset was built from, or {@code null}
+   */
+  private Dataset dataset(DatasetInfo info, boolean full, String etag) {
+    var datasetId = info.getDatasetId();
+    var outputs = new TreeMap<String, Object>();
+    outputs.put("getGeneratedId", datasetId.getProject() + ":" + datasetId.getDataset());
+    if (full) {
+      outputs.put("getCreationTime", CREATED_AT);
+      outputs.put("getLastModified", modifiedAt);
+    }
+    outputs.put("getEtag", etag);
+    return mock(Dataset.class, withSettings().stubOnly().defaultAnswer(invocation -> switch (
+        invocation.getMethod().getName()) {
+      case "toBuilder" -> datasetBuilder(info.toBuilder(), etag);
+      case "update" -> proxy.update((DatasetInfo) invocation.getMock());
+      case "reload" -> proxy.getDataset(datasetId);
+      case "getBigQuery" -> proxy;
+      default -> outputs.containsKey(invocation.getMethod().getName())
+          ? outputs.get(invocation.getMethod().getName()) : delegate(DatasetInfo.class, info, invocation);
+    }));
+  }
+
+  private Dataset.Builder datasetBuilder(DatasetInfo.Builder infoBuilder, String etag) {
+    return mock(Dataset.Builder.class, withSettings().stubOnly().defaultAnswer(invocation -> {
+      if (invocation.getMethod().getName().equals("build")) {
+        return dataset(infoBuilder.build(), false, etag);
+      }
+      delegate(DatasetInfo.Builder.class, infoBuilder, invocation);
+      return invocation.getMock();
+    }));
+  }
+
+  private Table table(TableInfo info) {
+    var tableId = info.getTableId();
+    var outputs = Map.<String, Object>of(
+        "getGeneratedId", tableId.getProject() + ":" + tableId.getDataset() + "." + tableId.getTable(),
+        "getCreationTime", CREATED_AT,
+        "getLastModifiedTime", modifiedAt);
+    return mock(Table.class, withSettings().stubOnly().defaultAnswer(invocation -> switch (
+        invocation.getMethod().getName()) {
+      case "reload" -> proxy.getTable(tableId);
+      case "getBigQuery" -> proxy;
+      default -> outputs.containsKey(invocation.getMethod().getName())
+          ? outputs.get(invocation.getMethod().getName()) : delegate(TableInfo.class, info, invocation);
+    }));
+  }
+
+  private static Object delegate(Class<?> type, Object target, InvocationOnMock invocation) throws Throwable {
+    var method = invocation.getMethod();
+    try {
+      return type.getMethod(method.getName(), method.getParameterTypes()).invoke(target, invocation.getArguments());
+    } catch (NoSuchMethodException e) {
+      throw new UnsupportedOperationException("FakeBigQuery does not support " + method, e);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * A page of {@code settings.pageSize()} elements. Fetching the next page is a call of its own.
+   */
+  private class FakePage<T> implements Page<T> {
+
+    private final String method;
+    private final int end;
+    private final int total;
+    private final List<T> values;
+    private final IntFunction<Page<T>> nextPage;
+
+    FakePage(String method, int total, int offset, IntFunction<T> element, IntFunction<Page<T>> nextPage) {
+      this.method = method;
+      this.total = total;
+      this.end = Math.min(total, offset + settings.pageSize());
+      this.values = new ArrayList<>(Math.max(0, end - offset));
+      for (int i = offset; i < end; i++) {
+        values.add(element.apply(i));
+      }
+      this.nextPage = nextPage;
+    }
+
+    @Override
+    public boolean hasNextPage() {
+      return end < total;
+    }
+
+    @Override
+    public String getNextPageToken() {
+      return hasNextPage() ? Integer.toString(end) : null;
+    }
+
+    @Override
+    public Page<T> getNextPage() {
+      return hasNextPage() ? call(method, () -> nextPage.apply(end)) : null;
+    }
+
+    @Override
+    public Iterable<T> getValues() {
+      return values;
+    }
+
+    @Override
+    public Iterable<T> iterateAll() {
+      return () -> new Iterator<>() {
+        private Page<T> page = FakePage.this;
+        private Iterator<T> iterator = values.iterator();
+
+        @Override
+        public boolean hasNext() {
+          while (!iterator.hasNext() && page.hasNextPage()) {
+            page = page.getNextPage();
+            iterator = page.getValues().iterator();
+          }
+          return iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return iterator.next();
+        }
+      };
+    }
+  }
+
+}
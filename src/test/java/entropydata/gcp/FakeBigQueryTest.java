@@ -0,0 +1,93 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.cloud.bigquery.Acl;
+import com.google.cloud.bigquery.Acl.Group;
+import com.google.cloud.bigquery.Acl.Role;
+import com.google.cloud.bigquery.BigQuery.DatasetListOption;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.bigquery.TableId;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.StreamSupport;
+import org.junit.jupiter.api.Test;
+
+class FakeBigQueryTest {
+
+  private static FakeBigQuery fake(double errorRate) {
+    return new FakeBigQuery(new FakeBigQuery.Settings(2, 3, 250, 4, 2, 100, Duration.ZERO, errorRate));
+  }
+
+  @Test
+  void listsTablesPageByPage() {
+    var fake = fake(0);
+
+    var tables = fake.bigQuery().listTables(DatasetId.of("project-1", "dataset_0002")).iterateAll();
+
+    assertThat(StreamSupport.stream(tables.spliterator(), false).map(table -> table.getTableId().getTable()))
+        .hasSize(250)
+        .startsWith("table_00000")
+        .endsWith("table_00249");
+    assertThat(fake.calls("listTables")).isEqualTo(3);
+  }
+
+  @Test
+  void servesDatasetsAndTablesOfTheConfiguredShape() {
+    var fake = fake(0);
+
+    var datasets = fake.bigQuery().listDatasets("project-0", DatasetListOption.all()).iterateAll();
+    var table = fake.bigQuery().getTable(TableId.of("project-0", "dataset_0000", "table_00007"));
+
+    assertThat(datasets).hasSize(3);
+    assertThat(table.getGeneratedId()).isEqualTo("project-0:dataset_0000.table_00007");
+    assertThat(table.getLastModifiedTime()).isEqualTo(FakeBigQuery.CREATED_AT);
+    assertThat(table.getDefinition().getSchema().getFields()).hasSize(4);
+    assertThat(fake.bigQuery().getTable(TableId.of("project-0", "dataset_0000", "table_00250"))).isNull();
+    assertThat(fake.bigQuery().getDataset(DatasetId.of("project-2", "dataset_0000"))).isNull();
+  }
+
+  @Test
+  void storesUpdatedAcls() {
+    var fake = fake(0);
+    var datasetId = DatasetId.of("project-0", "dataset_0001");
+    var dataset = fake.bigQuery().getDataset(datasetId);
+    var acl = new ArrayList<>(dataset.getAcl());
+    acl.add(Acl.of(new Group("team@example.com"), Role.READER));
+
+    dataset.toBuilder().setAcl(acl).build().update();
+
+    assertThat(fake.bigQuery().getDataset(datasetId).getAcl())
+        .hasSize(3)
+        .contains(Acl.of(new Group("team@example.com"), Role.READER));
+    assertThat(fake.acl(DatasetId.of("project-0", "dataset_0002"))).hasSize(2);
+  }
+
+  @Test
+  void rejectsUpdatesOfDatasetsThatChangedSinceTheRead() {
+    var fake = fake(0);
+    var datasetId = DatasetId.of("project-0", "dataset_0001");
+    var first = fake.bigQuery().getDataset(datasetId);
+    var second = fake.bigQuery().getDataset(datasetId);
+    first.toBuilder().setAcl(List.of(Acl.of(new Group("first@example.com"), Role.READER))).build().update();
+
+    assertThatThrownBy(() -> second.toBuilder().setAcl(List.of()).build().update())
+        .isInstanceOfSatisfying(BigQueryException.class, e -> assertThat(e.getCode()).isEqualTo(412));
+    assertThat(fake.acl(datasetId)).containsExactly(Acl.of(new Group("first@example.com"), Role.READER));
+    assertThat(fake.bigQuery().getDataset(datasetId).getEtag()).isEqualTo(fake.etag(datasetId)).isNotEqualTo(
+        second.getEtag());
+  }
+
+  @Test
+  void failsWithTheConfiguredErrorRate() {
+    var fake = fake(1);
+
+    assertThatThrownBy(() -> fake.bigQuery().getTable(TableId.of("project-0", "dataset_0000", "table_00000")))
+        .isInstanceOfSatisfying(BigQueryException.class, e -> assertThat(e.getCode()).isEqualTo(503));
+    assertThat(fake.failures("getTable")).isEqualTo(1);
+  }
+
+}
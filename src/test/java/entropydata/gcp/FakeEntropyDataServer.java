@@ -0,0 +1,207 @@
+package entropydata.gcp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local HTTP stand-in for the parts of the Entropy Data API that the connector calls, serving synthetic entities
+ * that match the datasets of a {@link FakeBigQuery} with the same number of projects and datasets:
+ * <ul>
+ *   <li>access {@code access-<n>} of team {@code team-<n % teams>} to the output port {@code bigquery} of data product
+ *   {@code provider-<n % datasets>}</li>
+ *   <li>data product {@code provider-<k>}, in the Data Product Specification format, whose output port is dataset
+ *   {@code k % datasetsPerProject} of project {@code k / datasetsPerProject}</li>
+ *   <li>team {@code team-<m>} with the custom field {@code gcpPrincipal} set to {@code group:team-<m>@example.com}</li>
+ *   <li>single and bulk asset uploads, which are only counted</li>
+ * </ul>
+ * Every request waits for {@code latency} before it is answered.
+ */
+class FakeEntropyDataServer implements AutoCloseable {
+
+  static final String PRINCIPAL_FIELD = "gcpPrincipal";
+
+  private final int datasetsPerProject;
+  private final int datasets;
+  private final int teams;
+  private final Duration latency;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+  private final LongAdder uploadedAssets = new LongAdder();
+  private final LongAdder deletedAssets = new LongAdder();
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  FakeEntropyDataServer(int projects, int datasetsPerProject, int teams, Duration latency) throws IOException {
+    this.datasetsPerProject = datasetsPerProject;
+    this.datasets = projects * datasetsPerProject;
+    this.teams = teams;
+    this.latency = latency;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.executor = Executors.newFixedThreadPool(32);
+    server.setExecutor(executor);
+    server.createContext("/api/", this::handle);
+    server.start();
+  }
+
+  String host() {
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+  }
+
+  /**
+   * @param operation e.g. {@code access.get}, {@code dataproducts.get} or {@code assets.bulk}
+   */
+  long requests(String operation) {
+    var counter = requests.get(operation);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  long uploadedAssets() {
+    return uploadedAssets.sum();
+  }
+
+  long deletedAssets() {
+    return deletedAssets.sum();
+  }
+
+  static String accessId(int access) {
+    return "access-" + access;
+  }
+
+  /**
+   * @return the dataset that access {@code access-<n>} refers to, as {@code project:dataset}
+   */
+  String datasetKeyOf(int access) {
+    int dataset = access % datasets;
+    return FakeBigQuery.projectId(dataset / datasetsPerProject) + ":" + FakeBigQuery.datasetName(
+        dataset % datasetsPerProject);
+  }
+
+  /**
+   * @return the group that access {@code access-<n>} grants access to
+   */
+  String groupOf(int access) {
+    return "team-" + (access % teams) + "@example.com";
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      sleep();
+      var segments = exchange.getRequestURI().getPath().substring("/api/".length()).split("/");
+      var method = exchange.getRequestMethod();
+      if (segments.length != 2) {
+        respond(exchange, "unknown", 404, null);
+        return;
+      }
+      var resource = segments[0];
+      var id = segments[1];
+      switch (resource + " " + method) {
+        case "access GET" -> respond(exchange, "access.get", 200, access(id));
+        case "access PUT" -> {
+          exchange.getRequestBody().readAllBytes();
+          respond(exchange, "access.put", 200, null);
+        }
+        case "dataproducts GET" -> respond(exchange, "dataproducts.get", 200, dataProduct(id));
+        case "teams GET" -> respond(exchange, "teams.get", 200, team(id));
+        case "assets POST" -> {
+          if (!id.equals("bulk")) {
+            respond(exchange, "assets.post", 404, null);
+            return;
+          }
+          InputStream body = exchange.getRequestBody();
+          if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            body = new GZIPInputStream(body);
+          }
+          uploadedAssets.add(objectMapper.readTree(body).size());
+          respond(exchange, "assets.bulk", 200, null);
+        }
+        case "assets PUT" -> {
+          exchange.getRequestBody().readAllBytes();
+          uploadedAssets.increment();
+          respond(exchange, "assets.put", 200, null);
+        }
+        case "assets DELETE" -> {
+          deletedAssets.increment();
+          respond(exchange, "assets.delete", 200, null);
+        }
+        default -> respond(exchange, resource + "." + method.toLowerCase(), 404, null);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Map<String, Object> access(String accessId) {
+    int access = Integer.parseInt(accessId.substring("access-".length()));
+    return Map.of(
+        "id", accessId,
+        "info", Map.of("purpose", "Load test"),
+        "provider", Map.of("dataProductId", "provider-" + (access % datasets), "outputPortId", "bigquery"),
+        "consumer", Map.of("teamId", "team-" + (access % teams)),
+        "tags", List.of());
+  }
+
+  private Map<String, Object> dataProduct(String dataProductId) {
+    int dataset = Integer.parseInt(dataProductId.substring("provider-".length()));
+    return Map.of(
+        "dataProductSpecification", "0.0.1",
+        "id", dataProductId,
+        "info", Map.of("title", dataProductId, "owner", "team-0", "status", "active"),
+        "outputPorts", List.of(Map.of(
+            "id", "bigquery",
+            "name", "BigQuery",
+            "type", "bigquery",
+            "server", Map.of(
+                "project", FakeBigQuery.projectId(dataset / datasetsPerProject),
+                "dataset", FakeBigQuery.datasetName(dataset % datasetsPerProject)))));
+  }
+
+  private Map<String, Object> team(String teamId) {
+    return Map.of(
+        "id", teamId,
+        "name", teamId,
+        "custom", Map.of(PRINCIPAL_FIELD, "group:" + teamId + "@example.com"));
+  }
+
+  private void respond(HttpExchange exchange, String operation, int status, Object body) throws IOException {
+    requests.computeIfAbsent(operation, key -> new LongAdder()).increment();
+    if (body == null) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    var bytes = objectMapper.writeValueAsBytes(body);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+
+  private void sleep() {
+    if (latency.isZero()) {
+      return;
+    }
+    try {
+      Thread.sleep(latency.toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
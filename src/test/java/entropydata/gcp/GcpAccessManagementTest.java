@@ -5,7 +5,9 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
@@ -14,6 +16,7 @@ import com.google.cloud.bigquery.Acl;
 import com.google.cloud.bigquery.Acl.Role;
 import com.google.cloud.bigquery.Acl.User;
 import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQuery.DatasetOption;
 import com.google.cloud.bigquery.Dataset;
 import com.google.cloud.bigquery.DatasetId;
 import entropydata.sdk.EntropyDataClient;
@@ -30,8 +33,10 @@ import entropydata.sdk.client.model.DataContract;
 import entropydata.sdk.client.model.DataContractServersValue;
 import entropydata.sdk.client.model.DataUsageAgreementConsumer;
 import entropydata.sdk.client.model.Team;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -127,12 +132,12 @@ class GcpAccessManagementTest {
     var dataset = mock(Dataset.class);
     var builder = mock(Dataset.Builder.class);
     var updatedDataset = mock(Dataset.class);
-    when(bigQuery.getDataset(datasetId)).thenReturn(dataset);
+    when(bigQuery.getDataset(eq(datasetId), any(DatasetOption[].class))).thenReturn(dataset);
     when(dataset.getAcl()).thenReturn(acls);
     when(dataset.toBuilder()).thenReturn(builder);
     when(builder.setAcl(any())).thenReturn(builder);
     when(builder.build()).thenReturn(updatedDataset);
-    when(updatedDataset.update()).thenReturn(updatedDataset);
+    when(bigQuery.update(eq(updatedDataset), any(DatasetOption[].class))).thenReturn(updatedDataset);
     return dataset;
   }
 
@@ -157,7 +162,8 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery).getDataset(datasetId);
+      // only the access list is read
+      verify(bigQuery).getDataset(datasetId, GcpAccessManagement.ACL_FIELDS);
       verify(accessApi).addAccess(eq("access-1"), any(Access.class));
     }
 
@@ -173,7 +179,7 @@ class GcpAccessManagementTest {
       var datasetId = DatasetId.of("my-project", "my-dataset");
       var existingAcl = Acl.of(new User("sa@project.iam.gserviceaccount.com"), Role.READER);
       var dataset = mock(Dataset.class);
-      when(bigQuery.getDataset(datasetId)).thenReturn(dataset);
+      when(bigQuery.getDataset(eq(datasetId), any(DatasetOption[].class))).thenReturn(dataset);
       when(dataset.getAcl()).thenReturn(List.of(existingAcl));
 
       var event = new AccessActivatedEvent();
@@ -206,7 +212,7 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery).getDataset(datasetId);
+      verify(bigQuery).getDataset(eq(datasetId), any(DatasetOption[].class));
       verify(accessApi).addAccess(eq("access-1"), any(Access.class));
     }
 
@@ -226,7 +232,45 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery).getDataset(datasetId);
+      verify(bigQuery).getDataset(eq(datasetId), any(DatasetOption[].class));
+    }
+
+    @Test
+    void findsDatasetOfAccessWithoutChangingIt() {
+      var consumer = new DataUsageAgreementConsumer().dataProductId("consumer-dp");
+      when(accessApi.getAccess("access-1")).thenReturn(buildAccess("access-1", "provider-dp", "bq-output", consumer));
+      when(dataProductsApi.getDataProduct("provider-dp")).thenReturn(loadYaml("provider-dp-odps.yaml"));
+      when(dataContractsApi.getDataContract("my-contract")).thenReturn(loadDataContract("datacontract.yaml"));
+
+      assertThat(accessManagement.resolve("access-1").datasetId())
+          .isEqualTo(DatasetId.of("gcp-project", "gcp-dataset"));
+      verifyNoInteractions(bigQuery);
+      verify(accessApi, never()).addAccess(any(), any());
+    }
+
+    @Test
+    void handlesResolvedAccessWithoutResolvingItAgain() {
+      var consumer = new DataUsageAgreementConsumer().dataProductId("consumer-dp");
+      var access = buildAccess("access-1", "provider-dp", "bq-output", consumer);
+      when(accessApi.getAccess("access-1")).thenReturn(access);
+
+      when(dataProductsApi.getDataProduct("provider-dp")).thenReturn(loadYaml("provider-dp-odps.yaml"));
+      when(dataContractsApi.getDataContract("my-contract")).thenReturn(loadDataContract("datacontract.yaml"));
+      when(dataProductsApi.getDataProduct("consumer-dp")).thenReturn(loadYaml("consumer-dp-odps.yaml"));
+
+      var datasetId = DatasetId.of("gcp-project", "gcp-dataset");
+      mockDataset(datasetId, new ArrayList<>());
+
+      var resolved = accessManagement.resolve("access-1");
+      var event = new AccessActivatedEvent();
+      event.setId("access-1");
+      accessManagement.onAccessActivatedEvent(event, resolved);
+
+      // once to resolve it, once to tag the current version
+      verify(accessApi, times(2)).getAccess("access-1");
+      verify(dataProductsApi).getDataProduct("provider-dp");
+      verify(bigQuery).getDataset(eq(datasetId), any(DatasetOption[].class));
+      verify(accessApi).addAccess(eq("access-1"), any(Access.class));
     }
 
     @Test
@@ -246,7 +290,7 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery).getDataset(datasetId);
+      verify(bigQuery).getDataset(eq(datasetId), any(DatasetOption[].class));
     }
   }
 
@@ -274,7 +318,7 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessDeactivatedEvent(event);
 
-      verify(bigQuery).getDataset(datasetId);
+      verify(bigQuery).getDataset(eq(datasetId), any(DatasetOption[].class));
       var captor = ArgumentCaptor.forClass(Access.class);
       verify(accessApi).addAccess(eq("access-1"), captor.capture());
       assertThat(captor.getValue().getTags()).doesNotContain("permission-granted-on-gcp");
@@ -305,7 +349,7 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery).getDataset(datasetId);
+      verify(bigQuery).getDataset(eq(datasetId), any(DatasetOption[].class));
     }
 
     @Test
@@ -323,7 +367,7 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery).getDataset(datasetId);
+      verify(bigQuery).getDataset(eq(datasetId), any(DatasetOption[].class));
     }
 
     @Test
@@ -337,7 +381,7 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery, never()).getDataset(any(DatasetId.class));
+      verify(bigQuery, never()).getDataset(any(DatasetId.class), any(DatasetOption[].class));
     }
 
     @Test
@@ -353,7 +397,7 @@ class GcpAccessManagementTest {
       accessManagement.onAccessActivatedEvent(event);
 
       verify(dataProductsApi, never()).getDataProduct("unknown");
-      verify(bigQuery, never()).getDataset(any(DatasetId.class));
+      verify(bigQuery, never()).getDataset(any(DatasetId.class), any(DatasetOption[].class));
     }
   }
 
@@ -373,7 +417,7 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery, never()).getDataset(any(DatasetId.class));
+      verify(bigQuery, never()).getDataset(any(DatasetId.class), any(DatasetOption[].class));
     }
 
     @Test
@@ -388,7 +432,7 @@ class GcpAccessManagementTest {
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery, never()).getDataset(any(DatasetId.class));
+      verify(bigQuery, never()).getDataset(any(DatasetId.class), any(DatasetOption[].class));
     }
 
     @Test
@@ -401,13 +445,122 @@ class GcpAccessManagementTest {
       when(dataProductsApi.getDataProduct("consumer-dp")).thenReturn(loadYaml("consumer-dp-dps.yaml"));
 
       var datasetId = DatasetId.of("my-project", "my-dataset");
-      when(bigQuery.getDataset(datasetId)).thenReturn(null);
+      when(bigQuery.getDataset(eq(datasetId), any(DatasetOption[].class))).thenReturn(null);
+
+      var event = new AccessActivatedEvent();
+      event.setId("access-1");
+      accessManagement.onAccessActivatedEvent(event);
+
+      verify(bigQuery).getDataset(eq(datasetId), any(DatasetOption[].class));
+    }
+  }
+
+  @Nested
+  class Caching {
+
+    @Test
+    void fetchesDataProductsOnceWithinTtl() {
+      accessManagement.setCache(Duration.ofMinutes(1), 100);
+      var consumer = new DataUsageAgreementConsumer().dataProductId("consumer-dp");
+      when(accessApi.getAccess("access-1")).thenReturn(buildAccess("access-1", "provider-dp", "op-1", consumer));
+      when(accessApi.getAccess("access-2")).thenReturn(buildAccess("access-2", "provider-dp", "op-1", consumer));
+      when(dataProductsApi.getDataProduct("provider-dp")).thenReturn(loadYaml("provider-dp-dps.yaml"));
+      when(dataProductsApi.getDataProduct("consumer-dp")).thenReturn(loadYaml("consumer-dp-dps.yaml"));
+      mockDataset(DatasetId.of("my-project", "my-dataset"), new ArrayList<>());
+
+      for (var accessId : List.of("access-1", "access-2")) {
+        var event = new AccessActivatedEvent();
+        event.setId(accessId);
+        accessManagement.onAccessActivatedEvent(event);
+      }
+      verify(dataProductsApi, times(1)).getDataProduct("provider-dp");
+      verify(dataProductsApi, times(1)).getDataProduct("consumer-dp");
+
+      accessManagement.invalidateDataProduct("provider-dp");
+      var event = new AccessDeactivatedEvent();
+      event.setId("access-1");
+      accessManagement.onAccessDeactivatedEvent(event);
+
+      verify(dataProductsApi, times(2)).getDataProduct("provider-dp");
+      verify(dataProductsApi, times(1)).getDataProduct("consumer-dp");
+    }
+  }
+
+  @Nested
+  class AclBatching {
+
+    @Test
+    void grantsThroughBatchedAclUpdate() {
+      accessManagement.setAclBatching(Duration.ofMillis(10), 100);
+      var consumer = new DataUsageAgreementConsumer().dataProductId("consumer-dp");
+      when(accessApi.getAccess("access-1")).thenReturn(buildAccess("access-1", "provider-dp", "op-1", consumer));
+      when(dataProductsApi.getDataProduct("provider-dp")).thenReturn(loadYaml("provider-dp-dps.yaml"));
+      when(dataProductsApi.getDataProduct("consumer-dp")).thenReturn(loadYaml("consumer-dp-dps.yaml"));
+      var datasetId = DatasetId.of("my-project", "my-dataset");
+      var dataset = mockDataset(datasetId, new ArrayList<>());
+
+      var event = new AccessActivatedEvent();
+      event.setId("access-1");
+      accessManagement.onAccessActivatedEvent(event);
+
+      @SuppressWarnings("unchecked")
+      ArgumentCaptor<List<Acl>> captor = ArgumentCaptor.forClass(List.class);
+      verify(dataset.toBuilder()).setAcl(captor.capture());
+      assertThat(captor.getValue())
+          .containsExactly(Acl.of(new User("sa@project.iam.gserviceaccount.com"), Role.READER));
+      verify(accessApi).addAccess(eq("access-1"), any(Access.class));
+    }
+  }
+
+  @Nested
+  class Metrics {
+
+    @Test
+    void recordsEventsGrantsAndApiCalls() {
+      var meterRegistry = new SimpleMeterRegistry();
+      accessManagement.setMeterRegistry(meterRegistry);
+      var consumer = new DataUsageAgreementConsumer().dataProductId("consumer-dp");
+      when(accessApi.getAccess("access-1")).thenReturn(buildAccess("access-1", "provider-dp", "op-1", consumer));
+      when(accessApi.getAccess("access-2")).thenReturn(buildAccess("access-2", "provider-dp", "missing", consumer));
+      when(dataProductsApi.getDataProduct("provider-dp")).thenReturn(loadYaml("provider-dp-dps.yaml"));
+      when(dataProductsApi.getDataProduct("consumer-dp")).thenReturn(loadYaml("consumer-dp-dps.yaml"));
+      mockDataset(DatasetId.of("my-project", "my-dataset"), new ArrayList<>());
+
+      for (var accessId : List.of("access-1", "access-2")) {
+        var event = new AccessActivatedEvent();
+        event.setId(accessId);
+        accessManagement.onAccessActivatedEvent(event);
+      }
+
+      assertThat(meterRegistry.get("gcp.access.events").tags("type", "activated", "outcome", "success").timer()
+          .count()).isEqualTo(1);
+      assertThat(meterRegistry.get("gcp.access.events").tags("type", "activated", "outcome", "skipped").timer()
+          .count()).isEqualTo(1);
+      assertThat(meterRegistry.get("gcp.access.grants").counter().count()).isEqualTo(1);
+      assertThat(meterRegistry.get("entropydata.api.requests").tags("operation", "dataproducts.get").timer()
+          .count()).isEqualTo(3);
+    }
+
+    @Test
+    void recordsAclUpdatesAsBigQueryCalls() {
+      var meterRegistry = new SimpleMeterRegistry();
+      accessManagement = new GcpAccessManagement(client, ApiMetrics.metered(bigQuery, meterRegistry), "READER",
+          "gcpPrincipal", "gcpPrincipal");
+      accessManagement.setMeterRegistry(meterRegistry);
+      var consumer = new DataUsageAgreementConsumer().dataProductId("consumer-dp");
+      when(accessApi.getAccess("access-1")).thenReturn(buildAccess("access-1", "provider-dp", "op-1", consumer));
+      when(dataProductsApi.getDataProduct("provider-dp")).thenReturn(loadYaml("provider-dp-dps.yaml"));
+      when(dataProductsApi.getDataProduct("consumer-dp")).thenReturn(loadYaml("consumer-dp-dps.yaml"));
+      mockDataset(DatasetId.of("my-project", "my-dataset"), new ArrayList<>());
 
       var event = new AccessActivatedEvent();
       event.setId("access-1");
       accessManagement.onAccessActivatedEvent(event);
 
-      verify(bigQuery).getDataset(datasetId);
+      assertThat(meterRegistry.get(ApiMetrics.BIGQUERY_REQUESTS).tags("method", "getDataset", "outcome", "success")
+          .timer().count()).isEqualTo(1);
+      assertThat(meterRegistry.get(ApiMetrics.BIGQUERY_REQUESTS).tags("method", "update", "outcome", "success")
+          .timer().count()).isEqualTo(1);
     }
   }
 }
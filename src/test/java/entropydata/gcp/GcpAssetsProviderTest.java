@@ -4,27 +4,48 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.api.gax.paging.Page;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQuery.DatasetListOption;
+import com.google.cloud.bigquery.BigQuery.DatasetOption;
+import com.google.cloud.bigquery.BigQuery.TableListOption;
+import com.google.cloud.bigquery.BigQuery.TableOption;
 import com.google.cloud.bigquery.Dataset;
 import com.google.cloud.bigquery.DatasetId;
 import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
 import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.QueryJobConfiguration;
 import com.google.cloud.bigquery.Schema;
 import com.google.cloud.bigquery.StandardTableDefinition;
 import com.google.cloud.bigquery.Table;
 import com.google.cloud.bigquery.TableDefinition;
 import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.TableResult;
 import entropydata.sdk.EntropyDataAssetsProvider.AssetCallback;
 import entropydata.sdk.EntropyDataStateRepositoryInMemory;
 import entropydata.sdk.client.model.Asset;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 
 class GcpAssetsProviderTest {
@@ -43,12 +64,25 @@ class GcpAssetsProviderTest {
   }
 
   private static <T> Page<T> pageOf(List<T> items) {
+    return pageOf(items, null, null);
+  }
+
+  private static <T> Page<T> pageOf(List<T> items, String nextPageToken, Page<T> nextPage) {
     return new Page<T>() {
-      @Override public boolean hasNextPage() { return false; }
-      @Override public String getNextPageToken() { return null; }
-      @Override public Page<T> getNextPage() { return null; }
-      @Override public Iterable<T> iterateAll() { return items; }
+      @Override public boolean hasNextPage() { return nextPage != null; }
+      @Override public String getNextPageToken() { return nextPageToken; }
+      @Override public Page<T> getNextPage() { return nextPage; }
       @Override public Iterable<T> getValues() { return items; }
+
+      @Override
+      public Iterable<T> iterateAll() {
+        if (nextPage == null) {
+          return items;
+        }
+        var all = new ArrayList<>(items);
+        nextPage.iterateAll().forEach(all::add);
+        return all;
+      }
     };
   }
 
@@ -84,7 +118,7 @@ class GcpAssetsProviderTest {
     var dataset = mockDataset("test-project", "my_dataset", 1000L);
     when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
         .thenReturn(pageOf(List.of(dataset)));
-    when(bigQuery.getDataset(dataset.getDatasetId())).thenReturn(dataset);
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
 
     // Updated: Match signature listTables(DatasetId)
     when(bigQuery.listTables(eq(dataset.getDatasetId())))
@@ -105,7 +139,7 @@ class GcpAssetsProviderTest {
     var dataset = mockDataset("test-project", "my_dataset", 1000L);
     when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
         .thenReturn(pageOf(List.of(dataset)));
-    when(bigQuery.getDataset(dataset.getDatasetId())).thenReturn(dataset);
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
 
     var schema = Schema.of(
         Field.of("id", LegacySQLTypeName.INTEGER),
@@ -116,11 +150,14 @@ class GcpAssetsProviderTest {
     // Updated: Match signature listTables(DatasetId)
     when(bigQuery.listTables(eq(dataset.getDatasetId())))
         .thenReturn(pageOf(List.of(table)));
-    when(bigQuery.getTable(table.getTableId())).thenReturn(table);
+    when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
 
     provider.fetchAssets(callback);
 
     verify(callback, org.mockito.Mockito.times(2)).onAssetUpdated(any());
+    // nothing was synchronized before, so the table is read completely right away
+    verify(bigQuery).getTable(table.getTableId(), GcpAssetsProvider.TABLE_FIELDS);
+    verify(bigQuery, never()).getTable(table.getTableId(), GcpAssetsProvider.TABLE_CHANGE_FIELDS);
   }
 
   @Test
@@ -128,14 +165,14 @@ class GcpAssetsProviderTest {
     var dataset = mockDataset("test-project", "my_dataset", 1000L);
     when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
         .thenReturn(pageOf(List.of(dataset)));
-    when(bigQuery.getDataset(dataset.getDatasetId())).thenReturn(dataset);
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
 
     var table = mockTable("test-project", "my_dataset", "orders", 2000L, TableDefinition.Type.TABLE, null);
 
     // Updated: Match signature listTables(DatasetId)
     when(bigQuery.listTables(eq(dataset.getDatasetId())))
         .thenReturn(pageOf(List.of(table)));
-    when(bigQuery.getTable(table.getTableId())).thenReturn(table);
+    when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
 
     provider.fetchAssets(callback);
     verify(callback, org.mockito.Mockito.times(2)).onAssetUpdated(any());
@@ -153,8 +190,8 @@ class GcpAssetsProviderTest {
 
     when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
         .thenReturn(pageOf(List.of(dataset1, dataset2)));
-    when(bigQuery.getDataset(dataset1.getDatasetId())).thenReturn(dataset1);
-    when(bigQuery.getDataset(dataset2.getDatasetId())).thenReturn(dataset2);
+    when(bigQuery.getDataset(eq(dataset1.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset1);
+    when(bigQuery.getDataset(eq(dataset2.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset2);
 
     // Updated: Match signature listTables(DatasetId)
     when(bigQuery.listTables(eq(dataset1.getDatasetId())))
@@ -178,8 +215,8 @@ class GcpAssetsProviderTest {
         .thenReturn(pageOf(List.of(datasetA)));
     when(bigQuery.listDatasets(eq("project-b"), any(DatasetListOption.class)))
         .thenReturn(pageOf(List.of(datasetB)));
-    when(bigQuery.getDataset(datasetA.getDatasetId())).thenReturn(datasetA);
-    when(bigQuery.getDataset(datasetB.getDatasetId())).thenReturn(datasetB);
+    when(bigQuery.getDataset(eq(datasetA.getDatasetId()), any(DatasetOption[].class))).thenReturn(datasetA);
+    when(bigQuery.getDataset(eq(datasetB.getDatasetId()), any(DatasetOption[].class))).thenReturn(datasetB);
 
     // Updated: Match signature listTables(any(DatasetId.class))
     when(bigQuery.listTables(any(DatasetId.class)))
@@ -189,4 +226,622 @@ class GcpAssetsProviderTest {
 
     verify(callback, org.mockito.Mockito.times(2)).onAssetUpdated(any());
   }
+
+  @Test
+  void crawlsDatasetsConcurrently() {
+    var running = new AtomicInteger();
+    var peak = new AtomicInteger();
+    // a read waits until another read overlaps it, so that the peak does not depend on the timing of the threads
+    var overlap = new AtomicReference<CountDownLatch>();
+    var datasets = new ArrayList<Dataset>();
+    for (int i = 0; i < 16; i++) {
+      var dataset = mockDataset("test-project", "ds_" + i, 1000L);
+      datasets.add(dataset);
+      when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenAnswer(invocation -> {
+        peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+          var latch = overlap.get();
+          latch.countDown();
+          latch.await(5, TimeUnit.SECONDS);
+          return dataset;
+        } finally {
+          running.decrementAndGet();
+        }
+      });
+    }
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(datasets));
+    when(bigQuery.listTables(any(DatasetId.class)))
+        .thenReturn(pageOf(List.of()));
+
+    overlap.set(new CountDownLatch(0));
+    fetchAssets(1);
+    assertThat(peak).hasValue(1);
+
+    overlap.set(new CountDownLatch(2));
+    fetchAssets(8);
+    assertThat(peak.get()).isBetween(2, 8);
+  }
+
+  private void fetchAssets(int parallelism) {
+    var parallelProvider = new GcpAssetsProvider(bigQuery, List.of("test-project"),
+        new EntropyDataStateRepositoryInMemory("test-connector"));
+    parallelProvider.setParallelism(parallelism);
+    var parallelCallback = mock(AssetCallback.class);
+
+    parallelProvider.fetchAssets(parallelCallback);
+
+    verify(parallelCallback, org.mockito.Mockito.times(16)).onAssetUpdated(any());
+  }
+
+  @Test
+  void prefilterFetchesOnlyChangedTables() throws Exception {
+    var dataset = mockDataset("test-project", "my_dataset", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+
+    var changed = mockTable("test-project", "my_dataset", "changed", 3000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.getTable(eq(changed.getTableId()), any(TableOption[].class))).thenReturn(changed);
+
+    var schema = FieldList.of(Field.of("dataset_id", LegacySQLTypeName.STRING),
+        Field.of("table_id", LegacySQLTypeName.STRING), Field.of("last_modified_time", LegacySQLTypeName.INTEGER));
+    var rows = List.of(
+        FieldValueList.of(List.of(FieldValue.of(FieldValue.Attribute.PRIMITIVE, "my_dataset"),
+            FieldValue.of(FieldValue.Attribute.PRIMITIVE, "unchanged"),
+            FieldValue.of(FieldValue.Attribute.PRIMITIVE, "500")), schema),
+        FieldValueList.of(List.of(FieldValue.of(FieldValue.Attribute.PRIMITIVE, "my_dataset"),
+            FieldValue.of(FieldValue.Attribute.PRIMITIVE, "changed"),
+            FieldValue.of(FieldValue.Attribute.PRIMITIVE, "3000")), schema));
+    var result = mock(TableResult.class);
+    when(result.iterateAll()).thenReturn(rows);
+    when(bigQuery.query(any(QueryJobConfiguration.class))).thenReturn(result);
+
+    stateRepository.saveState(Map.of("lastUpdatedAt", 1000L));
+    provider.setPrefilter(true);
+    provider.fetchAssets(callback);
+
+    verify(callback, org.mockito.Mockito.times(2)).onAssetUpdated(any());
+    verify(bigQuery).getTable(eq(changed.getTableId()), any(TableOption[].class));
+    verify(bigQuery, never()).getTable(eq(TableId.of("test-project", "my_dataset", "unchanged")),
+        any(TableOption[].class));
+    verify(bigQuery, never()).listTables(any(DatasetId.class));
+  }
+
+  @Test
+  void fetchesSchemaOnlyOfModifiedTables() {
+    var dataset = mockDataset("test-project", "my_dataset", 500L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+    var changed = mockTable("test-project", "my_dataset", "changed", 3000L, TableDefinition.Type.TABLE, null);
+    var unchanged = mockTable("test-project", "my_dataset", "unchanged", 500L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(dataset.getDatasetId()))).thenReturn(pageOf(List.of(changed, unchanged)));
+    for (var table : List.of(changed, unchanged)) {
+      when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+    }
+
+    stateRepository.saveState(Map.of("lastUpdatedAt", 1000L));
+    provider.fetchAssets(callback);
+
+    verify(callback).onAssetUpdated(any());
+    verify(bigQuery).getDataset(dataset.getDatasetId(), GcpAssetsProvider.DATASET_FIELDS);
+    verify(bigQuery).getTable(changed.getTableId(), GcpAssetsProvider.TABLE_CHANGE_FIELDS);
+    verify(bigQuery).getTable(changed.getTableId(), GcpAssetsProvider.TABLE_FIELDS);
+    verify(bigQuery).getTable(unchanged.getTableId(), GcpAssetsProvider.TABLE_CHANGE_FIELDS);
+    verify(bigQuery, never()).getTable(unchanged.getTableId(), GcpAssetsProvider.TABLE_FIELDS);
+  }
+
+  @Test
+  void failedDatasetKeepsItsWatermark() {
+    var failing = mockDataset("test-project", "failing", 1000L);
+    var healthy = mockDataset("test-project", "healthy", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(failing, healthy)));
+    when(bigQuery.getDataset(eq(failing.getDatasetId()), any(DatasetOption[].class))).thenReturn(failing);
+    when(bigQuery.getDataset(eq(healthy.getDatasetId()), any(DatasetOption[].class))).thenReturn(healthy);
+
+    var failingTable = mockTable("test-project", "failing", "events", 2000L, TableDefinition.Type.TABLE, null);
+    var healthyTable = mockTable("test-project", "healthy", "orders", 2000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(failing.getDatasetId())))
+        .thenThrow(new com.google.cloud.bigquery.BigQueryException(503, "Backend error"))
+        .thenReturn(pageOf(List.of(failingTable)));
+    when(bigQuery.listTables(eq(healthy.getDatasetId())))
+        .thenReturn(pageOf(List.of(healthyTable)));
+    when(bigQuery.getTable(eq(failingTable.getTableId()), any(TableOption[].class))).thenReturn(failingTable);
+    when(bigQuery.getTable(eq(healthyTable.getTableId()), any(TableOption[].class))).thenReturn(healthyTable);
+
+    provider.fetchAssets(callback);
+
+    var callback2 = mock(AssetCallback.class);
+    provider.fetchAssets(callback2);
+
+    var captor = ArgumentCaptor.forClass(Asset.class);
+    verify(callback2, org.mockito.Mockito.times(2)).onAssetUpdated(captor.capture());
+    assertThat(captor.getAllValues()).extracting(Asset::getId)
+        .containsExactlyInAnyOrder("test-project:failing", "test-project:failing.events");
+  }
+
+  @Test
+  void resumesInterruptedRunAfterCursor() {
+    var done = mockDataset("test-project", "a_done", 1000L);
+    var pending = mockDataset("test-project", "b_pending", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(pending, done)));
+    when(bigQuery.getDataset(eq(done.getDatasetId()), any(DatasetOption[].class))).thenReturn(done);
+    when(bigQuery.getDataset(eq(pending.getDatasetId()), any(DatasetOption[].class))).thenReturn(pending);
+    when(bigQuery.listTables(any(DatasetId.class)))
+        .thenReturn(pageOf(List.of()));
+
+    stateRepository.saveState(Map.of("lastUpdatedAt", 0L,
+        "run", Map.of("startedAt", 1_000_000L, "cursor", Map.of("test-project", "a_done"))));
+    provider.fetchAssets(callback);
+
+    verify(bigQuery, never()).getDataset(eq(done.getDatasetId()), any(DatasetOption[].class));
+    var captor = ArgumentCaptor.forClass(Asset.class);
+    verify(callback).onAssetUpdated(captor.capture());
+    assertThat(captor.getValue().getId()).isEqualTo("test-project:b_pending");
+    assertThat(stateRepository.getState())
+        .doesNotContainKey("run")
+        .containsEntry("lastUpdatedAt", 1_000_000L - AssetsSyncState.CLOCK_SKEW_MARGIN_MILLIS);
+  }
+
+  @Test
+  void suspendsRunWhenBudgetIsSpentAndContinuesFromPageToken() {
+    var dataset = mockDataset("test-project", "big", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+
+    var first = mockTable("test-project", "big", "first", 2000L, TableDefinition.Type.TABLE, null);
+    var second = mockTable("test-project", "big", "second", 2000L, TableDefinition.Type.TABLE, null);
+    var secondPage = pageOf(List.of(second));
+    when(bigQuery.listTables(eq(dataset.getDatasetId())))
+        .thenReturn(pageOf(List.of(first), "page-2", secondPage))
+        .thenReturn(pageOf(List.of(first)));
+    when(bigQuery.listTables(eq(dataset.getDatasetId()), eq(TableListOption.pageToken("page-2"))))
+        .thenReturn(secondPage);
+    when(bigQuery.getTable(eq(first.getTableId()), any(TableOption[].class))).thenReturn(first);
+    when(bigQuery.getTable(eq(second.getTableId()), any(TableOption[].class))).thenReturn(second);
+
+    // listing the datasets, reading the dataset and listing the first page of tables
+    provider.setRunBudget(Duration.ZERO, 3);
+    provider.setDetectDeletions(true);
+    provider.fetchAssets(callback);
+
+    var captor = ArgumentCaptor.forClass(Asset.class);
+    verify(callback, org.mockito.Mockito.times(2)).onAssetUpdated(captor.capture());
+    assertThat(captor.getAllValues()).extracting(Asset::getId)
+        .containsExactlyInAnyOrder("test-project:big", "test-project:big.first");
+    assertThat(stateRepository.getState()).containsKey("run");
+
+    var callback2 = mock(AssetCallback.class);
+    provider.fetchAssets(callback2);
+
+    var captor2 = ArgumentCaptor.forClass(Asset.class);
+    verify(callback2).onAssetUpdated(captor2.capture());
+    assertThat(captor2.getValue().getId()).isEqualTo("test-project:big.second");
+    verify(bigQuery, org.mockito.Mockito.times(1)).getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class));
+    assertThat(stateRepository.getState()).doesNotContainKey("run");
+
+    // the assets seen by the suspended run count as seen by the run that completed it
+    var callback3 = mock(AssetCallback.class);
+    provider.setRunBudget(Duration.ZERO, 0);
+    provider.fetchAssets(callback3);
+
+    verify(callback3).onAssetDeleted("test-project:big.second");
+    verify(callback3, org.mockito.Mockito.times(1)).onAssetDeleted(any());
+  }
+
+  @Test
+  void checkpointsProgressDuringRun() {
+    var datasetA = mockDataset("test-project", "ds_a", 1000L);
+    var datasetB = mockDataset("test-project", "ds_b", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(datasetA, datasetB)));
+    when(bigQuery.getDataset(eq(datasetA.getDatasetId()), any(DatasetOption[].class))).thenReturn(datasetA);
+    when(bigQuery.getDataset(eq(datasetB.getDatasetId()), any(DatasetOption[].class))).thenReturn(datasetB);
+    when(bigQuery.listTables(any(DatasetId.class)))
+        .thenReturn(pageOf(List.of()));
+
+    var recordingRepository = spy(new EntropyDataStateRepositoryInMemory("test-connector"));
+    var checkpointingProvider = new GcpAssetsProvider(bigQuery, List.of("test-project"), recordingRepository);
+    checkpointingProvider.setCheckpointInterval(1);
+    checkpointingProvider.fetchAssets(callback);
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(recordingRepository, org.mockito.Mockito.times(3)).saveState(captor.capture());
+    var savedStates = captor.getAllValues();
+    assertThat(savedStates.get(0)).containsKey("run");
+    assertThat(savedStates.get(2)).doesNotContainKey("run");
+  }
+
+  @Test
+  void suppressesUnchangedAssetsWhenEnabled() {
+    var dataset = mockDataset("test-project", "my_dataset", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+
+    var table = mockTable("test-project", "my_dataset", "events", 2000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(dataset.getDatasetId())))
+        .thenReturn(pageOf(List.of(table)));
+    when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+
+    provider.setSuppressUnchanged(true);
+    provider.fetchAssets(callback);
+    verify(callback, org.mockito.Mockito.times(2)).onAssetUpdated(any());
+
+    // a streaming insert bumps the modification time, but not the content
+    when(table.getLastModifiedTime()).thenReturn(System.currentTimeMillis());
+    var callback2 = mock(AssetCallback.class);
+    provider.fetchAssets(callback2);
+
+    verify(callback2, never()).onAssetUpdated(any());
+  }
+
+  @Test
+  void reportsTablesMissingSincePreviousRunAsDeleted() {
+    var dataset = mockDataset("test-project", "my_dataset", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+
+    var kept = mockTable("test-project", "my_dataset", "kept", 2000L, TableDefinition.Type.TABLE, null);
+    var dropped = mockTable("test-project", "my_dataset", "dropped", 2000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(dataset.getDatasetId())))
+        .thenReturn(pageOf(List.of(kept, dropped)))
+        .thenReturn(pageOf(List.of(kept)));
+    when(bigQuery.getTable(eq(kept.getTableId()), any(TableOption[].class))).thenReturn(kept);
+    when(bigQuery.getTable(eq(dropped.getTableId()), any(TableOption[].class))).thenReturn(dropped);
+
+    provider.setDetectDeletions(true);
+    provider.fetchAssets(callback);
+    verify(callback, never()).onAssetDeleted(any());
+
+    var callback2 = mock(AssetCallback.class);
+    provider.fetchAssets(callback2);
+
+    verify(callback2).onAssetDeleted("test-project:my_dataset.dropped");
+    verify(callback2, org.mockito.Mockito.times(1)).onAssetDeleted(any());
+  }
+
+  @Test
+  void reportsDatasetDeletedAfterListingAsDeleted() {
+    var dataset = mockDataset("test-project", "my_dataset", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class)))
+        .thenReturn(dataset)
+        .thenReturn(null);
+
+    var table = mockTable("test-project", "my_dataset", "events", 2000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(dataset.getDatasetId())))
+        .thenReturn(pageOf(List.of(table)));
+    when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+
+    provider.setDetectDeletions(true);
+    provider.fetchAssets(callback);
+
+    // the dataset is still listed, but deleted before it is read
+    var callback2 = mock(AssetCallback.class);
+    provider.fetchAssets(callback2);
+
+    verify(callback2, never()).onAssetUpdated(any());
+    verify(callback2).onAssetDeleted("test-project:my_dataset");
+    verify(callback2).onAssetDeleted("test-project:my_dataset.events");
+  }
+
+  @Test
+  void keepsAssetsOfFailedDatasetsWhenDetectingDeletions() {
+    var dataset = mockDataset("test-project", "my_dataset", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+
+    var table = mockTable("test-project", "my_dataset", "events", 2000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(dataset.getDatasetId())))
+        .thenReturn(pageOf(List.of(table)))
+        .thenThrow(new com.google.cloud.bigquery.BigQueryException(503, "Backend error"))
+        .thenReturn(pageOf(List.of()));
+    when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+
+    provider.setDetectDeletions(true);
+    provider.fetchAssets(callback);
+
+    var callback2 = mock(AssetCallback.class);
+    provider.fetchAssets(callback2);
+    verify(callback2, never()).onAssetDeleted(any());
+
+    var callback3 = mock(AssetCallback.class);
+    provider.fetchAssets(callback3);
+    verify(callback3).onAssetDeleted("test-project:my_dataset.events");
+  }
+
+  @Test
+  void extractsDatasetKeyFromAssetId() {
+    assertThat(GcpAssetsProvider.datasetKey("test-project:sales")).isEqualTo("test-project:sales");
+    assertThat(GcpAssetsProvider.datasetKey("test-project:sales.orders")).isEqualTo("test-project:sales");
+    assertThat(GcpAssetsProvider.datasetKey("example.com:project:sales.orders")).isEqualTo("example.com:project:sales");
+  }
+
+  @Test
+  void slowUploadsDoNotStallCrawling() throws Exception {
+    var datasets = new ArrayList<Dataset>();
+    for (int i = 0; i < 4; i++) {
+      var dataset = mockDataset("test-project", "ds_" + i, 1000L);
+      datasets.add(dataset);
+      when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+      var tables = new ArrayList<Table>();
+      for (int j = 0; j < 5; j++) {
+        var table = mockTable("test-project", "ds_" + i, "t_" + j, 2000L, TableDefinition.Type.TABLE, null);
+        when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+        tables.add(table);
+      }
+      when(bigQuery.listTables(eq(dataset.getDatasetId()))).thenReturn(pageOf(tables));
+    }
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(datasets));
+
+    var firstUploadStarted = new CountDownLatch(1);
+    var releaseUploads = new CountDownLatch(1);
+    org.mockito.Mockito.doAnswer(invocation -> {
+      firstUploadStarted.countDown();
+      releaseUploads.await();
+      return null;
+    }).when(callback).onAssetUpdated(any());
+
+    provider.setParallelism(2);
+    provider.setQueueCapacity(2);
+    var run = CompletableFuture.runAsync(() -> provider.fetchAssets(callback));
+
+    firstUploadStarted.await();
+    // while the upload is blocked, the fetch stage keeps going until the bounded queues are full
+    Thread.sleep(200);
+    verify(bigQuery, org.mockito.Mockito.atLeast(2)).getTable(any(TableId.class), any(TableOption[].class));
+    releaseUploads.countDown();
+    run.get(10, TimeUnit.SECONDS);
+
+    verify(callback, org.mockito.Mockito.times(24)).onAssetUpdated(any());
+  }
+
+  @Test
+  void failedUploadMarksDatasetAsFailed() {
+    var dataset = mockDataset("test-project", "my_dataset", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+    var table = mockTable("test-project", "my_dataset", "events", 2000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(dataset.getDatasetId()))).thenReturn(pageOf(List.of(table)));
+    when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+
+    org.mockito.Mockito.doThrow(new IllegalStateException("503 Service Unavailable"))
+        .when(callback).onAssetUpdated(org.mockito.ArgumentMatchers.argThat(
+            asset -> asset.getId().equals("test-project:my_dataset.events")));
+    provider.fetchAssets(callback);
+
+    var callback2 = mock(AssetCallback.class);
+    provider.fetchAssets(callback2);
+
+    var captor = ArgumentCaptor.forClass(Asset.class);
+    verify(callback2, org.mockito.Mockito.times(2)).onAssetUpdated(captor.capture());
+    assertThat(captor.getAllValues()).extracting(Asset::getId)
+        .containsExactlyInAnyOrder("test-project:my_dataset", "test-project:my_dataset.events");
+  }
+
+  @Test
+  void collapsesShardedTablesIntoOneAsset() {
+    var dataset = mockDataset("test-project", "analytics", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+
+    var tables = new ArrayList<Table>();
+    for (var tableName : List.of("events_20240101", "events_20240102", "events_20240103", "users")) {
+      var table = mockTable("test-project", "analytics", tableName, 2000L, TableDefinition.Type.TABLE, null);
+      when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+      tables.add(table);
+    }
+    when(bigQuery.listTables(eq(dataset.getDatasetId()))).thenReturn(pageOf(tables));
+
+    provider.setCollapseShards(true);
+    provider.fetchAssets(callback);
+
+    var captor = ArgumentCaptor.forClass(Asset.class);
+    verify(callback, org.mockito.Mockito.times(3)).onAssetUpdated(captor.capture());
+    assertThat(captor.getAllValues()).extracting(Asset::getId).containsExactlyInAnyOrder(
+        "test-project:analytics", "test-project:analytics.events_*", "test-project:analytics.users");
+    verify(bigQuery).getTable(eq(TableId.of("test-project", "analytics", "events_20240103")), any(TableOption[].class));
+    verify(bigQuery, never()).getTable(eq(TableId.of("test-project", "analytics", "events_20240101")),
+        any(TableOption[].class));
+    verify(bigQuery, never()).getTable(eq(TableId.of("test-project", "analytics", "events_20240102")),
+        any(TableOption[].class));
+  }
+
+  @Test
+  void updatesShardGroupWhenAnOlderShardWasModified() {
+    var dataset = mockDataset("test-project", "analytics", 500L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+
+    // the listing does not include modification times, like tables.list
+    var listedTables = new ArrayList<Table>();
+    for (var tableName : List.of("events_20240101", "events_20240102", "events_20240103", "users")) {
+      var table = mockTable("test-project", "analytics", tableName, tableName.equals("events_20240101") ? 3000L : 500L,
+          TableDefinition.Type.TABLE, null);
+      when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+      var listedTable = mock(Table.class);
+      when(listedTable.getTableId()).thenReturn(table.getTableId());
+      listedTables.add(listedTable);
+    }
+    when(bigQuery.listTables(eq(dataset.getDatasetId()))).thenReturn(pageOf(listedTables));
+
+    stateRepository.saveState(Map.of("lastUpdatedAt", 1000L));
+    provider.setCollapseShards(true);
+    provider.fetchAssets(callback);
+
+    var captor = ArgumentCaptor.forClass(Asset.class);
+    verify(callback).onAssetUpdated(captor.capture());
+    assertThat(captor.getValue().getId()).isEqualTo("test-project:analytics.events_*");
+    for (var tableName : List.of("events_20240101", "events_20240102", "events_20240103")) {
+      verify(bigQuery).getTable(TableId.of("test-project", "analytics", tableName),
+          GcpAssetsProvider.TABLE_CHANGE_FIELDS);
+    }
+    verify(bigQuery).getTable(TableId.of("test-project", "analytics", "events_20240103"),
+        GcpAssetsProvider.TABLE_FIELDS);
+  }
+
+  @Test
+  void skipsExcludedDatasetsAndTables() {
+    var sales = mockDataset("test-project", "sales", 1000L);
+    var scratch = mockDataset("test-project", "tmp_scratch", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(sales, scratch)));
+    when(bigQuery.getDataset(eq(sales.getDatasetId()), any(DatasetOption[].class))).thenReturn(sales);
+
+    var orders = mockTable("test-project", "sales", "orders", 2000L, TableDefinition.Type.TABLE, null);
+    var backup = mockTable("test-project", "sales", "orders_backup", 2000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(sales.getDatasetId()))).thenReturn(pageOf(List.of(orders, backup)));
+    when(bigQuery.getTable(eq(orders.getTableId()), any(TableOption[].class))).thenReturn(orders);
+
+    provider.setFilter(new AssetFilter(List.of("*"), List.of("tmp_*"), List.of("*"), List.of("*_backup"),
+        List.of("env:prod")));
+    provider.fetchAssets(callback);
+
+    var captor = ArgumentCaptor.forClass(Asset.class);
+    verify(callback, org.mockito.Mockito.times(2)).onAssetUpdated(captor.capture());
+    assertThat(captor.getAllValues()).extracting(Asset::getId)
+        .containsExactlyInAnyOrder("test-project:sales", "test-project:sales.orders");
+    verify(bigQuery, never()).getDataset(eq(scratch.getDatasetId()), any(DatasetOption[].class));
+    verify(bigQuery, never()).getTable(eq(backup.getTableId()), any(TableOption[].class));
+    verify(bigQuery).listDatasets("test-project", DatasetListOption.all(),
+        DatasetListOption.labelFilter("labels.env:prod"));
+  }
+
+  @Test
+  void replicasSplitDatasetsBetweenThem(@TempDir Path leaseDirectory) throws Exception {
+    var datasets = new ArrayList<Dataset>();
+    for (int i = 0; i < 20; i++) {
+      var dataset = mockDataset("test-project", "dataset_" + i, 1000L);
+      datasets.add(dataset);
+      when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+      when(bigQuery.listTables(eq(dataset.getDatasetId()))).thenReturn(pageOf(List.of()));
+    }
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class))).thenReturn(pageOf(datasets));
+
+    try (var replicaA = new ReplicaMembership(leaseDirectory, "replica-a", Duration.ofMinutes(1), 128);
+         var replicaB = new ReplicaMembership(leaseDirectory, "replica-b", Duration.ofMinutes(1), 128)) {
+      replicaA.start();
+      replicaB.start();
+      var providerB = new GcpAssetsProvider(bigQuery, List.of("test-project"),
+          new EntropyDataStateRepositoryInMemory("test-connector-b"));
+      provider.setReplicaMembership(replicaA);
+      providerB.setReplicaMembership(replicaB);
+      var callbackB = mock(AssetCallback.class);
+
+      provider.fetchAssets(callback);
+      providerB.fetchAssets(callbackB);
+
+      var captorA = ArgumentCaptor.forClass(Asset.class);
+      verify(callback, org.mockito.Mockito.atLeastOnce()).onAssetUpdated(captorA.capture());
+      var captorB = ArgumentCaptor.forClass(Asset.class);
+      verify(callbackB, org.mockito.Mockito.atLeastOnce()).onAssetUpdated(captorB.capture());
+      var idsA = captorA.getAllValues().stream().map(Asset::getId).toList();
+      var idsB = captorB.getAllValues().stream().map(Asset::getId).toList();
+      assertThat(idsA).doesNotContainAnyElementsOf(idsB);
+      assertThat(idsA.size() + idsB.size()).isEqualTo(20);
+    }
+  }
+
+  @Test
+  void skipsRunsWithinPollInterval() {
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class))).thenReturn(pageOf(List.of()));
+
+    provider.setPollInterval(Duration.ofMinutes(1));
+    provider.fetchAssets(callback);
+    provider.fetchAssets(callback);
+
+    verify(bigQuery, org.mockito.Mockito.times(1)).listDatasets(eq("test-project"), any(DatasetListOption.class));
+  }
+
+  @Test
+  void defersDatasetsThatAreNotDue() {
+    // modified just now, as reported by a BigQuery clock slightly ahead of the local one
+    var hot = mockDataset("test-project", "hot", System.currentTimeMillis() + 60_000);
+    var cold = mockDataset("test-project", "cold", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(hot, cold)));
+    for (var dataset : List.of(hot, cold)) {
+      when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+    }
+    var table = mockTable("test-project", "cold", "archive", 1000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(hot.getDatasetId()))).thenReturn(pageOf(List.of()));
+    when(bigQuery.listTables(eq(cold.getDatasetId()))).thenReturn(pageOf(List.of(table)));
+    when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+
+    provider.setDetectDeletions(true);
+    provider.setPollSchedule(new DatasetPollSchedule(Duration.ZERO, Duration.ofHours(1), 0));
+    provider.fetchAssets(callback);
+
+    var callback2 = mock(AssetCallback.class);
+    provider.fetchAssets(callback2);
+
+    verify(bigQuery, org.mockito.Mockito.times(2)).getDataset(eq(hot.getDatasetId()), any(DatasetOption[].class));
+    verify(bigQuery, org.mockito.Mockito.times(1)).getDataset(eq(cold.getDatasetId()), any(DatasetOption[].class));
+    verify(callback2, never()).onAssetDeleted(any());
+    assertThat(stateRepository.getState().get("datasetWatermarks"))
+        .asInstanceOf(org.assertj.core.api.InstanceOfAssertFactories.MAP)
+        .containsKey("test-project:cold");
+  }
+
+  @Test
+  void dropsDatasetsNoLongerListedFromThePollSchedule() {
+    var kept = mockDataset("test-project", "kept", 1000L);
+    var deleted = mockDataset("test-project", "deleted", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class)))
+        .thenReturn(pageOf(List.of(kept, deleted)))
+        .thenReturn(pageOf(List.of(kept)));
+    for (var dataset : List.of(kept, deleted)) {
+      when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+    }
+    when(bigQuery.listTables(any(DatasetId.class))).thenReturn(pageOf(List.of()));
+
+    var schedule = new DatasetPollSchedule(Duration.ZERO, Duration.ofHours(1), 0);
+    provider.setPollSchedule(schedule);
+    provider.fetchAssets(callback);
+    long now = System.currentTimeMillis();
+    assertThat(schedule.isDue("test-project:deleted", now)).isFalse();
+
+    provider.fetchAssets(mock(AssetCallback.class));
+
+    // deferred datasets are listed, so they keep their schedule, while unknown datasets are due
+    assertThat(schedule.isDue("test-project:kept", now)).isFalse();
+    assertThat(schedule.isDue("test-project:deleted", now)).isTrue();
+  }
+
+  @Test
+  void recordsSyncMetrics() {
+    var meterRegistry = new SimpleMeterRegistry();
+    var dataset = mockDataset("test-project", "my_dataset", 1000L);
+    when(bigQuery.listDatasets(eq("test-project"), any(DatasetListOption.class))).thenReturn(pageOf(List.of(dataset)));
+    when(bigQuery.getDataset(eq(dataset.getDatasetId()), any(DatasetOption[].class))).thenReturn(dataset);
+    var table = mockTable("test-project", "my_dataset", "events", 2000L, TableDefinition.Type.TABLE, null);
+    when(bigQuery.listTables(eq(dataset.getDatasetId()))).thenReturn(pageOf(List.of(table)));
+    when(bigQuery.getTable(eq(table.getTableId()), any(TableOption[].class))).thenReturn(table);
+
+    provider.setMeterRegistry(meterRegistry);
+    provider.fetchAssets(callback);
+
+    assertThat(meterRegistry.get("gcp.assets.scanned").tag("type", "dataset").counter().count()).isEqualTo(1);
+    assertThat(meterRegistry.get("gcp.assets.scanned").tag("type", "table").counter().count()).isEqualTo(1);
+    assertThat(meterRegistry.get("gcp.assets.emitted").tag("operation", "update").counter().count()).isEqualTo(2);
+    assertThat(meterRegistry.get("entropydata.api.requests").tag("operation", "assets.update").timer().count())
+        .isEqualTo(2);
+    assertThat(meterRegistry.get("gcp.assets.sync.projects").tag("project", "test-project").timer().count())
+        .isEqualTo(1);
+    assertThat(meterRegistry.get("gcp.assets.sync.runs").timer().count()).isEqualTo(1);
+    assertThat(meterRegistry.get("gcp.assets.sync.lag").timeGauge().value(TimeUnit.SECONDS)).isLessThan(60);
+  }
 }
@@ -0,0 +1,151 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQuery.DatasetOption;
+import com.google.cloud.bigquery.BigQuery.TableOption;
+import com.google.cloud.bigquery.Dataset;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.TableResult;
+import entropydata.sdk.client.model.Asset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class InformationSchemaHarvesterTest {
+
+  private BigQuery bigQuery;
+  private InformationSchemaHarvester harvester;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    bigQuery = mock(BigQuery.class);
+    harvester = new InformationSchemaHarvester(bigQuery);
+
+    var schemata = result(List.of("schema_name", "last_modified_time", "friendly_name", "description"),
+        row("sales", "1.0", null, "\"Sales \\\"raw\\\" data\""),
+        row("scratch", "1.0", null, null));
+    var metaTables = result(List.of("dataset_id", "table_id", "last_modified_time"),
+        row("sales", "orders", "2000"),
+        row("sales", "customers", "500"));
+    var tables = result(List.of("table_schema", "table_name", "table_type", "friendly_name", "description"),
+        row("sales", "orders", "BASE TABLE", "\"Orders\"", null),
+        row("sales", "customers", "VIEW", null, null));
+    var columns = result(List.of("table_schema", "table_name", "column_name", "data_type", "description"),
+        row("sales", "customers", "id", "INT64", null),
+        row("sales", "orders", "id", "INT64", null),
+        row("sales", "orders", "items", "ARRAY<STRUCT<sku STRING, qty INT64>>", "Line items"),
+        row("sales", "orders", "amount", "NUMERIC(10, 2)", null));
+
+    when(bigQuery.query(any(QueryJobConfiguration.class))).thenAnswer(invocation -> {
+      String sql = invocation.getArgument(0, QueryJobConfiguration.class).getQuery();
+      if (sql.contains("__TABLES__")) {
+        return metaTables;
+      } else if (sql.contains("SCHEMATA")) {
+        return schemata;
+      } else if (sql.contains("COLUMNS")) {
+        return columns;
+      }
+      return tables;
+    });
+  }
+
+  private static List<String> row(String... values) {
+    return Arrays.asList(values);
+  }
+
+  @SafeVarargs
+  private static TableResult result(List<String> columnNames, List<String>... rows) {
+    var schema = FieldList.of(columnNames.stream().map(name -> Field.of(name, LegacySQLTypeName.STRING)).toList());
+    var values = new ArrayList<FieldValueList>();
+    for (var row : rows) {
+      values.add(FieldValueList.of(
+          row.stream().map(value -> FieldValue.of(FieldValue.Attribute.PRIMITIVE, value)).toList(), schema));
+    }
+    var result = mock(TableResult.class);
+    when(result.iterateAll()).thenReturn(values);
+    return result;
+  }
+
+  private static Dataset listedDataset(String projectId, String datasetName, String location) {
+    var dataset = mock(Dataset.class);
+    when(dataset.getDatasetId()).thenReturn(DatasetId.of(projectId, datasetName));
+    when(dataset.getLocation()).thenReturn(location);
+    return dataset;
+  }
+
+  @Test
+  void buildsAssetsFromInformationSchemaRows() {
+    var assets = new ArrayList<Asset>();
+
+    var failedDatasets = harvester.harvest("test-project", List.of(listedDataset("test-project", "sales", "EU")),
+        Map.of("sales", 1000L), assets::add, assetId -> { });
+
+    assertThat(failedDatasets).isEmpty();
+    assertThat(assets).extracting(Asset::getId).containsExactly("test-project:sales", "test-project:sales.orders");
+
+    var dataset = assets.get(0);
+    assertThat(dataset.getInfo().getType()).isEqualTo("dataset");
+    assertThat(dataset.getInfo().getName()).isEqualTo("sales");
+    assertThat(dataset.getInfo().getDescription()).isEqualTo("Sales \"raw\" data");
+
+    var table = assets.get(1);
+    assertThat(table.getInfo().getName()).isEqualTo("Orders");
+    assertThat(table.getInfo().getType()).isEqualTo("TABLE");
+    assertThat(table.getInfo().getQualifiedName()).isEqualTo("test-project:sales.orders");
+    assertThat(table.getColumns()).extracting("name").containsExactly("id", "items", "amount");
+    assertThat(table.getColumns()).extracting("type").containsExactly("INTEGER", "RECORD", "NUMERIC");
+    assertThat(table.getColumns().get(1).getDescription()).isEqualTo("Line items");
+
+    verify(bigQuery, never()).getTable(any(TableId.class), any(TableOption[].class));
+    verify(bigQuery, never()).getDataset(any(DatasetId.class), any(DatasetOption[].class));
+  }
+
+  @Test
+  void ignoresDatasetsThatWereNotListed() {
+    var assets = new ArrayList<Asset>();
+
+    harvester.harvest("test-project", List.of(listedDataset("test-project", "sales", "EU")), Map.of("sales", 0L),
+        assets::add, assetId -> { });
+
+    assertThat(assets).extracting(Asset::getId).doesNotContain("test-project:scratch");
+  }
+
+  @Test
+  void mapsStandardSqlTypesToLegacyTypeNames() {
+    assertThat(InformationSchemaHarvester.toLegacyTypeName("INT64")).isEqualTo("INTEGER");
+    assertThat(InformationSchemaHarvester.toLegacyTypeName("FLOAT64")).isEqualTo("FLOAT");
+    assertThat(InformationSchemaHarvester.toLegacyTypeName("BOOL")).isEqualTo("BOOLEAN");
+    assertThat(InformationSchemaHarvester.toLegacyTypeName("STRING(10)")).isEqualTo("STRING");
+    assertThat(InformationSchemaHarvester.toLegacyTypeName("ARRAY<TIMESTAMP>")).isEqualTo("TIMESTAMP");
+    assertThat(InformationSchemaHarvester.toTableType("MATERIALIZED VIEW")).isEqualTo("MATERIALIZED_VIEW");
+  }
+
+  @Test
+  void reportsAllDatasetsOfAFailedRegionAsFailed() throws Exception {
+    when(bigQuery.query(any(QueryJobConfiguration.class)))
+        .thenThrow(new com.google.cloud.bigquery.BigQueryException(403, "Access Denied"));
+
+    var failedDatasets = harvester.harvest("test-project",
+        List.of(listedDataset("test-project", "sales", "EU"), listedDataset("test-project", "hr", "US")),
+        Map.of("sales", 0L, "hr", 0L), asset -> { }, assetId -> { });
+
+    assertThat(failedDatasets).containsExactlyInAnyOrder("sales", "hr");
+  }
+}
@@ -0,0 +1,93 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalStateRepositoryTest {
+
+  @TempDir
+  Path directory;
+
+  private JournalStateRepository open(int compactionThreshold) {
+    return new JournalStateRepository(directory, "test-connector", Duration.ofSeconds(1), compactionThreshold);
+  }
+
+  @Test
+  void startsWithEmptyState() throws IOException {
+    try (var repository = open(1000)) {
+      assertThat(repository.getState()).isEmpty();
+    }
+  }
+
+  @Test
+  void restoresLastSavedStateAfterRestart() throws IOException {
+    try (var repository = open(1000)) {
+      repository.saveState(Map.of("lastUpdatedAt", 1L));
+      repository.saveState(Map.of("lastUpdatedAt", 2L, "datasetWatermarks", Map.of("p:ds", 1L)));
+    }
+
+    try (var repository = open(1000)) {
+      assertThat(repository.getState()).containsEntry("lastUpdatedAt", 2);
+      assertThat(repository.getState()).containsEntry("datasetWatermarks", Map.of("p:ds", 1));
+    }
+  }
+
+  @Test
+  void compactsJournalIntoSnapshot() throws IOException {
+    try (var repository = open(10)) {
+      for (long i = 1; i <= 25; i++) {
+        repository.saveState(Map.of("lastUpdatedAt", i));
+      }
+    }
+
+    assertThat(Files.readAllLines(directory.resolve("test-connector.journal"))).hasSize(5);
+    try (var repository = open(10)) {
+      assertThat(repository.getState()).containsEntry("lastUpdatedAt", 25);
+    }
+  }
+
+  @Test
+  void ignoresTornEntryAtEndOfJournal() throws IOException {
+    try (var repository = open(1000)) {
+      repository.saveState(Map.of("lastUpdatedAt", 1L));
+    }
+    Files.write(directory.resolve("test-connector.journal"), "2 deadbeef {\"lastUpd".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    try (var repository = open(1000)) {
+      assertThat(repository.getState()).containsEntry("lastUpdatedAt", 1);
+      repository.saveState(Map.of("lastUpdatedAt", 3L));
+    }
+
+    try (var repository = open(1000)) {
+      assertThat(repository.getState()).containsEntry("lastUpdatedAt", 3);
+    }
+  }
+
+  @Test
+  void ignoresJournalEntriesOlderThanSnapshot() throws IOException {
+    try (var repository = open(2)) {
+      repository.saveState(Map.of("lastUpdatedAt", 1L));
+      repository.saveState(Map.of("lastUpdatedAt", 2L));
+    }
+    try (var repository = open(1000)) {
+      repository.saveState(Map.of("lastUpdatedAt", 3L));
+    }
+    // simulate a stale entry left behind by a crash between writing the snapshot and truncating the journal
+    var journal = Files.readString(directory.resolve("test-connector.journal"));
+    Files.writeString(directory.resolve("test-connector.journal"), journal.replaceFirst("^3 ", "1 "));
+
+    try (var repository = open(1000)) {
+      assertThat(repository.getState()).containsEntry("lastUpdatedAt", 2);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.cloud.bigquery.Acl;
+import com.google.cloud.bigquery.Acl.Group;
+import com.google.cloud.bigquery.DatasetId;
+import entropydata.gcp.GcpAssetsProvider.Stage;
+import entropydata.sdk.EntropyDataAssetsProvider.AssetCallback;
+import entropydata.sdk.EntropyDataClient;
+import entropydata.sdk.EntropyDataStateRepositoryInMemory;
+import entropydata.sdk.client.model.AccessActivatedEvent;
+import entropydata.sdk.client.model.AccessDeactivatedEvent;
+import entropydata.sdk.client.model.Asset;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives the asset synchronization and the access management end to end against a {@link FakeBigQuery} and a
+ * {@link FakeEntropyDataServer}, and logs throughput, latency percentiles and peak heap. Excluded from the default
+ * build, run with {@code mvn test -Pload}. The scale is set with system properties, e.g.
+ * {@code -Dload.projects=10 -Dload.datasets=100 -Dload.tables=100} for 100,000 tables.
+ */
+@Tag("load")
+class LoadTest {
+
+  private static final Logger log = LoggerFactory.getLogger(LoadTest.class);
+
+  private static final int PROJECTS = Integer.getInteger("load.projects", 10);
+  private static final int DATASETS = Integer.getInteger("load.datasets", 100);
+  private static final int TABLES = Integer.getInteger("load.tables", 100);
+  private static final int COLUMNS = Integer.getInteger("load.columns", 20);
+  private static final int ACL_ENTRIES = Integer.getInteger("load.aclentries", 50);
+  private static final int PAGE_SIZE = Integer.getInteger("load.pagesize", 100);
+  private static final Duration BIGQUERY_LATENCY = Duration.ofMillis(Integer.getInteger("load.bigquerylatencyms", 20));
+  private static final double ERROR_RATE = Double.parseDouble(System.getProperty("load.errorrate", "0.001"));
+  private static final Duration ENTROPYDATA_LATENCY =
+      Duration.ofMillis(Integer.getInteger("load.entropydatalatencyms", 5));
+  private static final int PARALLELISM = Integer.getInteger("load.parallelism", 32);
+  private static final int EVENTS = Integer.getInteger("load.events", 2000);
+  private static final int EVENT_THREADS = Integer.getInteger("load.eventthreads", 16);
+  private static final int TEAMS = Integer.getInteger("load.teams", 100);
+  private static final Duration ACL_BATCHING_WINDOW = Duration.ofMillis(Integer.getInteger("load.aclwindowms", 20));
+  private static final int ACL_BATCHING_MAX_CHANGES = 100;
+
+  private SimpleMeterRegistry registry;
+  private FakeBigQuery fakeBigQuery;
+
+  @BeforeEach
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    registry.config().meterFilter(new MeterFilter() {
+      @Override
+      public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+        return DistributionStatisticConfig.builder().percentiles(0.5, 0.95, 0.99).build().merge(config);
+      }
+    });
+    fakeBigQuery = new FakeBigQuery(new FakeBigQuery.Settings(PROJECTS, DATASETS, TABLES, COLUMNS, ACL_ENTRIES,
+        PAGE_SIZE, BIGQUERY_LATENCY, ERROR_RATE));
+  }
+
+  @Test
+  void synchronizesAssets() throws Exception {
+    try (var server = new FakeEntropyDataServer(PROJECTS, DATASETS, TEAMS, ENTROPYDATA_LATENCY)) {
+      // wrapped like in the application, with limits that the fake can sustain
+      var bigQuery = RateLimitedBigQuery.wrap(ApiMetrics.metered(fakeBigQuery.bigQuery(), registry),
+          new RateLimitedBigQuery.Settings(5000, 5000, PARALLELISM * 2, 8, Duration.ofMillis(50),
+              Duration.ofSeconds(2)));
+      var projectIds = IntStream.range(0, PROJECTS).mapToObj(FakeBigQuery::projectId).toList();
+      var provider = new GcpAssetsProvider(bigQuery, projectIds, new EntropyDataStateRepositoryInMemory("load"));
+      provider.setMeterRegistry(registry);
+      provider.setParallelism(PARALLELISM);
+      provider.setStageConcurrency(Stage.LIST_DATASETS, Math.min(PROJECTS, PARALLELISM));
+      var bulkAssetsClient = new EntropyDataBulkAssetsClient(server.host(), "load", "/api/assets/bulk",
+          Duration.ofSeconds(30), new EntropyDataClient(server.host(), "load").getApiClient().getObjectMapper());
+      bulkAssetsClient.setMeterRegistry(registry);
+      provider.setBatching(bulkAssetsClient,
+          new BatchingAssetUploader.Settings(500, 4 * 1024 * 1024, Duration.ofMillis(200), 4));
+      var callback = new CountingCallback();
+
+      resetPeakHeap();
+      long start = System.nanoTime();
+      provider.fetchAssets(callback);
+      var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+      long expectedAssets = (long) PROJECTS * DATASETS * (TABLES + 1);
+      long uploadedAssets = server.uploadedAssets() + callback.updated.sum();
+      log.info("Synchronized {} assets of {} projects, {} datasets and {} tables in {} ms: {} assets/s, "
+          + "peak heap {} MB", uploadedAssets, PROJECTS, PROJECTS * DATASETS, (long) PROJECTS * DATASETS * TABLES, elapsed.toMillis(),
+          String.format("%.0f", uploadedAssets * 1e9 / elapsed.toNanos()), peakHeapBytes() / (1024 * 1024));
+      for (var method : new String[] {"listDatasets", "getDataset", "listTables", "getTable"}) {
+        log.info("  BigQuery {}: {} calls, {}", method, fakeBigQuery.calls(method),
+            percentiles(registry.find(ApiMetrics.BIGQUERY_REQUESTS).tags("method", method, "outcome", "success")
+                .timer()));
+      }
+      log.info("  Entropy Data assets.bulk: {} requests, {}", server.requests("assets.bulk"),
+          percentiles(registry.find(ApiMetrics.ENTROPYDATA_REQUESTS).tags("operation", "assets.bulk",
+              "outcome", "success").timer()));
+
+      assertThat(uploadedAssets).isEqualTo(expectedAssets);
+    }
+  }
+
+  @Test
+  void processesAccessEvents() throws Exception {
+    try (var server = new FakeEntropyDataServer(PROJECTS, DATASETS, TEAMS, ENTROPYDATA_LATENCY)) {
+      var client = new EntropyDataClient(server.host(), "load");
+      var bigQuery = RateLimitedBigQuery.wrap(ApiMetrics.metered(fakeBigQuery.bigQuery(), registry),
+          new RateLimitedBigQuery.Settings(5000, 5000, EVENT_THREADS * 2, 8, Duration.ofMillis(50),
+              Duration.ofSeconds(2)));
+      var accessManagement = new GcpAccessManagement(client, bigQuery, "READER", FakeEntropyDataServer.PRINCIPAL_FIELD,
+          FakeEntropyDataServer.PRINCIPAL_FIELD);
+      accessManagement.setMeterRegistry(registry);
+      accessManagement.setCache(Duration.ofMinutes(1), 1000);
+      accessManagement.setAclBatching(ACL_BATCHING_WINDOW, ACL_BATCHING_MAX_CHANGES);
+
+      resetPeakHeap();
+      var activation = dispatch(accessManagement, (dispatcher, accessId) -> {
+        var event = new AccessActivatedEvent();
+        event.setId(accessId);
+        dispatcher.onAccessActivatedEvent(event);
+      });
+      long missingGrants = IntStream.range(0, EVENTS)
+          .filter(access -> !hasGrant(server, access))
+          .mapToObj(access -> server.datasetKeyOf(access) + "/" + server.groupOf(access))
+          .distinct()
+          .count();
+      report("activated", activation, server);
+
+      resetPeakHeap();
+      var deactivation = dispatch(accessManagement, (dispatcher, accessId) -> {
+        var event = new AccessDeactivatedEvent();
+        event.setId(accessId);
+        dispatcher.onAccessDeactivatedEvent(event);
+      });
+      long remainingGrants = IntStream.range(0, EVENTS)
+          .filter(access -> hasGrant(server, access))
+          .mapToObj(access -> server.datasetKeyOf(access) + "/" + server.groupOf(access))
+          .distinct()
+          .count();
+      report("deactivated", deactivation, server);
+      // failed updates leave grants missing or in place, conditional updates keep concurrent ones from losing any
+      log.info("  ACL updates: {}, conflicts: {}, grants missing after activation: {}, left after deactivation: {}",
+          fakeBigQuery.calls("update"), registry.counter("gcp.access.acl.conflicts").count(), missingGrants,
+          remainingGrants);
+
+      // dataset updates bypass the retries of the rate limiter, like in the application
+      long failedEvents = registry.find("gcp.access.events").tag("outcome", "error").timers().stream()
+          .mapToLong(Timer::count)
+          .sum();
+      // and a failed batched update fails all events of its batch
+      long eventsPerUpdate = ACL_BATCHING_WINDOW.isZero() ? 1 : ACL_BATCHING_MAX_CHANGES;
+      assertThat(failedEvents).isLessThanOrEqualTo(fakeBigQuery.failures("update") * eventsPerUpdate);
+    }
+  }
+
+  /**
+   * Dispatches an event per access like the listener would, and waits until all were processed.
+   */
+  private Duration dispatch(GcpAccessManagement accessManagement, BiConsumer<AccessEventDispatcher, String> handler) {
+    long start = System.nanoTime();
+    // failed events are recorded as events with outcome error
+    try (var dispatcher = new AccessEventDispatcher(accessManagement, EVENT_THREADS, EVENT_THREADS * 4)) {
+      for (int access = 0; access < EVENTS; access++) {
+        handler.accept(dispatcher, FakeEntropyDataServer.accessId(access));
+      }
+    }
+    return Duration.ofNanos(System.nanoTime() - start);
+  }
+
+  private boolean hasGrant(FakeEntropyDataServer server, int access) {
+    var datasetKey = server.datasetKeyOf(access);
+    var datasetId = DatasetId.of(datasetKey.substring(0, datasetKey.indexOf(':')),
+        datasetKey.substring(datasetKey.indexOf(':') + 1));
+    return fakeBigQuery.acl(datasetId).contains(Acl.of(new Group(server.groupOf(access)), Acl.Role.READER));
+  }
+
+  private void report(String type, Duration elapsed, FakeEntropyDataServer server) {
+    log.info("Processed {} {} events with {} threads in {} ms: {} events/s, {}, peak heap {} MB", EVENTS, type,
+        EVENT_THREADS, elapsed.toMillis(), String.format("%.0f", EVENTS * 1e9 / elapsed.toNanos()),
+        percentiles(registry.find("gcp.access.events").tags("type", type, "outcome", "success").timer()),
+        peakHeapBytes() / (1024 * 1024));
+    log.info("  Entropy Data requests so far: access.get {}, access.put {}, dataproducts.get {}, teams.get {}",
+        server.requests("access.get"), server.requests("access.put"), server.requests("dataproducts.get"),
+        server.requests("teams.get"));
+  }
+
+  private static String percentiles(Timer timer) {
+    if (timer == null) {
+      return "no successful calls";
+    }
+    return Stream.of(timer.takeSnapshot().percentileValues())
+        .map(value -> String.format("p%.0f %.1f ms", value.percentile() * 100, value.value(TimeUnit.MILLISECONDS)))
+        .collect(Collectors.joining(", "));
+  }
+
+  private static void resetPeakHeap() {
+    System.gc();
+    heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+  }
+
+  /**
+   * @return sum of the peaks of the heap memory pools, an upper bound of the peak heap usage
+   */
+  private static long peakHeapBytes() {
+    return heapPools().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+  }
+
+  private static Stream<MemoryPoolMXBean> heapPools() {
+    return ManagementFactory.getMemoryPoolMXBeans().stream().filter(pool -> pool.getType() == MemoryType.HEAP);
+  }
+
+  private static class CountingCallback implements AssetCallback {
+
+    final LongAdder updated = new LongAdder();
+    final LongAdder deleted = new LongAdder();
+
+    @Override
+    public void onAssetUpdated(Asset asset) {
+      updated.increment();
+    }
+
+    @Override
+    public void onAssetDeleted(String assetId) {
+      deleted.increment();
+    }
+  }
+
+}
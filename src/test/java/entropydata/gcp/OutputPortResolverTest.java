@@ -0,0 +1,110 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import entropydata.sdk.client.model.DataContract;
+import entropydata.sdk.client.model.DataContractServersValue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.yaml.snakeyaml.Yaml;
+
+class OutputPortResolverTest {
+
+  private final ObjectMapper objectMapper =
+      new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+  private final OutputPortResolver resolver = new OutputPortResolver(objectMapper);
+
+  private static Map<String, Object> loadYaml(String name) {
+    try (InputStream is = OutputPortResolverTest.class.getResourceAsStream("/fixtures/" + name)) {
+      return new Yaml().load(is);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to load fixture: " + name, e);
+    }
+  }
+
+  /**
+   * ODCS lists servers, the SDK model maps them by name.
+   */
+  @SuppressWarnings("unchecked")
+  private DataContract loadDataContract(String name) {
+    var yaml = loadYaml(name);
+    var serversMap = new LinkedHashMap<String, DataContractServersValue>();
+    for (var entry : (List<Map<String, Object>>) yaml.get("servers")) {
+      var serverValue = new DataContractServersValue();
+      entry.forEach((key, value) -> {
+        if (!"server".equals(key)) {
+          serverValue.put(key, value);
+        }
+      });
+      serversMap.put((String) entry.get("server"), serverValue);
+    }
+    yaml.put("servers", serversMap);
+    return objectMapper.convertValue(yaml, DataContract.class);
+  }
+
+  @Test
+  void resolvesServerOfDpsOutputPort() {
+    var outputPort = resolver.findOutputPort(loadYaml("provider-dp-dps.yaml"), "op-1");
+
+    assertThat(resolver.findDataContractId(outputPort)).isNull();
+    assertThat(resolver.findOutputPortServer(outputPort))
+        .containsEntry("project", "my-project")
+        .containsEntry("dataset", "my-dataset");
+  }
+
+  @Test
+  void resolvesContractAndServerNameOfOdpsOutputPort() {
+    var outputPort = resolver.findOutputPort(loadYaml("provider-dp-odps.yaml"), "bq-output");
+
+    assertThat(resolver.findDataContractId(outputPort)).isEqualTo("my-contract");
+    assertThat(resolver.getOutputPortCustomField(outputPort, "contractServer")).isEqualTo("bq-server");
+    assertThat(resolver.findOutputPortServer(outputPort)).isNull();
+    assertThat(resolver.findOutputPort(loadYaml("provider-dp-odps.yaml"), "missing")).isNull();
+  }
+
+  @Test
+  void resolvesServerInCustomPropertiesOfOdpsOutputPort() {
+    var outputPort = resolver.findOutputPort(loadYaml("provider-dp-odps-no-contract.yaml"), "bq-output");
+
+    assertThat(resolver.findDataContractId(outputPort)).isNull();
+    assertThat(resolver.findOutputPortServer(outputPort))
+        .containsEntry("project", "fallback-project")
+        .containsEntry("dataset", "fallback-dataset");
+  }
+
+  @Test
+  void selectsNamedContractServerOrFallsBackToFirst() {
+    var dataContract = loadDataContract("datacontract-multi-server.yaml");
+
+    assertThat(resolver.findContractServer(dataContract, "secondary"))
+        .containsEntry("project", "second-project")
+        .containsEntry("dataset", "second-dataset");
+    assertThat(resolver.findContractServer(dataContract, "missing")).containsEntry("project", "first-project");
+    assertThat(resolver.findContractServer(dataContract, null)).containsEntry("project", "first-project");
+  }
+
+  @Test
+  void readsCustomFieldsOfDpsAndOdpsDataProducts() {
+    assertThat(resolver.getCustomField(loadYaml("consumer-dp-dps.yaml"), "gcpPrincipal"))
+        .isEqualTo("serviceAccount:sa@project.iam.gserviceaccount.com");
+    assertThat(resolver.getCustomField(loadYaml("consumer-dp-odps.yaml"), "gcpPrincipal"))
+        .isEqualTo("serviceAccount:consumer@project.iam.gserviceaccount.com");
+    assertThat(resolver.getCustomField(loadYaml("provider-dp-odps.yaml"), "gcpPrincipal")).isNull();
+  }
+
+  @Test
+  void convertsDataProductsThatAreNotMaps() {
+    var dataProduct = objectMapper.valueToTree(loadYaml("provider-dp-dps.yaml"));
+
+    var outputPort = resolver.findOutputPort(dataProduct, "op-1");
+
+    assertThat(resolver.findOutputPortServer(outputPort)).containsEntry("dataset", "my-dataset");
+  }
+
+}
@@ -0,0 +1,56 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import entropydata.gcp.PipelineStage.Batch;
+import entropydata.gcp.PipelineStage.Work;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class PipelineStageTest {
+
+  @Test
+  void batchCompletesAfterDownstreamItems() throws Exception {
+    var handled = new ConcurrentLinkedQueue<String>();
+    var second = PipelineStage.<String>start("second", 2, 1, work -> {
+      Thread.sleep(10);
+      handled.add(work.payload());
+    });
+    var first = PipelineStage.<Integer>start("first", 1, 1, work -> {
+      for (int i = 0; i < work.payload(); i++) {
+        second.submit(work.with(work.datasetName() + "." + i));
+      }
+    });
+    try {
+      var batch = new Batch("test-project");
+      first.submit(new Work<>(batch, "ds", 0, 5));
+
+      assertThat(batch.completion().get(5, TimeUnit.SECONDS)).isEmpty();
+      assertThat(handled).hasSize(5);
+    } finally {
+      first.stop();
+      second.stop();
+    }
+  }
+
+  @Test
+  void failingItemMarksItsDatasetAsFailed() throws Exception {
+    var stage = PipelineStage.<String>start("test", 1, 10, work -> {
+      if (work.payload().equals("broken")) {
+        throw new IllegalStateException("broken");
+      }
+    });
+    try {
+      var healthy = new Batch("test-project");
+      var broken = new Batch("test-project");
+      stage.submit(new Work<>(broken, "broken", 0, "broken"));
+      stage.submit(new Work<>(healthy, "healthy", 0, "healthy"));
+
+      assertThat(broken.completion().get(5, TimeUnit.SECONDS)).containsExactly("broken");
+      assertThat(healthy.completion().get(5, TimeUnit.SECONDS)).isEmpty();
+    } finally {
+      stage.stop();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.resourcemanager.v3.Folder;
+import com.google.cloud.resourcemanager.v3.FoldersClient;
+import com.google.cloud.resourcemanager.v3.FoldersClient.ListFoldersPagedResponse;
+import com.google.cloud.resourcemanager.v3.Project;
+import com.google.cloud.resourcemanager.v3.ProjectsClient;
+import com.google.cloud.resourcemanager.v3.ProjectsClient.ListProjectsPagedResponse;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ProjectDiscoveryTest {
+
+  private ProjectsClient projectsClient;
+  private FoldersClient foldersClient;
+  private ProjectDiscovery discovery;
+
+  @BeforeEach
+  void setUp() {
+    projectsClient = mock(ProjectsClient.class);
+    foldersClient = mock(FoldersClient.class);
+    stubChildren("organizations/1", List.of(project("org-project", Project.State.ACTIVE)),
+        List.of(folder("folders/10", Folder.State.ACTIVE), folder("folders/11", Folder.State.DELETE_REQUESTED)));
+    stubChildren("folders/10", List.of(project("team-a", Project.State.ACTIVE),
+        project("team-old", Project.State.DELETE_REQUESTED)), List.of(folder("folders/20", Folder.State.ACTIVE)));
+    stubChildren("folders/20", List.of(project("team-a-dev", Project.State.ACTIVE)), List.of());
+    discovery = new ProjectDiscovery(projectsClient, foldersClient, List.of("organizations/1"), Duration.ofHours(1), 4);
+  }
+
+  @AfterEach
+  void tearDown() {
+    discovery.close();
+  }
+
+  private void stubChildren(String parent, List<Project> projects, List<Folder> folders) {
+    var projectsResponse = mock(ListProjectsPagedResponse.class);
+    when(projectsResponse.iterateAll()).thenReturn(projects);
+    when(projectsClient.listProjects(parent)).thenReturn(projectsResponse);
+    var foldersResponse = mock(ListFoldersPagedResponse.class);
+    when(foldersResponse.iterateAll()).thenReturn(folders);
+    when(foldersClient.listFolders(parent)).thenReturn(foldersResponse);
+  }
+
+  private static Project project(String projectId, Project.State state) {
+    return Project.newBuilder().setProjectId(projectId).setState(state).build();
+  }
+
+  private static Folder folder(String name, Folder.State state) {
+    return Folder.newBuilder().setName(name).setState(state).build();
+  }
+
+  @Test
+  void discoversActiveProjectsInNestedFolders() {
+    assertThat(discovery.getProjectIds()).containsExactly("org-project", "team-a", "team-a-dev");
+  }
+
+  @Test
+  void cachesProjectsUntilRefreshInterval() {
+    discovery.getProjectIds();
+    discovery.getProjectIds();
+
+    verify(projectsClient, org.mockito.Mockito.times(1)).listProjects("organizations/1");
+  }
+
+  @Test
+  void skipsProjectsWithDisabledBigQueryApi() {
+    discovery.getProjectIds();
+    var disabled = new BigQueryException(403, "BigQuery API has not been used in project team-a before or it is disabled",
+        new BigQueryError("accessNotConfigured", "global", "disabled"));
+
+    assertThat(discovery.skipIfBigQueryDisabled("team-a", disabled)).isTrue();
+    assertThat(discovery.skipIfBigQueryDisabled("team-a-dev", new BigQueryException(503, "Backend error"))).isFalse();
+    assertThat(discovery.getProjectIds()).containsExactly("org-project", "team-a-dev");
+  }
+}
@@ -0,0 +1,101 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Dataset;
+import com.google.cloud.bigquery.DatasetId;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RateLimitedBigQueryTest {
+
+  private static final DatasetId DATASET_ID = DatasetId.of("test-project", "ds");
+
+  private BigQuery bigquery;
+
+  @BeforeEach
+  void setUp() {
+    bigquery = mock(BigQuery.class);
+  }
+
+  private static BigQuery rateLimited(BigQuery bigquery, double requestsPerSecond, int burst) {
+    return RateLimitedBigQuery.wrap(bigquery, new RateLimitedBigQuery.Settings(requestsPerSecond, burst, 8, 3,
+        Duration.ofMillis(1), Duration.ofMillis(5)));
+  }
+
+  private static BigQueryException rateLimitExceeded() {
+    return new BigQueryException(403, "Exceeded rate limits",
+        new BigQueryError("rateLimitExceeded", "global", "Exceeded rate limits"));
+  }
+
+  @Test
+  void retriesRateLimitAndServerErrors() {
+    var dataset = mock(Dataset.class);
+    when(bigquery.getDataset(DATASET_ID))
+        .thenThrow(rateLimitExceeded())
+        .thenThrow(new BigQueryException(503, "Backend error"))
+        .thenReturn(dataset);
+
+    assertThat(rateLimited(bigquery, 1000, 10).getDataset(DATASET_ID)).isSameAs(dataset);
+    verify(bigquery, org.mockito.Mockito.times(3)).getDataset(DATASET_ID);
+  }
+
+  @Test
+  void doesNotRetryClientErrors() {
+    when(bigquery.getDataset(DATASET_ID)).thenThrow(new BigQueryException(404, "Not found"));
+
+    assertThatThrownBy(() -> rateLimited(bigquery, 1000, 10).getDataset(DATASET_ID))
+        .isInstanceOf(BigQueryException.class)
+        .hasMessage("Not found");
+    verify(bigquery, org.mockito.Mockito.times(1)).getDataset(DATASET_ID);
+  }
+
+  @Test
+  void givesUpAfterMaxRetries() {
+    when(bigquery.getDataset(DATASET_ID)).thenThrow(new BigQueryException(429, "Too many requests"));
+
+    assertThatThrownBy(() -> rateLimited(bigquery, 1000, 10).getDataset(DATASET_ID))
+        .isInstanceOf(BigQueryException.class);
+    verify(bigquery, org.mockito.Mockito.times(4)).getDataset(DATASET_ID);
+  }
+
+  @Test
+  void halvesConcurrencyOnQuotaErrorsAndRecoversOnSuccess() {
+    var dataset = mock(Dataset.class);
+    when(bigquery.getDataset(DATASET_ID))
+        .thenThrow(rateLimitExceeded())
+        .thenThrow(rateLimitExceeded())
+        .thenReturn(dataset);
+    var rateLimited = rateLimited(bigquery, 1000, 10);
+
+    rateLimited.getDataset(DATASET_ID);
+    assertThat(RateLimitedBigQuery.concurrencyLimit(rateLimited, "test-project")).isEqualTo(2);
+
+    for (int i = 0; i < 2; i++) {
+      rateLimited.getDataset(DATASET_ID);
+    }
+    assertThat(RateLimitedBigQuery.concurrencyLimit(rateLimited, "test-project")).isEqualTo(3);
+  }
+
+  @Test
+  void limitsRequestRatePerProject() {
+    var rateLimited = rateLimited(bigquery, 20, 1);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      rateLimited.getDataset(DATASET_ID);
+    }
+    rateLimited.getDataset(DatasetId.of("other-project", "ds"));
+
+    // the first call uses the burst token, the next four wait 50 ms each; the other project has its own bucket
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isBetween(Duration.ofMillis(190), Duration.ofMillis(1000));
+  }
+}
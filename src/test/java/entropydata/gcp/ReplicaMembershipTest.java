@@ -0,0 +1,50 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReplicaMembershipTest {
+
+  @TempDir
+  Path leaseDirectory;
+
+  private static Set<String> owners(ConsistentHashRing ring) {
+    var owners = new HashSet<String>();
+    for (int i = 0; i < 1000; i++) {
+      owners.add(ring.ownerOf("project:dataset_" + i));
+    }
+    return owners;
+  }
+
+  @Test
+  void replicasSeeEachOtherUntilOneLeaves() throws Exception {
+    try (var replicaA = new ReplicaMembership(leaseDirectory, "replica-a", Duration.ofMinutes(1), 64)) {
+      replicaA.start();
+      var replicaB = new ReplicaMembership(leaseDirectory, "replica-b", Duration.ofMinutes(1), 64);
+      replicaB.start();
+
+      assertThat(owners(replicaA.ring())).containsExactlyInAnyOrder("replica-a", "replica-b");
+
+      replicaB.close();
+      assertThat(owners(replicaA.ring())).containsExactly("replica-a");
+    }
+  }
+
+  @Test
+  void ignoresExpiredLeases() throws Exception {
+    Files.writeString(leaseDirectory.resolve("replica-crashed.lease"),
+        Long.toString(System.currentTimeMillis() - 1000));
+    try (var replica = new ReplicaMembership(leaseDirectory, "replica-a", Duration.ofMinutes(1), 64)) {
+      replica.start();
+
+      assertThat(owners(replica.ring())).containsExactly("replica-a");
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import entropydata.sdk.client.model.Asset;
+import entropydata.sdk.client.model.AssetInfo;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ShardedTablesTest {
+
+  @Test
+  void detectsDateSuffix() {
+    assertThat(ShardedTables.shardPrefix("events_20240131")).isEqualTo("events_");
+    assertThat(ShardedTables.shardPrefix("ga_sessions20240101")).isEqualTo("ga_sessions");
+    assertThat(ShardedTables.shardPrefix("20240101")).isEmpty();
+    assertThat(ShardedTables.shardPrefix("events_20241301")).isNull();
+    assertThat(ShardedTables.shardPrefix("events_120240101")).isNull();
+    assertThat(ShardedTables.shardPrefix("events")).isNull();
+  }
+
+  @Test
+  void groupsShardsByPrefix() {
+    var grouping = ShardedTables.group(List.of(
+        "events_20240102", "orders", "events_20240101", "events_20240103", "backup_20230101"));
+
+    assertThat(grouping.tables()).containsExactlyInAnyOrder("orders", "backup_20230101");
+    assertThat(grouping.shardGroups()).containsOnlyKeys("events_*");
+    var group = grouping.shardGroups().get("events_*");
+    assertThat(group.tableNames()).containsExactly("events_20240101", "events_20240102", "events_20240103");
+    assertThat(group.newestTableName()).isEqualTo("events_20240103");
+    assertThat(grouping.groupOf("events_20240101")).isSameAs(group);
+    assertThat(grouping.groupOf("backup_20230101")).isNull();
+  }
+
+  @Test
+  void turnsNewestShardIntoGroupAsset() {
+    var group = ShardedTables.group(List.of("events_20240101", "events_20240102")).shardGroups().get("events_*");
+    var newestShard = new Asset()
+        .id("p:ds.events_20240102")
+        .info(new AssetInfo().name("events_20240102").qualifiedName("p:ds.events_20240102"));
+
+    var asset = ShardedTables.toGroupAsset(newestShard, group);
+
+    assertThat(asset.getId()).isEqualTo("p:ds.events_*");
+    assertThat(asset.getInfo().getName()).isEqualTo("events_*");
+    assertThat(asset.getInfo().getQualifiedName()).isEqualTo("p:ds.events_*");
+    assertThat(asset.getProperties())
+        .containsEntry("shardCount", "2")
+        .containsEntry("firstShard", "20240101")
+        .containsEntry("lastShard", "20240102");
+  }
+}
@@ -0,0 +1,136 @@
+package entropydata.gcp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class TtlCacheTest {
+
+  private final AtomicLong now = new AtomicLong();
+  private final AtomicInteger loads = new AtomicInteger();
+  private final TtlCache<String, String> cache = new TtlCache<>("test", Duration.ofMinutes(1), 2, now::get);
+
+  private String load(String key) {
+    loads.incrementAndGet();
+    return key + "-" + loads.get();
+  }
+
+  @Test
+  void servesCachedValuesUntilTheyExpire() {
+    assertThat(cache.get("a", this::load)).isEqualTo("a-1");
+    now.addAndGet(Duration.ofSeconds(59).toNanos());
+    assertThat(cache.get("a", this::load)).isEqualTo("a-1");
+
+    now.addAndGet(Duration.ofSeconds(1).toNanos());
+    assertThat(cache.get("a", this::load)).isEqualTo("a-2");
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedEntries() {
+    cache.get("a", this::load);
+    cache.get("b", this::load);
+    cache.get("a", this::load);
+    cache.get("c", this::load);
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get("a", this::load)).isEqualTo("a-1");
+    assertThat(cache.get("b", this::load)).isEqualTo("b-4");
+  }
+
+  @Test
+  void coalescesConcurrentMisses() throws Exception {
+    var started = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    var executor = Executors.newFixedThreadPool(4);
+    try {
+      var first = executor.submit(() -> cache.get("a", key -> {
+        started.countDown();
+        await(release);
+        return load(key);
+      }));
+      started.await();
+      var others = new ArrayList<Future<String>>();
+      for (int i = 0; i < 3; i++) {
+        others.add(executor.submit(() -> cache.get("a", this::load)));
+      }
+      // the other callers either wait for the pending load or find its result
+      Thread.sleep(50);
+      release.countDown();
+
+      assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("a-1");
+      for (var other : others) {
+        assertThat(other.get(5, TimeUnit.SECONDS)).isEqualTo("a-1");
+      }
+      assertThat(loads.get()).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void doesNotCacheFailuresOrNull() {
+    assertThatThrownBy(() -> cache.get("a", key -> {
+      throw new IllegalStateException("unavailable");
+    })).isInstanceOf(IllegalStateException.class);
+    assertThat(cache.get("b", key -> null)).isNull();
+
+    assertThat(cache.get("a", this::load)).isEqualTo("a-1");
+    assertThat(cache.get("b", this::load)).isEqualTo("b-2");
+  }
+
+  @Test
+  void doesNotCacheLoadsOverlappingAnInvalidation() {
+    var value = cache.get("a", key -> {
+      cache.invalidate(key);
+      return load(key);
+    });
+
+    assertThat(value).isEqualTo("a-1");
+    assertThat(cache.get("a", this::load)).isEqualTo("a-2");
+    cache.invalidateAll();
+    assertThat(cache.get("a", this::load)).isEqualTo("a-3");
+  }
+
+  @Test
+  void reportsRequestsEvictionsAndSize() {
+    var registry = new SimpleMeterRegistry();
+    cache.bindTo(registry);
+
+    cache.get("a", this::load);
+    cache.get("a", this::load);
+    cache.get("b", this::load);
+    cache.get("c", this::load);
+    now.addAndGet(Duration.ofMinutes(1).toNanos());
+    cache.get("c", this::load);
+
+    assertThat(registry.get("gcp.access.cache.requests").tags("cache", "test", "result", "hit").functionCounter()
+        .count()).isEqualTo(1);
+    assertThat(registry.get("gcp.access.cache.requests").tags("cache", "test", "result", "miss").functionCounter()
+        .count()).isEqualTo(4);
+    assertThat(registry.get("gcp.access.cache.evictions").tags("cache", "test", "cause", "size").functionCounter()
+        .count()).isEqualTo(1);
+    assertThat(registry.get("gcp.access.cache.evictions").tags("cache", "test", "cause", "expired")
+        .functionCounter().count()).isEqualTo(1);
+    assertThat(registry.get("gcp.access.cache.size").tags("cache", "test").gauge().value()).isEqualTo(2);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+}